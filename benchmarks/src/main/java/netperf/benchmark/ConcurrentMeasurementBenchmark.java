@@ -0,0 +1,178 @@
+package netperf.benchmark;
+
+/*
+ * #%L
+ * Benchmarks
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.StartMessage;
+import netperf.protocol.TransferDuringFixedTime;
+import netperf.server.ExecutionMode;
+import netperf.server.NetPerfServer;
+
+/**
+ * How many concurrent measurements a single server sustains in each
+ * {@link ExecutionMode}: a source server is asked to measure against the same
+ * target server N times at once, each operation lasting until every result
+ * came back. The results that completed and the peak amount of threads
+ * started on top of the ones already alive are reported next to the time.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+@SuppressWarnings("javadoc")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ConcurrentMeasurementBenchmark {
+
+	private static final int BOUND = 64;
+	private static final long MILLISECONDS = 200;
+	private static final int TIMEOUT = 120 * 1000;
+	/**
+	 * Ports of the source and the next one for the target, reused by every
+	 * fork since forks run one after the other.
+	 */
+	private static final int PORT = 21990;
+
+	/**
+	 * Reported by JMH next to the primary result.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long completed;
+		public long extraThreads;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			completed = 0;
+			extraThreads = 0;
+		}
+	}
+
+	@Param({ "PLATFORM", "VIRTUAL", "BOUNDED" })
+	public ExecutionMode mode;
+	@Param({ "10", "100", "500" })
+	public int measurements;
+	private MessageMarshaller marshaller;
+	private InetSocketAddress source;
+	private InetSocketAddress target;
+	private ThreadMXBean threads;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		marshaller = new MessageMarshaller();
+		threads = ManagementFactory.getThreadMXBean();
+		source = startServer(PORT);
+		target = startServer(PORT + 1);
+	}
+
+	@Benchmark
+	public void measure(Counters counters) throws IOException, MarshalException {
+		int alive = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+		List<InetSocketAddress> addresses = new ArrayList<>(measurements);
+		for (int i = 0; i < measurements; i++) {
+			addresses.add(target);
+		}
+		try (Socket socket = new Socket()) {
+			socket.connect(source);
+			socket.setSoTimeout(TIMEOUT);
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+			TransferDuringFixedTime command = new TransferDuringFixedTime(MILLISECONDS);
+			// Only count results, without progress in between.
+			command.setSampleInterval(0);
+			os.write(marshaller.marshallMessage(new StartMessage(addresses, command)));
+			for (int i = 0; i < measurements; i++) {
+				ResultMessage result = (ResultMessage) marshaller.unmarshallMessage(is);
+				if (result.getError() == null) {
+					counters.completed++;
+				}
+			}
+			os.write(marshaller.marshallMessage(new DisconnectMessage()));
+		}
+		counters.extraThreads = Math.max(counters.extraThreads, threads.getPeakThreadCount() - alive);
+	}
+
+	/**
+	 * Start a server, left running until the fork exits.
+	 */
+	private InetSocketAddress startServer(int port) throws InterruptedException {
+		final NetPerfServer server = new NetPerfServer(port);
+		server.setExecutionMode(mode, BOUND);
+		// Measures how many threads keep up, so let every measurement run at once.
+		server.getScheduler().setMaxConcurrent(0);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				server.start();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		InetSocketAddress address = new InetSocketAddress("localhost", port);
+		while (true) {
+			try (Socket socket = new Socket()) {
+				socket.connect(address);
+				socket.getOutputStream().write(marshaller.marshallMessage(new DisconnectMessage()));
+				return address;
+			} catch (IOException | MarshalException e) {
+				Thread.sleep(10);
+			}
+		}
+	}
+}
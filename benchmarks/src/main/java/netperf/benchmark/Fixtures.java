@@ -0,0 +1,117 @@
+package netperf.benchmark;
+
+/*
+ * #%L
+ * Benchmarks
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import netperf.protocol.DatagramMeasurement;
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.LatencyHistogram;
+import netperf.protocol.LatencyMeasurement;
+import netperf.protocol.MeasurementMessage;
+import netperf.protocol.Message;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.StartMessage;
+import netperf.protocol.StopMessage;
+import netperf.protocol.TransferDuringFixedTime;
+
+/**
+ * Representative messages and speeds, as exchanged during a one second
+ * measurement sampled every 100 ms.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+class Fixtures {
+
+	private static final long START = 1500000000000L;
+	private static final long BYTES = 1024L * 1024 * 1024;
+
+	private Fixtures() {
+	}
+
+	/**
+	 * @param type
+	 *            start, measurement, stop, disconnect, result or progress
+	 * @return a message of the given type
+	 */
+	static Message message(String type) {
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1991);
+		switch (type) {
+		case "start":
+			List<InetSocketAddress> addresses = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				addresses.add(new InetSocketAddress("127.0.0.1", 1991 + i));
+			}
+			return new StartMessage(addresses, new TransferDuringFixedTime(1000));
+		case "measurement":
+			return new MeasurementMessage(new TransferDuringFixedTime(1000));
+		case "stop":
+			return new StopMessage();
+		case "disconnect":
+			return new DisconnectMessage();
+		case "result":
+			return new ResultMessage(new SpeedMeasurement[] { speed("sampled"), speed("sampled"),
+					speed("sampled"), speed("sampled") });
+		case "progress":
+			return new ProgressMessage(address, 0, true, speed("plain"));
+		default:
+			throw new IllegalArgumentException(type);
+		}
+	}
+
+	/**
+	 * @param kind
+	 *            plain, sampled, datagram or latency
+	 * @return a speed of the given kind
+	 */
+	static SpeedMeasurement speed(String kind) {
+		switch (kind) {
+		case "plain":
+			return new SpeedMeasurement(START, START + 1000, BYTES);
+		case "sampled":
+			long[] samples = new long[10];
+			for (int i = 0; i < samples.length; i++) {
+				samples[i] = BYTES / samples.length + i * 1024;
+			}
+			return new SpeedMeasurement(START, START + 1000, BYTES, 100, samples);
+		case "datagram":
+			return new DatagramMeasurement(START, START + 1000, BYTES / 1400, BYTES / 1400, 3, 1, 20000);
+		case "latency":
+			LatencyHistogram histogram = new LatencyHistogram();
+			for (long value = 1; value <= 10000; value++) {
+				histogram.record(10000 + value * 10);
+			}
+			return new LatencyMeasurement(START, START + 1000, 64 * 10000, histogram);
+		default:
+			throw new IllegalArgumentException(kind);
+		}
+	}
+}
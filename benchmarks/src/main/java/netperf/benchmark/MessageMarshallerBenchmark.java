@@ -0,0 +1,109 @@
+package netperf.benchmark;
+
+/*
+ * #%L
+ * Benchmarks
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import netperf.protocol.FrameDecoder;
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+
+/**
+ * Marshalling and unmarshalling of every {@link Message} type, into new
+ * arrays, into a reused buffer, from a whole frame and through a
+ * {@link FrameDecoder}.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+@SuppressWarnings("javadoc")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageMarshallerBenchmark {
+
+	@Param({ "start", "measurement", "stop", "disconnect", "result", "progress" })
+	public String type;
+	private MessageMarshaller marshaller;
+	private FrameDecoder decoder;
+	private Message message;
+	private ByteBuffer buffer;
+	private ByteBuffer frame;
+	private ByteBuffer body;
+
+	@Setup
+	public void setUp() throws MarshalException {
+		marshaller = new MessageMarshaller();
+		decoder = new FrameDecoder(marshaller, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+		message = Fixtures.message(type);
+		buffer = ByteBuffer.allocateDirect(64 * 1024);
+		frame = ByteBuffer.wrap(marshaller.marshallMessage(message));
+		body = ByteBuffer.wrap(frame.array(), MessageMarshaller.LENGTH_HEADER_SIZE,
+				frame.capacity() - MessageMarshaller.LENGTH_HEADER_SIZE).slice();
+	}
+
+	@Benchmark
+	public byte[] marshallToArray() throws MarshalException {
+		return marshaller.marshallMessage(message);
+	}
+
+	@Benchmark
+	public ByteBuffer marshallToBuffer() throws MarshalException {
+		buffer.clear();
+		marshaller.marshallMessage(message, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public Message unmarshallFrame() throws MarshalException {
+		body.rewind();
+		return marshaller.unmarshallMessage(body);
+	}
+
+	@Benchmark
+	public Message decode() throws MarshalException, ProtocolException {
+		frame.rewind();
+		return decoder.nextMessage(frame);
+	}
+}
@@ -0,0 +1,97 @@
+package netperf.benchmark;
+
+/*
+ * #%L
+ * Benchmarks
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.SpeedMeasurement;
+
+/**
+ * Encoding and decoding of each kind of {@link SpeedMeasurement} record:
+ * plain, with samples (variable length deltas), with datagram statistics and
+ * with a latency histogram.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+@SuppressWarnings("javadoc")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeedMeasurementBenchmark {
+
+	@Param({ "plain", "sampled", "datagram", "latency" })
+	public String kind;
+	private MessageMarshaller marshaller;
+	private SpeedMeasurement speed;
+	private ByteBuffer buffer;
+	private ByteBuffer body;
+
+	@Setup
+	public void setUp() {
+		marshaller = new MessageMarshaller();
+		speed = Fixtures.speed(kind);
+		buffer = ByteBuffer.allocateDirect(64 * 1024);
+		byte[] frame = marshaller.marshallSpeed(speed);
+		body = ByteBuffer.wrap(frame, MessageMarshaller.LENGTH_HEADER_SIZE,
+				frame.length - MessageMarshaller.LENGTH_HEADER_SIZE).slice();
+	}
+
+	@Benchmark
+	public byte[] marshallToArray() {
+		return marshaller.marshallSpeed(speed);
+	}
+
+	@Benchmark
+	public ByteBuffer marshallToBuffer() {
+		buffer.clear();
+		marshaller.marshallSpeed(speed, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public SpeedMeasurement unmarshall() {
+		body.rewind();
+		return marshaller.unmarshallSpeed(body);
+	}
+}
@@ -0,0 +1,183 @@
+package netperf.benchmark;
+
+/*
+ * #%L
+ * Benchmarks
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import netperf.protocol.TransferCommand;
+import netperf.protocol.TransferDuringFixedTime;
+import netperf.protocol.TransferWithFixedSize;
+
+/**
+ * Send loops of {@link TransferWithFixedSize} and
+ * {@link TransferDuringFixedTime}, each operation being one execution, while a
+ * background thread runs the matching read loop. Transfers go over a loopback
+ * TCP connection or an in-memory {@link Pipe}, and the bytes sent per second
+ * are reported next to the operations.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+@SuppressWarnings("javadoc")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	/**
+	 * Reported by JMH as a rate next to the primary result.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Sent {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * Reads from the pipe's source and writes to its sink, so both ends of a
+	 * transfer can share it.
+	 */
+	private static class PipeChannel implements ByteChannel {
+		private Pipe pipe;
+
+		PipeChannel(Pipe pipe) {
+			this.pipe = pipe;
+		}
+
+		@Override
+		public void close() throws IOException {
+			pipe.sink().close();
+			pipe.source().close();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return pipe.sink().isOpen() && pipe.source().isOpen();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return pipe.source().read(dst);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return pipe.sink().write(src);
+		}
+	}
+
+	@Param({ "loopback", "pipe" })
+	public String transport;
+	@Param({ "fixedSize", "fixedTime" })
+	public String command;
+	@Param({ "8192", "65536" })
+	public int blockSize;
+	private TransferCommand transfer;
+	private ByteChannel sender;
+	private ByteChannel reader;
+	private Thread readLoop;
+	private volatile boolean running;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		if (command.equals("fixedSize")) {
+			transfer = new TransferWithFixedSize(1024, blockSize);
+		} else {
+			transfer = new TransferDuringFixedTime(10, blockSize);
+		}
+		if (transport.equals("loopback")) {
+			try (ServerSocketChannel server = ServerSocketChannel.open()) {
+				server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				sender = SocketChannel.open(server.getLocalAddress());
+				reader = server.accept();
+			}
+		} else {
+			sender = new PipeChannel(Pipe.open());
+			reader = sender;
+		}
+		running = true;
+		readLoop = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (running) {
+						transfer.executeRead(reader);
+					}
+				} catch (IOException e) {
+					// Closed on tear down.
+				}
+			}
+		};
+		readLoop.setDaemon(true);
+		readLoop.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		running = false;
+		sender.close();
+		reader.close();
+		readLoop.join();
+	}
+
+	@Benchmark
+	public long send(Sent sent) throws IOException {
+		long bytes = transfer.executeSend(sender).getBytes();
+		sent.bytes += bytes;
+		return bytes;
+	}
+}
@@ -0,0 +1,611 @@
+package netperf.client;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.impl.NoOpLog;
+
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.FrameDecoder;
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.StartMessage;
+import netperf.protocol.StopMessage;
+import netperf.protocol.TransferCommand;
+
+/**
+ * Drives NetPerf servers without blocking: every request returns a
+ * {@link CompletableFuture} completed when the server answers.
+ *
+ * A single thread multiplexes every connection over one {@link Selector}, and
+ * each server gets one control connection shared by every request sent to
+ * it, so a single client keeps any amount of measurements in flight. Each
+ * {@link StartMessage} is tagged with its own
+ * {@link StartMessage#getRequestId()}, which the server echoes in its
+ * {@link ProgressMessage}s and {@link ResultMessage}s.
+ *
+ * Futures are completed and progress is reported on the client's thread, so
+ * callbacks doing blocking work should use the asynchronous variants of
+ * {@link CompletableFuture}. When a connection fails, every request in flight
+ * over it fails with the same exception, and the next request opens a new
+ * one. A request fails too when the server reports
+ * {@link ResultMessage#getError()} for any of its targets. Once the client is closed, or its thread stops on an unexpected error,
+ * every request still outstanding and every later one fails.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class NetPerfClient implements Closeable {
+
+	private static class Request {
+		private CompletableFuture<List<ResultMessage>> future;
+		private List<InetSocketAddress> targets;
+		private ResultMessage[] results;
+		private int remaining;
+		private Consumer<ProgressMessage> progress;
+
+		private Request(StartMessage start, Consumer<ProgressMessage> progress) {
+			this.future = new CompletableFuture<>();
+			this.targets = start.getAddresses();
+			this.results = new ResultMessage[targets.size()];
+			this.remaining = results.length;
+			this.progress = progress;
+		}
+
+		/**
+		 * Fail if any target failed, the other results are lost.
+		 */
+		private void complete() {
+			for (ResultMessage result : results) {
+				if (result.getError() != null) {
+					future.completeExceptionally(
+							new IOException("Measuring against " + result.getAddress() + " failed: " + result.getError()));
+					return;
+				}
+			}
+			future.complete(Arrays.asList(results));
+		}
+
+		/**
+		 * @return whether every target answered
+		 */
+		private boolean answer(ResultMessage result) {
+			// The same target may be requested more than once, fill the first
+			// slot still waiting for it.
+			for (int i = 0; i < results.length; i++) {
+				if (results[i] == null && targets.get(i).equals(result.getAddress())) {
+					results[i] = result;
+					return --remaining == 0;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Write {
+		private ByteBuffer frame;
+		private CompletableFuture<Void> written;
+
+		private Write(ByteBuffer frame, CompletableFuture<Void> written) {
+			this.frame = frame;
+			this.written = written;
+		}
+	}
+
+	/**
+	 * The control connection to a single server, only touched from the
+	 * client's thread.
+	 */
+	private class Connection {
+		private InetSocketAddress address;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private FrameDecoder decoder;
+		private Queue<Write> writes;
+		private Set<Integer> inFlight;
+
+		private Connection(InetSocketAddress address) throws IOException {
+			this.address = address;
+			this.decoder = new FrameDecoder();
+			this.writes = new ArrayDeque<>();
+			this.inFlight = new HashSet<>();
+			this.channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				boolean connected = channel.connect(address);
+				key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			} catch (IOException | RuntimeException e) {
+				// Unresolved addresses fail unchecked.
+				channel.close();
+				throw e;
+			}
+		}
+
+		private void send(ByteBuffer frame, CompletableFuture<Void> written) {
+			writes.add(new Write(frame, written));
+			if (channel.isConnected()) {
+				flush();
+			}
+		}
+
+		private void handle() {
+			try {
+				if (key.isConnectable()) {
+					channel.finishConnect();
+					key.interestOps(SelectionKey.OP_READ);
+					log.debug("Connected to " + address);
+					flush();
+				}
+				if (key.isValid() && key.isReadable()) {
+					read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					flush();
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void flush() {
+			try {
+				Write write;
+				while ((write = writes.peek()) != null) {
+					channel.write(write.frame);
+					if (write.frame.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					writes.poll();
+					if (write.written != null) {
+						write.written.complete(null);
+					}
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void read() throws IOException {
+			while (key.isValid()) {
+				Message message;
+				try {
+					message = decoder.nextMessage(channel);
+				} catch (MarshalException e) {
+					log.error("Error reading message from " + address, e);
+					continue;
+				}
+				if (message == null) {
+					if (decoder.isClosed()) {
+						throw new EOFException("Connection closed by " + address);
+					}
+					return;
+				}
+				dispatch(message);
+			}
+		}
+
+		private void dispatch(Message message) {
+			if (message instanceof ResultMessage) {
+				ResultMessage result = (ResultMessage) message;
+				Request request = requests.get(result.getRequestId());
+				if (request == null) {
+					log.warn("Unexpected " + result + " for request " + result.getRequestId());
+				} else if (request.answer(result)) {
+					requests.remove(result.getRequestId());
+					inFlight.remove(result.getRequestId());
+					request.complete();
+				}
+			} else if (message instanceof ProgressMessage) {
+				ProgressMessage progress = (ProgressMessage) message;
+				Request request = requests.get(progress.getRequestId());
+				if (request != null && request.progress != null) {
+					try {
+						request.progress.accept(progress);
+					} catch (RuntimeException e) {
+						log.error("Error reporting " + progress, e);
+					}
+				}
+			} else {
+				log.warn("Unexpected " + message + " from " + address);
+			}
+		}
+
+		/**
+		 * Let the server know when nothing is half written, then close.
+		 */
+		private void disconnect() {
+			if (writes.isEmpty() && channel.isConnected()) {
+				try {
+					channel.write(ByteBuffer.wrap(marshaller.marshallMessage(new DisconnectMessage())));
+				} catch (IOException | MarshalException e) {
+					log.debug("Error disconnecting from " + address, e);
+				}
+			}
+			fail(new ClosedChannelException());
+		}
+
+		private void fail(Throwable cause) {
+			connections.remove(address);
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Error closing connection to " + address, e);
+			}
+			for (Integer id : inFlight) {
+				Request request = requests.remove(id);
+				if (request != null) {
+					request.future.completeExceptionally(cause);
+				}
+			}
+			inFlight.clear();
+			for (Write write : writes) {
+				if (write.written != null) {
+					write.written.completeExceptionally(cause);
+				}
+			}
+			writes.clear();
+		}
+	}
+
+	private Selector selector;
+	private Thread loop;
+	private Queue<Runnable> tasks;
+	private MessageMarshaller marshaller;
+	private AtomicInteger ids;
+	private Map<InetSocketAddress, Connection> connections;
+	private Map<Integer, Request> requests;
+	private Set<CompletableFuture<?>> outstanding;
+	private volatile boolean closed;
+	private volatile Log log;
+
+	/**
+	 * Start the client's thread, connections are opened on first use.
+	 *
+	 * @throws IOException
+	 *             the selector could not be opened.
+	 */
+	public NetPerfClient() throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		marshaller = new MessageMarshaller();
+		ids = new AtomicInteger();
+		connections = new HashMap<>();
+		requests = new HashMap<>();
+		outstanding = Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<?>, Boolean>());
+		log = new NoOpLog();
+		loop = new Thread("NetPerf client") {
+			@Override
+			public void run() {
+				NetPerfClient.this.run();
+			}
+		};
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	/**
+	 * @param log
+	 *            the logger to use
+	 */
+	public void setLog(Log log) {
+		this.log = log;
+	}
+
+	/**
+	 * Measure from a source server against a single target.
+	 *
+	 * @param source
+	 *            the server sending the data first
+	 * @param target
+	 *            the server measured against
+	 * @param command
+	 *            the command to measure with
+	 * @return the result, with the speeds as reported by
+	 *         {@link ResultMessage#getSpeeds()}
+	 */
+	public CompletableFuture<ResultMessage> measure(InetSocketAddress source, InetSocketAddress target,
+			TransferCommand command) {
+		return measure(source, Collections.singletonList(target), command)
+				.thenApply(new Function<List<ResultMessage>, ResultMessage>() {
+					@Override
+					public ResultMessage apply(List<ResultMessage> results) {
+						return results.get(0);
+					}
+				});
+	}
+
+	/**
+	 * Measure from a source server against several targets at once.
+	 *
+	 * @param source
+	 *            the server sending the data first
+	 * @param targets
+	 *            the servers measured against
+	 * @param command
+	 *            the command to measure with
+	 * @return a result for each target, in the same order
+	 */
+	public CompletableFuture<List<ResultMessage>> measure(InetSocketAddress source, List<InetSocketAddress> targets,
+			TransferCommand command) {
+		return measure(source, new StartMessage(targets, command), null);
+	}
+
+	/**
+	 * Send a start message as it is, for measurements over several
+	 * connections, in both directions at once or with socket options.
+	 *
+	 * @param source
+	 *            the server receiving the message
+	 * @param start
+	 *            the message to send, its request id is overwritten
+	 * @param progress
+	 *            notified of every {@link ProgressMessage} of this request on
+	 *            the client's thread, may be null
+	 * @return a result for each address of the message, in the same order
+	 */
+	public CompletableFuture<List<ResultMessage>> measure(final InetSocketAddress source, StartMessage start,
+			Consumer<ProgressMessage> progress) {
+		final int id = nextId();
+		start.setRequestId(id);
+		final Request request = new Request(start, progress);
+		if (track(request.future).isDone()) {
+			return request.future;
+		}
+		if (start.getAddresses().isEmpty()) {
+			request.future.complete(Collections.<ResultMessage> emptyList());
+			return request.future;
+		}
+		final ByteBuffer frame;
+		try {
+			frame = ByteBuffer.wrap(marshaller.marshallMessage(start));
+		} catch (MarshalException | RuntimeException e) {
+			// Such as unresolved targets, which have no address to send.
+			request.future.completeExceptionally(e);
+			return request.future;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Connection connection = connection(source);
+					requests.put(id, request);
+					connection.inFlight.add(id);
+					connection.send(frame, null);
+				} catch (IOException | RuntimeException e) {
+					requests.remove(id);
+					request.future.completeExceptionally(e);
+				}
+			}
+		});
+		return request.future;
+	}
+
+	/**
+	 * Ask a server to stop, measurements in flight over its connection fail.
+	 *
+	 * @param server
+	 *            the server to stop
+	 * @return completed once the message is written
+	 */
+	public CompletableFuture<Void> stop(final InetSocketAddress server) {
+		final CompletableFuture<Void> written = new CompletableFuture<>();
+		if (track(written).isDone()) {
+			return written;
+		}
+		final ByteBuffer frame;
+		try {
+			frame = ByteBuffer.wrap(marshaller.marshallMessage(new StopMessage()));
+		} catch (MarshalException e) {
+			written.completeExceptionally(e);
+			return written;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection(server).send(frame, written);
+				} catch (IOException | RuntimeException e) {
+					written.completeExceptionally(e);
+				}
+			}
+		});
+		return written;
+	}
+
+	/**
+	 * Disconnect from every server and stop the client's thread, requests in
+	 * flight and any made afterwards fail with a {@link ClosedChannelException}.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Connection connection : new ArrayList<>(connections.values())) {
+					connection.disconnect();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					log.debug("Error closing selector", e);
+				}
+			}
+		});
+		if (Thread.currentThread() != loop) {
+			try {
+				loop.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private Connection connection(InetSocketAddress address) throws IOException {
+		Connection connection = connections.get(address);
+		if (connection == null) {
+			connection = new Connection(address);
+			connections.put(address, connection);
+		}
+		return connection;
+	}
+
+	/**
+	 * Run the task on the client's thread, as soon as the current selection
+	 * finishes.
+	 */
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Keep the future until completed, to fail it if the client's thread stops
+	 * first.
+	 *
+	 * @return the future, already failed if the client is closed
+	 */
+	private <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+		outstanding.add(future);
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable failure) {
+				outstanding.remove(future);
+			}
+		});
+		// Checked after adding, so either this or the client's thread stopping
+		// fails the future.
+		if (closed) {
+			future.completeExceptionally(new ClosedChannelException());
+		}
+		return future;
+	}
+
+	/**
+	 * @return a request id other than zero, which means no id
+	 */
+	private int nextId() {
+		int id;
+		do {
+			id = ids.incrementAndGet();
+		} while (id == 0);
+		return id;
+	}
+
+	private void run() {
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.error("Error running client task", e);
+					}
+				}
+				if (!selector.isOpen()) {
+					return;
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						Connection connection = (Connection) key.attachment();
+						try {
+							connection.handle();
+						} catch (RuntimeException e) {
+							log.error("Error handling connection to " + connection.address, e);
+							connection.fail(e);
+						}
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			log.error("Client stopped", e);
+		} finally {
+			stopped();
+		}
+	}
+
+	/**
+	 * Fail everything still outstanding once the client's thread stops,
+	 * whether closed or not.
+	 */
+	private void stopped() {
+		closed = true;
+		ClosedChannelException cause = new ClosedChannelException();
+		for (Connection connection : new ArrayList<>(connections.values())) {
+			connection.fail(cause);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.debug("Error closing selector", e);
+		}
+		for (CompletableFuture<?> future : new ArrayList<>(outstanding)) {
+			future.completeExceptionally(cause);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package netperf.controller;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.SocketSettings;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.StartMessage;
+import netperf.protocol.TransferDuringFixedTime;
+
+/**
+ * Searches the socket buffer size and block size that move data fastest from
+ * a source to a target, with short {@link TransferDuringFixedTime}
+ * measurements.
+ *
+ * The search first doubles the send and receive buffer sizes, both ends
+ * requesting the same, keeping the block size, and then doubles the block
+ * size keeping the fastest buffer size. Each pass stops at its bound or once
+ * {@link #PATIENCE} measurements in a row fail to beat the fastest one by the
+ * plateau ratio, so a path that saturates early is not measured up to the
+ * largest sizes.
+ *
+ * Speeds are those read by the target, the direction the buffers are tuned
+ * for.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class BufferTuning {
+
+	/**
+	 * Measurements in a row without a significant improvement that end a
+	 * pass.
+	 */
+	public static final int PATIENCE = 2;
+	private static final int HIS_READ_SPEED = 1;
+	private InetSocketAddress source;
+	private InetSocketAddress target;
+	private Log log;
+	private MessageMarshaller marshaller;
+	private long milliseconds;
+	private long warmupMillis;
+	private int minBufferSize;
+	private int maxBufferSize;
+	private int minBlockSize;
+	private int maxBlockSize;
+	private float plateau;
+
+	/**
+	 * A single measurement of the search.
+	 */
+	public static class Probe {
+		private int bufferSize;
+		private int blockSize;
+		private SpeedMeasurement speed;
+		private SocketSettings sourceSettings;
+		private SocketSettings targetSettings;
+
+		Probe(int bufferSize, int blockSize, ResultMessage result) {
+			this.bufferSize = bufferSize;
+			this.blockSize = blockSize;
+			this.speed = result.getSpeeds()[HIS_READ_SPEED];
+			this.sourceSettings = result.getSourceSettings();
+			this.targetSettings = result.getTargetSettings();
+		}
+
+		/**
+		 * @return the block size measured with
+		 */
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * @return the buffer size both ends requested
+		 */
+		public int getBufferSize() {
+			return bufferSize;
+		}
+
+		/**
+		 * @return the options the source was granted
+		 */
+		public SocketSettings getSourceSettings() {
+			return sourceSettings;
+		}
+
+		/**
+		 * @return the speed read by the target
+		 */
+		public SpeedMeasurement getSpeed() {
+			return speed;
+		}
+
+		/**
+		 * @return the options the target was granted
+		 */
+		public SocketSettings getTargetSettings() {
+			return targetSettings;
+		}
+	}
+
+	/**
+	 * @param source
+	 *            the server sending
+	 * @param target
+	 *            the server receiving
+	 * @param log
+	 *            the logger to use
+	 */
+	public BufferTuning(InetSocketAddress source, InetSocketAddress target, Log log) {
+		this.source = source;
+		this.target = target;
+		this.log = log;
+		this.marshaller = new MessageMarshaller();
+		this.milliseconds = 500;
+		this.minBufferSize = 64 * 1024;
+		this.maxBufferSize = 64 * 1024 * 1024;
+		this.minBlockSize = 8 * 1024;
+		this.maxBlockSize = 1024 * 1024;
+		this.plateau = 0.05f;
+	}
+
+	/**
+	 * @param curve
+	 *            as returned by {@link #tune()}
+	 * @return the fastest probe
+	 */
+	public static Probe best(List<Probe> curve) {
+		Probe best = null;
+		for (Probe probe : curve) {
+			if (best == null || probe.getSpeed().getSpeed() > best.getSpeed().getSpeed()) {
+				best = probe;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param curve
+	 *            as returned by {@link #tune()}
+	 * @return a table of every probe in the order measured, * marking the
+	 *         fastest
+	 */
+	public static String format(List<Probe> curve) {
+		Probe best = best(curve);
+		try (Formatter formatter = new Formatter()) {
+			formatter.format("%12s %12s %14s %14s %16s", "buffer", "block", "granted send", "granted receive",
+					"kb/s");
+			for (Probe probe : curve) {
+				formatter.format("%n%12d %12d %14s %14s %16.2f%s", probe.getBufferSize(), probe.getBlockSize(),
+						probe.getSourceSettings().getSendBufferSize(), probe.getTargetSettings().getReceiveBufferSize(),
+						probe.getSpeed().getSpeed(), probe == best ? " *" : "");
+			}
+			return formatter.toString();
+		}
+	}
+
+	/**
+	 * @param minBlockSize
+	 *            the first block size tried, 8 kb unless set
+	 * @param maxBlockSize
+	 *            the last block size tried, 1 mb unless set
+	 * @throws IllegalArgumentException
+	 *             the first size is not positive or is above the last one
+	 */
+	public void setBlockSizes(int minBlockSize, int maxBlockSize) {
+		checkRange("Block", minBlockSize, maxBlockSize);
+		this.minBlockSize = minBlockSize;
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	/**
+	 * @param minBufferSize
+	 *            the first buffer size tried, 64 kb unless set
+	 * @param maxBufferSize
+	 *            the last buffer size tried, 64 mb unless set
+	 * @throws IllegalArgumentException
+	 *             the first size is not positive or is above the last one
+	 */
+	public void setBufferSizes(int minBufferSize, int maxBufferSize) {
+		checkRange("Buffer", minBufferSize, maxBufferSize);
+		this.minBufferSize = minBufferSize;
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * @param milliseconds
+	 *            the duration of each measurement, 500 ms unless set
+	 */
+	public void setMilliseconds(long milliseconds) {
+		this.milliseconds = milliseconds;
+	}
+
+	/**
+	 * @param plateau
+	 *            the ratio a measurement must beat the fastest one by to keep
+	 *            a pass going, 0.05 unless set
+	 */
+	public void setPlateau(float plateau) {
+		this.plateau = plateau;
+	}
+
+	/**
+	 * @param warmupMillis
+	 *            the warm-up of each measurement, as in
+	 *            {@link TransferDuringFixedTime#setWarmupMillis(long)}, none
+	 *            unless set
+	 */
+	public void setWarmupMillis(long warmupMillis) {
+		this.warmupMillis = warmupMillis;
+	}
+
+	/**
+	 * Run the search.
+	 *
+	 * @return every probe in the order measured, the response curve
+	 * @throws IOException
+	 *             a server could not be reached
+	 * @throws MarshalException
+	 */
+	public List<Probe> tune() throws IOException, MarshalException {
+		List<Probe> curve = new ArrayList<>();
+		try (Socket socket = new Socket()) {
+			socket.connect(source);
+			int blockSize = Math.max(minBlockSize, Math.min(maxBlockSize, 64 * 1024));
+			log.info("Searching buffer sizes from " + minBufferSize + " to " + maxBufferSize + " bytes");
+			Probe best = null;
+			int flat = 0;
+			for (long size = minBufferSize; size <= maxBufferSize && flat < PATIENCE; size *= 2) {
+				Probe probe = measure(socket, (int) size, blockSize);
+				curve.add(probe);
+				flat = isSignificant(probe, best) ? 0 : flat + 1;
+				best = faster(probe, best);
+			}
+			log.info("Searching block sizes from " + minBlockSize + " to " + maxBlockSize + " bytes");
+			int bufferSize = best.getBufferSize();
+			// Each pass compares against its own fastest, small blocks start
+			// slower than the fastest of the previous pass.
+			best = null;
+			flat = 0;
+			for (long size = minBlockSize; size <= maxBlockSize && flat < PATIENCE; size *= 2) {
+				Probe probe;
+				if (size == blockSize) {
+					probe = find(curve, bufferSize, blockSize);
+				} else {
+					probe = measure(socket, bufferSize, (int) size);
+					curve.add(probe);
+				}
+				flat = isSignificant(probe, best) ? 0 : flat + 1;
+				best = faster(probe, best);
+			}
+			socket.getOutputStream().write(marshaller.marshallMessage(new DisconnectMessage()));
+		}
+		return curve;
+	}
+
+	/**
+	 * Each pass doubles the size from the first one until past the last one,
+	 * so it needs a positive start and an end no smaller than it to measure
+	 * anything.
+	 */
+	private static void checkRange(String name, int min, int max) {
+		if (min < 1) {
+			throw new IllegalArgumentException(name + " sizes must start at 1 byte or more, not " + min);
+		}
+		if (min > max) {
+			throw new IllegalArgumentException(
+					name + " sizes must start at or below where they end, not from " + min + " to " + max);
+		}
+	}
+
+	private static Probe find(List<Probe> curve, int bufferSize, int blockSize) {
+		for (Probe probe : curve) {
+			if (probe.getBufferSize() == bufferSize && probe.getBlockSize() == blockSize) {
+				return probe;
+			}
+		}
+		throw new IllegalStateException("No probe with a buffer of " + bufferSize + " and blocks of " + blockSize);
+	}
+
+	private static Probe faster(Probe probe, Probe best) {
+		return best == null || probe.getSpeed().getSpeed() > best.getSpeed().getSpeed() ? probe : best;
+	}
+
+	private boolean isSignificant(Probe probe, Probe best) {
+		return best == null || probe.getSpeed().getSpeed() > best.getSpeed().getSpeed() * (1 + plateau);
+	}
+
+	private Probe measure(Socket socket, int bufferSize, int blockSize) throws IOException, MarshalException {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		addresses.add(target);
+		TransferDuringFixedTime command = new TransferDuringFixedTime(milliseconds, blockSize);
+		command.setWarmupMillis(warmupMillis);
+		command.setSampleInterval(0);
+		StartMessage start = new StartMessage(addresses, command);
+		start.getSettings().setSendBufferSize(bufferSize);
+		start.getSettings().setReceiveBufferSize(bufferSize);
+		socket.getOutputStream().write(marshaller.marshallMessage(start));
+		InputStream is = socket.getInputStream();
+		while (true) {
+			Message message = marshaller.unmarshallMessage(is);
+			if (message instanceof ResultMessage) {
+				if (((ResultMessage) message).getError() != null) {
+					throw new IOException("Measuring buffer " + bufferSize + " bytes, blocks of " + blockSize
+							+ " bytes failed: " + ((ResultMessage) message).getError());
+				}
+				Probe probe = new Probe(bufferSize, blockSize, (ResultMessage) message);
+				log.info("Buffer " + bufferSize + " bytes, blocks of " + blockSize + " bytes: " + probe.getSpeed());
+				return probe;
+			}
+			log.debug(message);
+		}
+	}
+}
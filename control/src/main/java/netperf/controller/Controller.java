@@ -26,29 +26,94 @@ package netperf.controller;
  * #L%
  */
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Formatter;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import org.apache.commons.logging.Log;
 import org.apache.commons.logging.impl.SimpleLog;
 
+import netperf.client.NetPerfClient;
 import netperf.protocol.DisconnectMessage;
+import netperf.protocol.Message;
 import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.SocketSettings;
 import netperf.protocol.SpeedMeasurement;
 import netperf.protocol.StartMessage;
 import netperf.protocol.TransferCommand;
+import netperf.protocol.TransferDatagramsAtFixedRate;
 import netperf.protocol.TransferDuringFixedTime;
+import netperf.protocol.TransferPingPong;
 import netperf.protocol.TransferWithFixedSize;
+import netperf.protocol.TransferWithZeroCopy;
+import netperf.store.MeasurementRollups;
+import netperf.store.MeasurementStore;
+import netperf.store.Rollup;
 
 @SuppressWarnings("javadoc")
 public class Controller {
 
+	private static final int DEFAULT_PORT = 1990;
 	private static MessageMarshaller marshaller = new MessageMarshaller();
 
+	/**
+	 * Without arguments, run every kind of measurement between localhost:1990
+	 * and localhost:1991.
+	 * 
+	 * @param args
+	 *            <code>--mesh host[:port]... [--time ms] [--block-size bytes] [--warmup ms|auto] [--verify]
+	 *            [--fresh] [--priority n] [--store directory] [--send-buffer bytes] [--receive-buffer bytes]
+	 *            [--no-delay] [--traffic-class tos] [--linger seconds]</code>
+	 *            to measure every pair of the given servers instead,
+	 *            checksumming the transferred data if asked to, over new
+	 *            connections between servers if asked to, ahead of
+	 *            measurements of lower priority waiting on the servers, appending the
+	 *            speeds to a {@link MeasurementStore} if given, or
+	 *            <code>--query directory source target [--command text] [--days n] [--window hours]</code>
+	 *            to print percentiles of the speeds stored from a source to a
+	 *            target over the last days, 30 unless given, per hour unless
+	 *            given, or
+	 *            <code>--tune source[:port] target[:port] [--time ms] [--buffers min max] [--blocks min max] [--plateau percent] [--warmup ms|auto]</code>
+	 *            to search the {@link BufferTuning} that moves data fastest
+	 *            from the source to the target, or
+	 *            <code>--async source[:port] target[:port]... [--count n] [--time ms] [--priority n]</code>
+	 *            to measure from the source against every target n times at
+	 *            once through a {@link NetPerfClient}, reporting how long each
+	 *            measurement waited for the servers to admit it.
+	 * @throws Exception
+	 */
 	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && "--mesh".equals(args[0])) {
+			mesh(args);
+			return;
+		}
+		if (args.length > 3 && "--query".equals(args[0])) {
+			query(args);
+			return;
+		}
+		if (args.length > 2 && "--tune".equals(args[0])) {
+			tune(args);
+			return;
+		}
+		if (args.length > 2 && "--async".equals(args[0])) {
+			async(args);
+			return;
+		}
 		try (Socket socket = new Socket()) {
 			SimpleLog log = new SimpleLog("Controller");
 
@@ -66,15 +131,22 @@ public class Controller {
 
 			boolean size = true;
 			boolean time = true;
+			boolean zeroCopy = true;
+			boolean parallel = true;
+			boolean datagrams = true;
+			boolean latency = true;
+			boolean duplex = true;
+			boolean tuned = true;
+			int blockSize = 64 * 1024;
 
 			if (size) {
 				log.info("++++ Size ++++");
 				long kilobytes = 1024 * 1024 * 1;
 				log.info("Requesting transfer of " + kilobytes + " kb");
-				TransferCommand command = new TransferWithFixedSize(kilobytes);
+				TransferCommand command = new TransferWithFixedSize(kilobytes, blockSize);
 				os.write(marshaller.marshallMessage(new StartMessage(addresses, command)));
 				log.info("Awaiting speed count");
-				SpeedMeasurement[] speeds = marshaller.unmarshallSpeeds(is);
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
 				log.info("Got " + speeds.length + " speeds");
 				for (SpeedMeasurement speed : speeds) {
 					log.info(speed);
@@ -83,12 +155,101 @@ public class Controller {
 			if (time) {
 				log.info("++++ Time ++++");
 				long milliseconds = 1000 * 1;
-				log.info("Requesting transfer during " + milliseconds + " ms");
-				TransferCommand command = new TransferDuringFixedTime(milliseconds);
+				TransferDuringFixedTime command = new TransferDuringFixedTime(milliseconds, blockSize);
+				// Leave slow start out of such a short measurement.
+				command.setWarmupMillis(TransferDuringFixedTime.AUTOMATIC_WARMUP);
+				log.info("Requesting " + command);
 				os.write(marshaller.marshallMessage(new StartMessage(addresses, command)));
 
 				log.info("Awaiting speed count");
-				SpeedMeasurement[] speeds = marshaller.unmarshallSpeeds(is);
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
+				log.info("Got " + speeds.length + " speeds");
+				for (SpeedMeasurement speed : speeds) {
+					log.info(speed);
+					log.info("every " + speed.getSampleInterval() + " ms: " + Arrays.toString(speed.getSampleSpeeds()));
+				}
+			}
+			if (zeroCopy) {
+				log.info("++++ Zero Copy ++++");
+				long kilobytes = 1024 * 1024 * 1;
+				log.info("Requesting zero copy transfer of " + kilobytes + " kb");
+				TransferCommand command = new TransferWithZeroCopy(kilobytes);
+				os.write(marshaller.marshallMessage(new StartMessage(addresses, command)));
+				log.info("Awaiting speed count");
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
+				log.info("Got " + speeds.length + " speeds");
+				for (SpeedMeasurement speed : speeds) {
+					log.info(speed);
+				}
+			}
+			if (parallel) {
+				log.info("++++ Parallel ++++");
+				long milliseconds = 1000 * 1;
+				int parallelism = 4;
+				log.info("Requesting transfer during " + milliseconds + " ms over " + parallelism + " connections");
+				StartMessage message = new StartMessage(addresses, new TransferDuringFixedTime(milliseconds, blockSize));
+				message.setParallelism(parallelism);
+				os.write(marshaller.marshallMessage(message));
+				log.info("Awaiting speed count");
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
+				log.info("Got " + speeds.length + " speeds");
+				for (int i = 0; i < speeds.length; i++) {
+					log.info((i < 4 ? "aggregate " : "stream " + (i / 4 - 1) + " ") + speeds[i]);
+				}
+			}
+			if (datagrams) {
+				log.info("++++ Datagrams ++++");
+				long milliseconds = 1000 * 1;
+				long kilobytesPerSecond = 10 * 1024;
+				log.info("Requesting datagrams at " + kilobytesPerSecond + " kb/s during " + milliseconds + " ms");
+				TransferCommand command = new TransferDatagramsAtFixedRate(milliseconds, kilobytesPerSecond, 1400);
+				os.write(marshaller.marshallMessage(new StartMessage(addresses, command)));
+				log.info("Awaiting speed count");
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
+				log.info("Got " + speeds.length + " speeds");
+				for (SpeedMeasurement speed : speeds) {
+					log.info(speed);
+				}
+			}
+			if (latency) {
+				log.info("++++ Latency ++++");
+				long roundTrips = 10000;
+				long milliseconds = 1000 * 5;
+				log.info("Requesting " + roundTrips + " round trips during at most " + milliseconds + " ms");
+				TransferCommand command = new TransferPingPong(roundTrips, milliseconds);
+				os.write(marshaller.marshallMessage(new StartMessage(addresses, command)));
+				log.info("Awaiting speed count");
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
+				log.info("Got " + speeds.length + " speeds");
+				for (SpeedMeasurement speed : speeds) {
+					log.info(speed);
+				}
+			}
+			if (duplex) {
+				log.info("++++ Full Duplex ++++");
+				long milliseconds = 1000 * 1;
+				log.info("Requesting transfer in both directions at once during " + milliseconds + " ms");
+				StartMessage message = new StartMessage(addresses, new TransferDuringFixedTime(milliseconds, blockSize));
+				message.setBidirectional(true);
+				os.write(marshaller.marshallMessage(message));
+				log.info("Awaiting speed count");
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
+				log.info("Got " + speeds.length + " speeds");
+				for (SpeedMeasurement speed : speeds) {
+					log.info(speed);
+				}
+			}
+			if (tuned) {
+				log.info("++++ Socket Options ++++");
+				long milliseconds = 1000 * 1;
+				StartMessage message = new StartMessage(addresses, new TransferDuringFixedTime(milliseconds, blockSize));
+				message.getSettings().setSendBufferSize(4 * 1024 * 1024);
+				message.getSettings().setReceiveBufferSize(4 * 1024 * 1024);
+				message.getSettings().setNoDelay(true);
+				log.info("Requesting transfer during " + milliseconds + " ms with " + message.getSettings());
+				os.write(marshaller.marshallMessage(message));
+				log.info("Awaiting speed count");
+				SpeedMeasurement[] speeds = awaitSpeeds(is, log);
 				log.info("Got " + speeds.length + " speeds");
 				for (SpeedMeasurement speed : speeds) {
 					log.info(speed);
@@ -99,4 +260,221 @@ public class Controller {
 			log.info("End");
 		}
 	}
+
+	private static void mesh(String[] args) throws Exception {
+		SimpleLog log = new SimpleLog("Controller");
+		List<InetSocketAddress> servers = new ArrayList<>();
+		long milliseconds = 1000;
+		int blockSize = 64 * 1024;
+		Path store = null;
+		long warmupMillis = 0;
+		boolean verifying = false;
+		boolean fresh = false;
+		int priority = 0;
+		SocketSettings settings = new SocketSettings();
+		for (int i = 1; i < args.length; i++) {
+			if ("--time".equals(args[i]) && i + 1 < args.length) {
+				milliseconds = Long.parseLong(args[++i]);
+			} else if ("--block-size".equals(args[i]) && i + 1 < args.length) {
+				blockSize = Integer.parseInt(args[++i]);
+			} else if ("--warmup".equals(args[i]) && i + 1 < args.length) {
+				warmupMillis = warmup(args[++i]);
+			} else if ("--verify".equals(args[i])) {
+				verifying = true;
+			} else if ("--fresh".equals(args[i])) {
+				fresh = true;
+			} else if ("--priority".equals(args[i]) && i + 1 < args.length) {
+				priority = Integer.parseInt(args[++i]);
+			} else if ("--store".equals(args[i]) && i + 1 < args.length) {
+				store = Paths.get(args[++i]);
+			} else if ("--send-buffer".equals(args[i]) && i + 1 < args.length) {
+				settings.setSendBufferSize(Integer.parseInt(args[++i]));
+			} else if ("--receive-buffer".equals(args[i]) && i + 1 < args.length) {
+				settings.setReceiveBufferSize(Integer.parseInt(args[++i]));
+			} else if ("--no-delay".equals(args[i])) {
+				settings.setNoDelay(true);
+			} else if ("--traffic-class".equals(args[i]) && i + 1 < args.length) {
+				settings.setTrafficClass(Integer.decode(args[++i]));
+			} else if ("--linger".equals(args[i]) && i + 1 < args.length) {
+				settings.setLinger(Integer.parseInt(args[++i]));
+			} else {
+				servers.add(address(args[i]));
+			}
+		}
+		TransferDuringFixedTime command = new TransferDuringFixedTime(milliseconds, blockSize);
+		command.setWarmupMillis(warmupMillis);
+		command.setVerifying(verifying);
+		// Only results matter for the matrix.
+		command.setSampleInterval(0);
+		MeshMeasurement mesh = new MeshMeasurement(servers, command, log);
+		mesh.setSettings(settings);
+		mesh.setFreshConnections(fresh);
+		mesh.setPriority(priority);
+		log.info("++++ Mesh of " + servers.size() + " servers ++++");
+		long start = System.currentTimeMillis();
+		SpeedMeasurement[][] matrix = mesh.measure();
+		log.info("Measured in " + (System.currentTimeMillis() - start) + " ms, * marks host bound speeds, ! corrupted data");
+		System.out.println(mesh.format(matrix));
+		if (store != null) {
+			try (MeasurementStore measurements = new MeasurementStore(store)) {
+				mesh.store(matrix, measurements);
+				log.info("Stored in " + store + ", " + measurements.count() + " measurements so far");
+			}
+		}
+	}
+
+	private static void tune(String[] args) throws IOException, MarshalException {
+		SimpleLog log = new SimpleLog("Controller");
+		BufferTuning tuning = new BufferTuning(address(args[1]), address(args[2]), log);
+		for (int i = 3; i + 1 < args.length; i++) {
+			if ("--time".equals(args[i])) {
+				tuning.setMilliseconds(Long.parseLong(args[++i]));
+			} else if ("--buffers".equals(args[i]) && i + 2 < args.length) {
+				tuning.setBufferSizes(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]));
+			} else if ("--blocks".equals(args[i]) && i + 2 < args.length) {
+				tuning.setBlockSizes(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]));
+			} else if ("--plateau".equals(args[i])) {
+				tuning.setPlateau(Float.parseFloat(args[++i]) / 100);
+			} else if ("--warmup".equals(args[i])) {
+				tuning.setWarmupMillis(warmup(args[++i]));
+			}
+		}
+		log.info("++++ Tuning " + args[1] + " to " + args[2] + " ++++");
+		List<BufferTuning.Probe> curve = tuning.tune();
+		BufferTuning.Probe best = BufferTuning.best(curve);
+		System.out.println(BufferTuning.format(curve));
+		System.out.println("Best: buffer of " + best.getBufferSize() + " bytes, blocks of " + best.getBlockSize()
+				+ " bytes at " + best.getSpeed() + " after " + curve.size() + " measurements");
+	}
+
+	private static void async(String[] args) throws IOException {
+		SimpleLog log = new SimpleLog("Controller");
+		InetSocketAddress source = address(args[1]);
+		List<InetSocketAddress> targets = new ArrayList<>();
+		int count = 1;
+		long milliseconds = 1000;
+		int priority = 0;
+		for (int i = 2; i < args.length; i++) {
+			if ("--count".equals(args[i]) && i + 1 < args.length) {
+				count = Integer.parseInt(args[++i]);
+			} else if ("--priority".equals(args[i]) && i + 1 < args.length) {
+				priority = Integer.parseInt(args[++i]);
+			} else if ("--time".equals(args[i]) && i + 1 < args.length) {
+				milliseconds = Long.parseLong(args[++i]);
+			} else {
+				targets.add(address(args[i]));
+			}
+		}
+		log.info("++++ " + count + " measurements at once from " + args[1] + " to each of " + targets.size()
+				+ " targets ++++");
+		List<CompletableFuture<List<ResultMessage>>> results = new ArrayList<>();
+		long start = System.currentTimeMillis();
+		try (NetPerfClient client = new NetPerfClient()) {
+			client.setLog(log);
+			for (int i = 0; i < count; i++) {
+				for (InetSocketAddress target : targets) {
+					TransferDuringFixedTime command = new TransferDuringFixedTime(milliseconds);
+					// Only results matter, without progress in between.
+					command.setSampleInterval(0);
+					StartMessage message = new StartMessage(Collections.singletonList(target), command);
+					message.setPriority(priority);
+					results.add(client.measure(source, message, null));
+				}
+			}
+			try {
+				CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).join();
+			} catch (CompletionException e) {
+				// Reported along with each result.
+			}
+		}
+		log.info("Measured in " + (System.currentTimeMillis() - start) + " ms");
+		for (CompletableFuture<List<ResultMessage>> future : results) {
+			ResultMessage result;
+			try {
+				result = future.join().get(0);
+			} catch (CompletionException e) {
+				System.out.println(args[1] + " failed: " + e.getCause().getMessage());
+				continue;
+			}
+			SpeedMeasurement[] speeds = result.getSpeeds();
+			System.out.println(args[1] + " -> " + result.getAddress() + ": " + speeds[1] + ", back: " + speeds[2]
+					+ ", queued " + result.getQueueMillis() + " ms, target admitted in "
+					+ result.getTargetQueueMillis() + " ms");
+		}
+	}
+
+	/**
+	 * @param warmup
+	 *            milliseconds or auto
+	 * @return the warm-up for {@link TransferDuringFixedTime#setWarmupMillis(long)}
+	 */
+	private static long warmup(String warmup) {
+		return "auto".equals(warmup) ? TransferDuringFixedTime.AUTOMATIC_WARMUP : Long.parseLong(warmup);
+	}
+
+	/**
+	 * @param server
+	 *            host[:port], {@link #DEFAULT_PORT} if not given
+	 */
+	private static InetSocketAddress address(String server) {
+		int colon = server.lastIndexOf(':');
+		if (colon < 0) {
+			return new InetSocketAddress(server, DEFAULT_PORT);
+		}
+		return new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+	}
+
+	private static void query(String[] args) throws IOException {
+		String command = null;
+		long days = 30;
+		long hours = 1;
+		for (int i = 4; i + 1 < args.length; i++) {
+			if ("--command".equals(args[i])) {
+				command = args[++i];
+			} else if ("--days".equals(args[i])) {
+				days = Long.parseLong(args[++i]);
+			} else if ("--window".equals(args[i])) {
+				hours = Long.parseLong(args[++i]);
+			}
+		}
+		long to = System.currentTimeMillis();
+		long from = to - days * 24 * MeasurementRollups.BUCKET_MILLIS;
+		try (MeasurementStore store = new MeasurementStore(Paths.get(args[1]))) {
+			long start = System.nanoTime();
+			NavigableMap<Long, Rollup> windows = store.getRollups().query(args[2], args[3], command, from, to,
+					hours * MeasurementRollups.BUCKET_MILLIS);
+			long elapsed = System.nanoTime() - start;
+			try (Formatter formatter = new Formatter()) {
+				formatter.format("%-20s %8s %14s %14s %14s %14s %14s %14s", "window", "count", "min kb/s", "p5 kb/s",
+						"p50 kb/s", "p95 kb/s", "max kb/s", "mean kb/s");
+				for (Entry<Long, Rollup> window : windows.entrySet()) {
+					Rollup rollup = window.getValue();
+					formatter.format("%n%-20s %8d %14.2f %14.2f %14.2f %14.2f %14.2f %14.2f",
+							String.format("%tF %<tR", window.getKey()),
+							rollup.getCount(), rollup.getMin() / 1024f, rollup.getPercentile(5) / 1024f,
+							rollup.getPercentile(50) / 1024f, rollup.getPercentile(95) / 1024f,
+							rollup.getMax() / 1024f, rollup.getMean() / 1024f);
+				}
+				System.out.println(formatter);
+			}
+			System.out.println(windows.size() + " windows from " + store.count() + " measurements in "
+					+ elapsed / 1000 + " us");
+		}
+	}
+
+	private static SpeedMeasurement[] awaitSpeeds(InputStream is, Log log) throws MarshalException, IOException {
+		while (true) {
+			Message message = marshaller.unmarshallMessage(is);
+			if (message instanceof ResultMessage) {
+				ResultMessage result = (ResultMessage) message;
+				if (result.getError() != null) {
+					throw new IOException("Measurement failed: " + result.getError());
+				}
+				log.info("Source granted " + result.getSourceSettings() + ", target granted "
+						+ result.getTargetSettings());
+				return result.getSpeeds();
+			}
+			log.info(message);
+		}
+	}
 }
@@ -0,0 +1,300 @@
+package netperf.controller;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.SocketSettings;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.StartMessage;
+import netperf.protocol.TransferCommand;
+import netperf.store.MeasurementStore;
+import netperf.store.StoredMeasurement;
+
+/**
+ * Measures every pair of a list of servers, in both directions, to build the
+ * full bandwidth matrix.
+ *
+ * A measurement between a source and a target already covers both
+ * directions, one after the other, so each unordered pair is measured once.
+ * Pairs are scheduled in rounds with the circle method: within a round every
+ * server belongs to a single pair, so pairs run at the same time without a
+ * server sending or receiving for two of them. N servers take N - 1 rounds,
+ * N when odd, instead of N * (N - 1) / 2 measurements one after the other.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class MeshMeasurement {
+
+	private static final int HIS_READ_SPEED = 1;
+	private static final int MY_READ_SPEED = 2;
+	private List<InetSocketAddress> servers;
+	private TransferCommand command;
+	private Log log;
+	private MessageMarshaller marshaller;
+	private SocketSettings settings;
+	private boolean freshConnections;
+	private int priority;
+
+	/**
+	 * @param servers
+	 *            the servers to measure between, at least two
+	 * @param command
+	 *            the command each pair measures with
+	 * @param log
+	 *            the logger to use
+	 */
+	public MeshMeasurement(List<InetSocketAddress> servers, TransferCommand command, Log log) {
+		if (servers.size() < 2) {
+			throw new IllegalArgumentException("A mesh needs at least two servers");
+		}
+		this.servers = servers;
+		this.command = command;
+		this.log = log;
+		this.marshaller = new MessageMarshaller();
+		this.settings = new SocketSettings();
+	}
+
+	/**
+	 * Pair servers with the circle method: the first one stays put while the
+	 * others rotate, and an odd amount of servers gets a placeholder that
+	 * leaves its partner idle for the round.
+	 *
+	 * @param servers
+	 *            amount of servers
+	 * @return for each round, the pairs of server indexes measured in it, the
+	 *         first one being the source
+	 */
+	public static List<List<int[]>> rounds(int servers) {
+		int slots = servers % 2 == 0 ? servers : servers + 1;
+		List<Integer> circle = new ArrayList<>();
+		for (int i = 0; i < slots; i++) {
+			circle.add(i);
+		}
+		List<List<int[]>> rounds = new ArrayList<>();
+		for (int round = 0; round < slots - 1; round++) {
+			List<int[]> pairs = new ArrayList<>();
+			for (int i = 0; i < slots / 2; i++) {
+				int first = circle.get(i);
+				int second = circle.get(slots - 1 - i);
+				if (first < servers && second < servers) {
+					// Alternate who sources, so no server always goes first.
+					pairs.add(round % 2 == 0 ? new int[] { first, second } : new int[] { second, first });
+				}
+			}
+			rounds.add(pairs);
+			Collections.rotate(circle.subList(1, slots), 1);
+		}
+		return rounds;
+	}
+
+	/**
+	 * Run every round, one after the other, the pairs of each round at once.
+	 *
+	 * @return the speed from each server, the row, to each other server, the
+	 *         column, as measured by the receiver, null in the diagonal
+	 * @throws IOException
+	 *             a server could not be reached
+	 * @throws MarshalException
+	 * @throws InterruptedException
+	 */
+	public SpeedMeasurement[][] measure() throws IOException, MarshalException, InterruptedException {
+		final SpeedMeasurement[][] matrix = new SpeedMeasurement[servers.size()][servers.size()];
+		final Socket[] sockets = new Socket[servers.size()];
+		try {
+			for (int i = 0; i < sockets.length; i++) {
+				sockets[i] = new Socket();
+				sockets[i].connect(servers.get(i));
+			}
+			List<List<int[]>> rounds = rounds(servers.size());
+			for (int round = 0; round < rounds.size(); round++) {
+				log.info("Round " + (round + 1) + " of " + rounds.size() + ": " + rounds.get(round).size() + " pairs");
+				List<Thread> threads = new ArrayList<>();
+				final Exception[] failure = new Exception[1];
+				for (final int[] pair : rounds.get(round)) {
+					Thread thread = new Thread("Measuring " + servers.get(pair[0]) + " and " + servers.get(pair[1])) {
+						@Override
+						public void run() {
+							try {
+								SpeedMeasurement[] speeds = measure(sockets[pair[0]], servers.get(pair[1]));
+								matrix[pair[0]][pair[1]] = speeds[HIS_READ_SPEED];
+								matrix[pair[1]][pair[0]] = speeds[MY_READ_SPEED];
+							} catch (UncheckedIOException e) {
+								// The server disconnected while reading its
+								// answer.
+								failure[0] = e.getCause();
+							} catch (IOException | MarshalException | RuntimeException e) {
+								failure[0] = e;
+							}
+						}
+					};
+					threads.add(thread);
+					thread.start();
+				}
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				// A pair left unmeasured must not pass for an empty cell.
+				if (failure[0] instanceof IOException) {
+					throw (IOException) failure[0];
+				} else if (failure[0] instanceof RuntimeException) {
+					throw (RuntimeException) failure[0];
+				} else if (failure[0] != null) {
+					throw (MarshalException) failure[0];
+				}
+			}
+			for (Socket socket : sockets) {
+				socket.getOutputStream().write(marshaller.marshallMessage(new DisconnectMessage()));
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * @param matrix
+	 *            as returned by {@link #measure()}
+	 * @return a table of the speeds in kilobytes per second, each row being a
+	 *         sender, marking with ! the transfers whose data was corrupted
+	 */
+	public String format(SpeedMeasurement[][] matrix) {
+		try (Formatter formatter = new Formatter()) {
+			formatter.format("%-24s", "from \\ to");
+			for (InetSocketAddress server : servers) {
+				formatter.format(" %24s", name(server));
+			}
+			for (int from = 0; from < matrix.length; from++) {
+				InetSocketAddress server = servers.get(from);
+				formatter.format("%n%-24s", name(server));
+				for (int to = 0; to < matrix.length; to++) {
+					formatter.format(" %24s", matrix[from][to] == null ? "-"
+							: String.format("%.2f kb/s%s%s", matrix[from][to].getSpeed(),
+									matrix[from][to].isHostBound() ? "*" : "",
+									matrix[from][to].isCorrupted() ? "!" : ""));
+				}
+			}
+			return formatter.toString();
+		}
+	}
+
+	/**
+	 * @param settings
+	 *            the options of every measurement connection
+	 */
+	public void setSettings(SocketSettings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * @param freshConnections
+	 *            whether sources open new connections to measure, instead of
+	 *            reusing the ones kept from previous measurements
+	 */
+	public void setFreshConnections(boolean freshConnections) {
+		this.freshConnections = freshConnections;
+	}
+
+	/**
+	 * @param priority
+	 *            higher runs first among measurements waiting on the same
+	 *            server interface
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Append every speed of the matrix to a store, tagged with its sender,
+	 * receiver and command and timestamped when it started.
+	 *
+	 * @param matrix
+	 *            as returned by {@link #measure()}
+	 * @param store
+	 * @throws IOException
+	 */
+	public void store(SpeedMeasurement[][] matrix, MeasurementStore store) throws IOException {
+		for (int from = 0; from < matrix.length; from++) {
+			for (int to = 0; to < matrix.length; to++) {
+				SpeedMeasurement speed = matrix[from][to];
+				if (speed != null) {
+					store.append(new StoredMeasurement(speed.getStart(), name(servers.get(from)),
+							name(servers.get(to)), command.toString(), speed));
+				}
+			}
+		}
+	}
+
+	private static String name(InetSocketAddress server) {
+		return server.getHostString() + ":" + server.getPort();
+	}
+
+	private SpeedMeasurement[] measure(Socket source, InetSocketAddress target)
+			throws IOException, MarshalException {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		addresses.add(target);
+		StartMessage start = new StartMessage(addresses, command);
+		start.setSettings(settings);
+		start.setFreshConnections(freshConnections);
+		start.setPriority(priority);
+		source.getOutputStream().write(marshaller.marshallMessage(start));
+		InputStream is = source.getInputStream();
+		while (true) {
+			Message message = marshaller.unmarshallMessage(is);
+			if (message instanceof ResultMessage) {
+				ResultMessage result = (ResultMessage) message;
+				if (result.getError() != null) {
+					throw new IOException("Measuring against " + target + " failed: " + result.getError());
+				}
+				log.info("Measuring against " + target + " granted " + result.getSourceSettings() + ", target granted "
+						+ result.getTargetSettings() + ", queued " + result.getQueueMillis()
+						+ " ms, target admitted in " + result.getTargetQueueMillis() + " ms");
+				return result.getSpeeds();
+			}
+			log.debug(message);
+		}
+	}
+}
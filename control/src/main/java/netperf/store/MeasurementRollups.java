@@ -0,0 +1,245 @@
+package netperf.store;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import netperf.protocol.SpeedMeasurement;
+
+/**
+ * Hourly {@link Rollup}s of stored speeds for each source, target and command,
+ * so questions over long periods merge a rollup per hour instead of scanning
+ * every record.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class MeasurementRollups {
+
+	/**
+	 * The width of each rollup, queries use windows that are multiples of it.
+	 */
+	public static final long BUCKET_MILLIS = 60 * 60 * 1000;
+	private Map<String, Map<String, Map<String, NavigableMap<Long, Rollup>>>> series;
+
+	/**
+	 * Without rollups
+	 */
+	public MeasurementRollups() {
+		series = new HashMap<>();
+	}
+
+	/**
+	 * @param file
+	 *            as written by {@link #write(Path)}
+	 * @return the rollups read
+	 * @throws IOException
+	 */
+	public static MeasurementRollups read(Path file) throws IOException {
+		MeasurementRollups rollups = new MeasurementRollups();
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		while (buffer.hasRemaining()) {
+			NavigableMap<Long, Rollup> buckets = rollups.buckets(getString(buffer), getString(buffer),
+					getString(buffer));
+			for (int i = buffer.getInt(); i > 0; i--) {
+				buckets.put(buffer.getLong(), Rollup.read(buffer));
+			}
+		}
+		return rollups;
+	}
+
+	/**
+	 * @param speed
+	 * @return the speed in bytes per second, whole milliseconds being the
+	 *         resolution of a measurement
+	 */
+	public static long bytesPerSecond(SpeedMeasurement speed) {
+		return speed.getBytes() * 1000 / Math.max(1, speed.getEnd() - speed.getStart());
+	}
+
+	/**
+	 * @return the amount of speeds recorded
+	 */
+	public synchronized long count() {
+		long count = 0;
+		for (Map<String, Map<String, NavigableMap<Long, Rollup>>> targets : series.values()) {
+			for (Map<String, NavigableMap<Long, Rollup>> commands : targets.values()) {
+				for (NavigableMap<Long, Rollup> buckets : commands.values()) {
+					for (Rollup rollup : buckets.values()) {
+						count += rollup.getCount();
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param other
+	 *            rollups added to these ones
+	 */
+	public synchronized void merge(MeasurementRollups other) {
+		for (Entry<String, Map<String, Map<String, NavigableMap<Long, Rollup>>>> source : other.series.entrySet()) {
+			for (Entry<String, Map<String, NavigableMap<Long, Rollup>>> target : source.getValue().entrySet()) {
+				for (Entry<String, NavigableMap<Long, Rollup>> command : target.getValue().entrySet()) {
+					NavigableMap<Long, Rollup> buckets = buckets(source.getKey(), target.getKey(), command.getKey());
+					for (Entry<Long, Rollup> bucket : command.getValue().entrySet()) {
+						rollup(buckets, bucket.getKey()).merge(bucket.getValue());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Summarize the speeds from a source to a target during a period.
+	 *
+	 * @param source
+	 * @param target
+	 * @param command
+	 *            the command measured with, null for every command
+	 * @param from
+	 *            the start of the period in milliseconds since the epoch,
+	 *            rounded down to a whole hour
+	 * @param to
+	 *            the end of the period, exclusive
+	 * @param windowMillis
+	 *            the width of each window, rounded up to whole hours
+	 * @return a rollup for each window with speeds in it by the start of the
+	 *         window, in order
+	 */
+	public synchronized NavigableMap<Long, Rollup> query(String source, String target, String command, long from,
+			long to, long windowMillis) {
+		long window = Math.max(1, (windowMillis + BUCKET_MILLIS - 1) / BUCKET_MILLIS) * BUCKET_MILLIS;
+		long start = bucket(from);
+		NavigableMap<Long, Rollup> windows = new TreeMap<>();
+		Map<String, NavigableMap<Long, Rollup>> commands = series.getOrDefault(source, new HashMap<>())
+				.getOrDefault(target, new HashMap<>());
+		for (Entry<String, NavigableMap<Long, Rollup>> buckets : commands.entrySet()) {
+			if (command != null && !command.equals(buckets.getKey())) {
+				continue;
+			}
+			for (Entry<Long, Rollup> bucket : buckets.getValue().subMap(start, true, to, false).entrySet()) {
+				rollup(windows, start + (bucket.getKey() - start) / window * window).merge(bucket.getValue());
+			}
+		}
+		return windows;
+	}
+
+	/**
+	 * @param measurement
+	 *            added to the rollup of the hour it started in
+	 */
+	public synchronized void record(StoredMeasurement measurement) {
+		NavigableMap<Long, Rollup> buckets = buckets(measurement.getSource(), measurement.getTarget(),
+				measurement.getCommand());
+		rollup(buckets, bucket(measurement.getTimestamp())).record(bytesPerSecond(measurement.getSpeed()));
+	}
+
+	/**
+	 * Replace a file with these rollups, so a crash leaves either the old or
+	 * the new ones.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void write(Path file) throws IOException {
+		int size = 0;
+		for (Entry<String, Map<String, Map<String, NavigableMap<Long, Rollup>>>> source : series.entrySet()) {
+			for (Entry<String, Map<String, NavigableMap<Long, Rollup>>> target : source.getValue().entrySet()) {
+				for (Entry<String, NavigableMap<Long, Rollup>> command : target.getValue().entrySet()) {
+					size += stringSize(source.getKey()) + stringSize(target.getKey()) + stringSize(command.getKey())
+							+ Integer.SIZE / 8;
+					for (Rollup rollup : command.getValue().values()) {
+						size += Long.SIZE / 8 + rollup.size();
+					}
+				}
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Entry<String, Map<String, Map<String, NavigableMap<Long, Rollup>>>> source : series.entrySet()) {
+			for (Entry<String, Map<String, NavigableMap<Long, Rollup>>> target : source.getValue().entrySet()) {
+				for (Entry<String, NavigableMap<Long, Rollup>> command : target.getValue().entrySet()) {
+					putString(buffer, source.getKey());
+					putString(buffer, target.getKey());
+					putString(buffer, command.getKey());
+					buffer.putInt(command.getValue().size());
+					for (Entry<Long, Rollup> bucket : command.getValue().entrySet()) {
+						buffer.putLong(bucket.getKey());
+						bucket.getValue().write(buffer);
+					}
+				}
+			}
+		}
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temporary, buffer.array());
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long bucket(long timestamp) {
+		return timestamp - Math.floorMod(timestamp, BUCKET_MILLIS);
+	}
+
+	private NavigableMap<Long, Rollup> buckets(String source, String target, String command) {
+		return series.computeIfAbsent(source, s -> new HashMap<>()).computeIfAbsent(target, t -> new HashMap<>())
+				.computeIfAbsent(command, c -> new TreeMap<>());
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static Rollup rollup(NavigableMap<Long, Rollup> buckets, long start) {
+		Rollup rollup = buckets.get(start);
+		if (rollup == null) {
+			rollup = new Rollup();
+			buckets.put(start, rollup);
+		}
+		return rollup;
+	}
+
+	private static int stringSize(String string) {
+		return Short.SIZE / 8 + string.getBytes(StandardCharsets.UTF_8).length;
+	}
+}
@@ -0,0 +1,354 @@
+package netperf.store;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import netperf.protocol.MessageMarshaller;
+
+/**
+ * An append only store of {@link StoredMeasurement}s in a directory of
+ * memory mapped segment files, so appending costs a copy into memory and the
+ * operating system writes pages back on its own.
+ *
+ * Segments are preallocated files of a fixed size, named by their sequence
+ * number so they sort in order. Each record is its length followed by the
+ * timestamp, the source, target and command as UTF-8 strings prefixed by
+ * their length, and the speed as marshalled by {@link MessageMarshaller}. The
+ * length is written last, so a record interrupted by a crash reads as the
+ * zeroed end of the segment. A segment with no room left for a record is
+ * closed and the record goes to a new one.
+ *
+ * Every append also updates the store's {@link MeasurementRollups}. The
+ * rollups of a segment are written beside it when it is closed, so opening a
+ * store reads them instead of the closed segments and only rescans the
+ * active one.
+ *
+ * Appends and scans may come from different threads, scans only see records
+ * appended before they started.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class MeasurementStore implements Closeable {
+
+	/**
+	 * The size of each segment file unless specified.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String ROLLUP_SUFFIX = ".rollup";
+	private static final int LENGTH_SIZE = Integer.SIZE / 8;
+	private static final int STRING_LENGTH_SIZE = Short.SIZE / 8;
+
+	private Path directory;
+	private int segmentSize;
+	private MessageMarshaller marshaller;
+	private List<Path> segments;
+	private MappedByteBuffer active;
+	private long count;
+	private MeasurementRollups rollups;
+	private MeasurementRollups activeRollups;
+
+	/**
+	 * @param directory
+	 *            where segments are kept, created if missing
+	 * @throws IOException
+	 */
+	public MeasurementStore(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory
+	 *            where segments are kept, created if missing
+	 * @param segmentSize
+	 *            the size of new segment files, which bounds the size of a
+	 *            record
+	 * @throws IOException
+	 */
+	public MeasurementStore(Path directory, int segmentSize) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		this.marshaller = new MessageMarshaller();
+		this.segments = new ArrayList<>();
+		this.rollups = new MeasurementRollups();
+		this.activeRollups = new MeasurementRollups();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments);
+		for (int i = 0; i < segments.size() - 1; i++) {
+			MeasurementRollups closed = closedRollups(segments.get(i));
+			count += closed.count();
+			rollups.merge(closed);
+		}
+		if (segments.isEmpty()) {
+			roll();
+		} else {
+			active = map(segments.get(segments.size() - 1), MapMode.READ_WRITE);
+			// Leaves the active segment positioned at its end.
+			read(active, new Consumer<StoredMeasurement>() {
+				@Override
+				public void accept(StoredMeasurement measurement) {
+					activeRollups.record(measurement);
+					count++;
+				}
+			});
+			rollups.merge(activeRollups);
+		}
+	}
+
+	/**
+	 * @param record
+	 * @throws IOException
+	 *             a new segment could not be created
+	 * @throws IllegalArgumentException
+	 *             a tag is longer than 65535 bytes, or the record does not fit
+	 *             in a segment
+	 * @throws IllegalStateException
+	 *             the store was closed
+	 */
+	public synchronized void append(StoredMeasurement record) throws IOException {
+		checkOpen();
+		// Everything is checked before writing, a record rejected half way
+		// would leave a zero length ending the segment before later records.
+		byte[] source = tag(record.getSource());
+		byte[] target = tag(record.getTarget());
+		byte[] command = tag(record.getCommand());
+		int length = Long.SIZE / 8 + 3 * STRING_LENGTH_SIZE + source.length + target.length + command.length
+				+ marshaller.frameLength(record.getSpeed());
+		// Keep room for the zero length that marks the end.
+		if (LENGTH_SIZE + length + LENGTH_SIZE > segmentSize) {
+			throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment");
+		}
+		if (active.remaining() < LENGTH_SIZE + length + LENGTH_SIZE) {
+			roll();
+		}
+		int start = active.position();
+		try {
+			active.position(start + LENGTH_SIZE);
+			active.putLong(record.getTimestamp());
+			putString(active, source);
+			putString(active, target);
+			putString(active, command);
+			marshaller.marshallSpeed(record.getSpeed(), active);
+		} catch (RuntimeException e) {
+			// The length is still zero, the next record takes its place.
+			active.position(start);
+			throw e;
+		}
+		active.putInt(start, length);
+		count++;
+		rollups.record(record);
+		activeRollups.record(record);
+	}
+
+	/**
+	 * Unmap the active segment after writing it back, closing twice has no
+	 * effect.
+	 */
+	@Override
+	public synchronized void close() {
+		if (active != null) {
+			active.force();
+			active = null;
+		}
+	}
+
+	/**
+	 * @return the amount of records stored
+	 */
+	public synchronized long count() {
+		return count;
+	}
+
+	/**
+	 * Write the active segment back to disk, segments already closed were
+	 * written when rolling over.
+	 *
+	 * @throws IllegalStateException
+	 *             the store was closed
+	 */
+	public synchronized void flush() {
+		checkOpen();
+		active.force();
+	}
+
+	/**
+	 * @return the rollups of every record stored, kept up to date by
+	 *         {@link #append(StoredMeasurement)}
+	 */
+	public MeasurementRollups getRollups() {
+		return rollups;
+	}
+
+	/**
+	 * Read every record in the order they were appended.
+	 *
+	 * @param consumer
+	 *            given each record
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             the store was closed
+	 */
+	public void scan(Consumer<StoredMeasurement> consumer) throws IOException {
+		List<Path> files;
+		int end;
+		synchronized (this) {
+			checkOpen();
+			files = new ArrayList<>(segments);
+			end = active.position();
+		}
+		for (int i = 0; i < files.size(); i++) {
+			ByteBuffer buffer = map(files.get(i), MapMode.READ_ONLY);
+			if (i == files.size() - 1) {
+				buffer.limit(end);
+			}
+			read(buffer, consumer);
+		}
+	}
+
+	private void checkOpen() {
+		if (active == null) {
+			throw new IllegalStateException("Measurement store in " + directory + " is closed");
+		}
+	}
+
+	/**
+	 * @return the rollups of a closed segment, rebuilt and written if missing
+	 */
+	private MeasurementRollups closedRollups(Path segment) throws IOException {
+		Path file = rollupFile(segment);
+		if (Files.exists(file)) {
+			return MeasurementRollups.read(file);
+		}
+		final MeasurementRollups closed = new MeasurementRollups();
+		read(map(segment, MapMode.READ_ONLY), new Consumer<StoredMeasurement>() {
+			@Override
+			public void accept(StoredMeasurement measurement) {
+				closed.record(measurement);
+			}
+		});
+		closed.write(file);
+		return closed;
+	}
+
+	/**
+	 * Read records up to the end of a segment, leaving the buffer positioned
+	 * there.
+	 */
+	private void read(ByteBuffer buffer, Consumer<StoredMeasurement> consumer) {
+		while (buffer.remaining() >= LENGTH_SIZE) {
+			int length = buffer.getInt(buffer.position());
+			if (length == 0) {
+				break;
+			}
+			buffer.position(buffer.position() + LENGTH_SIZE);
+			ByteBuffer record = buffer.slice();
+			record.limit(length);
+			buffer.position(buffer.position() + length);
+			consumer.accept(read(record));
+		}
+	}
+
+	private StoredMeasurement read(ByteBuffer record) {
+		long timestamp = record.getLong();
+		String source = getString(record);
+		String target = getString(record);
+		String command = getString(record);
+		// Skip the frame's length, the record's length already bounds it.
+		record.position(record.position() + MessageMarshaller.LENGTH_HEADER_SIZE);
+		return new StoredMeasurement(timestamp, source, target, command, marshaller.unmarshallSpeed(record));
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private MappedByteBuffer map(Path segment, MapMode mode) throws IOException {
+		StandardOpenOption[] options = mode == MapMode.READ_ONLY ? new StandardOpenOption[] { StandardOpenOption.READ }
+				: new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+		try (FileChannel file = FileChannel.open(segment, options)) {
+			return file.map(mode, 0, file.size());
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] bytes) {
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Close the active segment, if any, and start a new one.
+	 */
+	private void roll() throws IOException {
+		if (active != null) {
+			active.force();
+			activeRollups.write(rollupFile(segments.get(segments.size() - 1)));
+			activeRollups = new MeasurementRollups();
+		}
+		Path segment = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segments.size(), SEGMENT_SUFFIX));
+		try (FileChannel file = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			active = file.map(MapMode.READ_WRITE, 0, segmentSize);
+		}
+		segments.add(segment);
+	}
+
+	private static byte[] tag(String tag) {
+		byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Tag longer than " + 0xFFFF + " bytes");
+		}
+		return bytes;
+	}
+
+	private static Path rollupFile(Path segment) {
+		String name = segment.getFileName().toString();
+		return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + ROLLUP_SUFFIX);
+	}
+}
@@ -0,0 +1,210 @@
+package netperf.store;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import netperf.protocol.LatencyHistogram;
+
+/**
+ * Summarizes the speeds measured during a window of time in bytes per second:
+ * their count, minimum, maximum and sum, and a sketch answering percentiles
+ * with the relative error of {@link LatencyHistogram}.
+ *
+ * Only the buckets of the sketch that counted something are kept, so a
+ * window costs memory in proportion to how spread its speeds are, and two
+ * rollups merge into the summary of both windows.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class Rollup {
+	private long count;
+	private long min;
+	private long max;
+	private long sum;
+	private int[] buckets;
+	private long[] counts;
+	private int used;
+
+	/**
+	 * An empty rollup
+	 */
+	public Rollup() {
+		min = Long.MAX_VALUE;
+		buckets = new int[4];
+		counts = new long[4];
+	}
+
+	/**
+	 * @param buffer
+	 *            positioned at a rollup written by {@link #write(ByteBuffer)}
+	 * @return the rollup read
+	 */
+	public static Rollup read(ByteBuffer buffer) {
+		Rollup rollup = new Rollup();
+		rollup.count = buffer.getLong();
+		rollup.min = buffer.getLong();
+		rollup.max = buffer.getLong();
+		rollup.sum = buffer.getLong();
+		rollup.used = buffer.getInt();
+		rollup.buckets = new int[Math.max(4, rollup.used)];
+		rollup.counts = new long[rollup.buckets.length];
+		for (int i = 0; i < rollup.used; i++) {
+			rollup.buckets[i] = buffer.getShort() & 0xFFFF;
+			rollup.counts[i] = buffer.getLong();
+		}
+		return rollup;
+	}
+
+	/**
+	 * @return the amount of speeds recorded
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the highest speed recorded, zero if none was
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the average speed, zero if none was recorded
+	 */
+	public long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * @return the lowest speed recorded, zero if none was
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the speed at the percentile, as answered by
+	 *         {@link LatencyHistogram#getPercentile(double)}
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long counted = 0;
+		for (int i = 0; i < used; i++) {
+			counted += counts[i];
+			if (counted >= rank) {
+				return Math.max(getMin(), Math.min(LatencyHistogram.highestValue(buckets[i]), max));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return the sum of every speed recorded
+	 */
+	public long getSum() {
+		return sum;
+	}
+
+	/**
+	 * @param other
+	 *            a rollup whose speeds are added to this one
+	 */
+	public void merge(Rollup other) {
+		for (int i = 0; i < other.used; i++) {
+			add(other.buckets[i], other.counts[i]);
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            a non negative speed
+	 */
+	public void record(long bytesPerSecond) {
+		add(LatencyHistogram.index(bytesPerSecond), 1);
+		count++;
+		sum += bytesPerSecond;
+		min = Math.min(min, bytesPerSecond);
+		max = Math.max(max, bytesPerSecond);
+	}
+
+	/**
+	 * @return the bytes taken by {@link #write(ByteBuffer)}
+	 */
+	public int size() {
+		return 4 * Long.SIZE / 8 + Integer.SIZE / 8 + used * (Short.SIZE + Long.SIZE) / 8;
+	}
+
+	/**
+	 * @param buffer
+	 *            with at least {@link #size()} bytes remaining
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.putLong(count);
+		buffer.putLong(min);
+		buffer.putLong(max);
+		buffer.putLong(sum);
+		buffer.putInt(used);
+		for (int i = 0; i < used; i++) {
+			buffer.putShort((short) buckets[i]);
+			buffer.putLong(counts[i]);
+		}
+	}
+
+	/**
+	 * Count values in a bucket, keeping buckets sorted so percentiles walk
+	 * them in order.
+	 */
+	private void add(int bucket, long amount) {
+		int i = Arrays.binarySearch(buckets, 0, used, bucket);
+		if (i >= 0) {
+			counts[i] += amount;
+			return;
+		}
+		i = -i - 1;
+		if (used == buckets.length) {
+			buckets = Arrays.copyOf(buckets, used * 2);
+			counts = Arrays.copyOf(counts, used * 2);
+		}
+		System.arraycopy(buckets, i, buckets, i + 1, used - i);
+		System.arraycopy(counts, i, counts, i + 1, used - i);
+		buckets[i] = bucket;
+		counts[i] = amount;
+		used++;
+	}
+}
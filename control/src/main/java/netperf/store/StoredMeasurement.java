@@ -0,0 +1,103 @@
+package netperf.store;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import netperf.protocol.SpeedMeasurement;
+
+/**
+ * A {@link SpeedMeasurement} as kept in a {@link MeasurementStore}, tagged with
+ * who measured it against whom, how and when.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class StoredMeasurement {
+	private long timestamp;
+	private String source;
+	private String target;
+	private String command;
+	private SpeedMeasurement speed;
+
+	/**
+	 * @param timestamp
+	 *            when the measurement was taken, in milliseconds since the
+	 *            epoch
+	 * @param source
+	 *            the sending host
+	 * @param target
+	 *            the receiving host
+	 * @param command
+	 *            the command measured with
+	 * @param speed
+	 */
+	public StoredMeasurement(long timestamp, String source, String target, String command, SpeedMeasurement speed) {
+		this.timestamp = timestamp;
+		this.source = source;
+		this.target = target;
+		this.command = command;
+		this.speed = speed;
+	}
+
+	/**
+	 * @return the command measured with
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return the sending host
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the measured speed
+	 */
+	public SpeedMeasurement getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return the receiving host
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return when the measurement was taken, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return timestamp + " " + source + " -> " + target + " " + command + ": " + speed;
+	}
+}
@@ -0,0 +1,65 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.net.InetSocketAddress;
+
+import org.apache.commons.logging.impl.SimpleLog;
+import org.junit.Test;
+
+import netperf.controller.BufferTuning;
+
+@SuppressWarnings("javadoc")
+public class BufferTuningTest {
+
+	private static BufferTuning tuning() {
+		return new BufferTuning(new InetSocketAddress("127.0.0.1", 1990), new InetSocketAddress("127.0.0.1", 1991),
+				new SimpleLog("BufferTuningTest"));
+	}
+
+	@Test
+	public void testSingleSize() {
+		tuning().setBufferSizes(64 * 1024, 64 * 1024);
+		tuning().setBlockSizes(8 * 1024, 8 * 1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBufferSizesReversed() {
+		tuning().setBufferSizes(64 * 1024 * 1024, 64 * 1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBlockSizesReversed() {
+		tuning().setBlockSizes(1024 * 1024, 8 * 1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroSize() {
+		// Doubling from zero never reaches the end.
+		tuning().setBufferSizes(0, 64 * 1024);
+	}
+}
@@ -0,0 +1,256 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import netperf.protocol.SpeedMeasurement;
+import netperf.store.MeasurementRollups;
+import netperf.store.MeasurementStore;
+import netperf.store.StoredMeasurement;
+
+@SuppressWarnings("javadoc")
+public class MeasurementStoreTest {
+
+	/**
+	 * Small enough to hold only a few records per segment.
+	 */
+	private static final int SEGMENT_SIZE = 256;
+	private static final long HOUR = MeasurementRollups.BUCKET_MILLIS;
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("netperf-store");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private static StoredMeasurement record(int i) {
+		// One second transfers of i kilobytes, an hour apart.
+		return new StoredMeasurement(i * HOUR, "a:1990", "b:1990", "fixed time",
+				new SpeedMeasurement(i * HOUR, i * HOUR + 1000, i * 1024));
+	}
+
+	private static List<StoredMeasurement> scan(MeasurementStore store) throws IOException {
+		final List<StoredMeasurement> records = new ArrayList<>();
+		store.scan(new Consumer<StoredMeasurement>() {
+			@Override
+			public void accept(StoredMeasurement record) {
+				records.add(record);
+			}
+		});
+		return records;
+	}
+
+	private int files(String glob) throws IOException {
+		int files = 0;
+		try (DirectoryStream<Path> matches = Files.newDirectoryStream(directory, glob)) {
+			for (@SuppressWarnings("unused")
+			Path match : matches) {
+				files++;
+			}
+		}
+		return files;
+	}
+
+	@Test
+	public void testAppendPastRollAndReopen() throws IOException {
+		try (MeasurementStore store = new MeasurementStore(directory, SEGMENT_SIZE)) {
+			for (int i = 1; i <= 20; i++) {
+				store.append(record(i));
+			}
+			assertEquals(store.count(), 20L);
+		}
+		int segments = files("segment-*.dat");
+		assertTrue(segments > 1);
+		// Every segment but the active one has its rollups written beside it.
+		assertEquals(files("segment-*.rollup"), segments - 1);
+		try (MeasurementStore store = new MeasurementStore(directory, SEGMENT_SIZE)) {
+			assertEquals(store.count(), 20L);
+			List<StoredMeasurement> records = scan(store);
+			assertEquals(records.size(), 20);
+			for (int i = 0; i < records.size(); i++) {
+				assertEquals(records.get(i).getTimestamp(), (i + 1) * HOUR);
+				assertEquals(records.get(i).getSpeed().getBytes(), (i + 1) * 1024L);
+				assertEquals(records.get(i).getCommand(), "fixed time");
+			}
+			assertEquals(store.getRollups().count(), 20L);
+			assertEquals(store.getRollups().query("a:1990", "b:1990", null, 0, 21 * HOUR, HOUR).size(), 20);
+			assertEquals(store.getRollups().query("a:1990", "b:1990", null, 0, 21 * HOUR, HOUR).get(5 * HOUR)
+					.getMax(), 5 * 1024L);
+			// Appending after reopening continues at the end of the active
+			// segment.
+			store.append(record(21));
+			assertEquals(scan(store).size(), 21);
+		}
+	}
+
+	@Test
+	public void testClosedRollupsRebuilt() throws IOException {
+		try (MeasurementStore store = new MeasurementStore(directory, SEGMENT_SIZE)) {
+			for (int i = 1; i <= 20; i++) {
+				store.append(record(i));
+			}
+		}
+		try (DirectoryStream<Path> rollups = Files.newDirectoryStream(directory, "segment-*.rollup")) {
+			for (Path rollup : rollups) {
+				Files.delete(rollup);
+			}
+		}
+		try (MeasurementStore store = new MeasurementStore(directory, SEGMENT_SIZE)) {
+			assertEquals(store.count(), 20L);
+			assertEquals(store.getRollups().count(), 20L);
+		}
+		assertEquals(files("segment-*.rollup"), files("segment-*.dat") - 1);
+	}
+
+	@Test
+	public void testInterruptedRecordIgnored() throws IOException {
+		try (MeasurementStore store = new MeasurementStore(directory)) {
+			for (int i = 1; i <= 3; i++) {
+				store.append(record(i));
+			}
+		}
+		// A record cut short by a crash, its body written but not the length
+		// that comes last.
+		Path segment = directory.resolve(String.format("segment-%010d.dat", 0));
+		try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer length = ByteBuffer.allocate(Integer.SIZE / 8);
+			long position = 0;
+			while (true) {
+				length.clear();
+				file.read(length, position);
+				int recordLength = length.getInt(0);
+				if (recordLength == 0) {
+					break;
+				}
+				position += Integer.SIZE / 8 + recordLength;
+			}
+			file.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }), position + Integer.SIZE / 8);
+		}
+		try (MeasurementStore store = new MeasurementStore(directory)) {
+			assertEquals(store.count(), 3L);
+			store.append(record(4));
+			List<StoredMeasurement> records = scan(store);
+			assertEquals(records.size(), 4);
+			assertEquals(records.get(3).getTimestamp(), 4 * HOUR);
+		}
+	}
+
+	@Test
+	public void testRejectedRecordLeavesNoGap() throws IOException {
+		char[] tag = new char[0x10000];
+		Arrays.fill(tag, 'a');
+		try (MeasurementStore store = new MeasurementStore(directory)) {
+			store.append(record(1));
+			try {
+				store.append(new StoredMeasurement(2 * HOUR, "a:1990", new String(tag), "fixed time",
+						new SpeedMeasurement(0, 1000, 1024)));
+				fail("Appended a tag longer than 65535 bytes");
+			} catch (IllegalArgumentException e) {
+				// Expected.
+			}
+			store.append(record(3));
+			assertEquals(store.count(), 2L);
+		}
+		try (MeasurementStore store = new MeasurementStore(directory)) {
+			List<StoredMeasurement> records = scan(store);
+			assertEquals(records.size(), 2);
+			assertEquals(records.get(1).getTimestamp(), 3 * HOUR);
+			assertEquals(store.count(), 2L);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testScanAfterClose() throws IOException {
+		MeasurementStore store = new MeasurementStore(directory);
+		store.close();
+		store.scan(new Consumer<StoredMeasurement>() {
+			@Override
+			public void accept(StoredMeasurement record) {
+			}
+		});
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFlushAfterClose() throws IOException {
+		MeasurementStore store = new MeasurementStore(directory);
+		store.close();
+		store.close();
+		store.flush();
+	}
+
+	@Test
+	public void testScanSeesSnapshot() throws IOException {
+		try (final MeasurementStore store = new MeasurementStore(directory, SEGMENT_SIZE)) {
+			for (int i = 1; i <= 3; i++) {
+				store.append(record(i));
+			}
+			final List<StoredMeasurement> records = new ArrayList<>();
+			store.scan(new Consumer<StoredMeasurement>() {
+				@Override
+				public void accept(StoredMeasurement record) {
+					records.add(record);
+					try {
+						store.append(record(10 + records.size()));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			assertEquals(records.size(), 3);
+			assertEquals(store.count(), 6L);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.Test;
+
+import netperf.controller.MeshMeasurement;
+import netperf.protocol.TransferDuringFixedTime;
+
+@SuppressWarnings("javadoc")
+public class MeshMeasurementTest {
+
+	@Test
+	public void testRounds() {
+		for (int servers = 1; servers <= 9; servers++) {
+			List<List<int[]>> rounds = MeshMeasurement.rounds(servers);
+			// As few rounds as a complete pairing allows.
+			assertEquals(rounds.size(), servers % 2 == 0 ? servers - 1 : servers);
+			boolean[][] paired = new boolean[servers][servers];
+			int pairs = 0;
+			for (List<int[]> round : rounds) {
+				boolean[] busy = new boolean[servers];
+				for (int[] pair : round) {
+					assertEquals(pair.length, 2);
+					int source = pair[0];
+					int target = pair[1];
+					assertTrue(source >= 0 && source < servers && target >= 0 && target < servers);
+					assertFalse("Server paired with itself", source == target);
+					assertFalse(servers + " servers: " + source + " twice in a round", busy[source]);
+					assertFalse(servers + " servers: " + target + " twice in a round", busy[target]);
+					busy[source] = true;
+					busy[target] = true;
+					int low = Math.min(source, target);
+					int high = Math.max(source, target);
+					assertFalse(servers + " servers: " + low + " and " + high + " paired twice", paired[low][high]);
+					paired[low][high] = true;
+					pairs++;
+				}
+			}
+			assertEquals(pairs, servers * (servers - 1) / 2);
+		}
+	}
+
+	/**
+	 * A server taking a connection and ending its side of it as soon as
+	 * anything arrives, while still reading whatever comes next.
+	 */
+	private static InetSocketAddress dropping(final ServerSocket server) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try (Socket socket = server.accept()) {
+					socket.getInputStream().read();
+					socket.shutdownOutput();
+					while (socket.getInputStream().read() >= 0) {
+						// Until the mesh closes it.
+					}
+				} catch (IOException e) {
+					// The test is over.
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+	}
+
+	@Test(expected = IOException.class)
+	public void testServerDisconnecting() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		try (ServerSocket first = new ServerSocket(0, 1, loopback);
+				ServerSocket second = new ServerSocket(0, 1, loopback)) {
+			List<InetSocketAddress> servers = new ArrayList<>();
+			servers.add(dropping(first));
+			servers.add(dropping(second));
+			new MeshMeasurement(servers, new TransferDuringFixedTime(100), new NoOpLog()).measure();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import netperf.client.NetPerfClient;
+import netperf.protocol.TransferDuringFixedTime;
+
+@SuppressWarnings("javadoc")
+public class NetPerfClientTest {
+
+	private static Throwable failure(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		throw new AssertionError("Completed without failing");
+	}
+
+	@Test
+	public void testUnresolvedSource() throws Exception {
+		try (NetPerfClient client = new NetPerfClient()) {
+			InetSocketAddress unresolved = InetSocketAddress.createUnresolved("netperf.invalid", 1990);
+			InetSocketAddress target = new InetSocketAddress("localhost", 1991);
+			CompletableFuture<?> first = client.measure(unresolved, target, new TransferDuringFixedTime(10));
+			assertTrue(failure(first) instanceof UnresolvedAddressException);
+			assertTrue(failure(client.measure(target, unresolved, new TransferDuringFixedTime(10))) != null);
+			// The client's thread survives and keeps serving requests.
+			CompletableFuture<?> second = client.stop(unresolved);
+			assertTrue(failure(second) instanceof UnresolvedAddressException);
+		}
+	}
+
+	@Test
+	public void testRequestAfterClose() throws Exception {
+		NetPerfClient client = new NetPerfClient();
+		client.close();
+		InetSocketAddress address = new InetSocketAddress("localhost", 1990);
+		assertTrue(failure(
+				client.measure(address, address, new TransferDuringFixedTime(10))) instanceof ClosedChannelException);
+		assertTrue(failure(client.stop(address)) instanceof ClosedChannelException);
+	}
+
+	@Test
+	public void testCloseFailsRequestsInFlight() throws Exception {
+		NetPerfClient client = new NetPerfClient();
+		// Nothing answers on this port, so the request stays in flight or fails
+		// to connect, but never hangs once closed.
+		InetSocketAddress address = new InetSocketAddress("localhost", 1);
+		CompletableFuture<?> request = client.measure(address, address, new TransferDuringFixedTime(10));
+		client.close();
+		assertTrue(failure(request) instanceof IOException);
+	}
+}
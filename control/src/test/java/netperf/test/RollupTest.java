@@ -0,0 +1,234 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Controller
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NavigableMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import netperf.protocol.SpeedMeasurement;
+import netperf.store.MeasurementRollups;
+import netperf.store.Rollup;
+import netperf.store.StoredMeasurement;
+
+@SuppressWarnings("javadoc")
+public class RollupTest {
+
+	private static final long HOUR = MeasurementRollups.BUCKET_MILLIS;
+	private static final double[] PERCENTILES = { 0, 1, 10, 25, 50, 75, 90, 99, 99.9, 100 };
+
+	/**
+	 * A measurement taking one second, so its speed is its bytes.
+	 */
+	private static StoredMeasurement measurement(long timestamp, String command, long bytesPerSecond) {
+		return new StoredMeasurement(timestamp, "a:1990", "b:1990", command,
+				new SpeedMeasurement(timestamp, timestamp + 1000, bytesPerSecond));
+	}
+
+	private static void assertPercentiles(Rollup expected, Rollup actual) {
+		for (double percentile : PERCENTILES) {
+			assertEquals(actual.getPercentile(percentile), expected.getPercentile(percentile));
+		}
+	}
+
+	private static void assertRollup(Rollup actual, long count, long min, long max, long sum) {
+		assertEquals(actual.getCount(), count);
+		assertEquals(actual.getMin(), min);
+		assertEquals(actual.getMax(), max);
+		assertEquals(actual.getSum(), sum);
+	}
+
+	@Test
+	public void testPercentileError() {
+		Rollup rollup = new Rollup();
+		int values = 100000;
+		for (int i = 1; i <= values; i++) {
+			rollup.record(i);
+		}
+		assertRollup(rollup, values, 1L, (long) values, (long) values * (values + 1) / 2);
+		for (double percentile : PERCENTILES) {
+			long exact = Math.max(1, (long) Math.ceil(percentile / 100 * values));
+			long error = Math.abs(rollup.getPercentile(percentile) - exact);
+			assertTrue(percentile + "th percentile off by " + error, error <= exact / 32);
+		}
+		assertEquals(rollup.getPercentile(0), 1L);
+		assertEquals(rollup.getPercentile(100), (long) values);
+	}
+
+	@Test
+	public void testMergeEqualsRecorded() {
+		Random random = new Random(1990);
+		Rollup recorded = new Rollup();
+		Rollup first = new Rollup();
+		Rollup second = new Rollup();
+		for (int i = 0; i < 10000; i++) {
+			long speed = (long) (random.nextDouble() * random.nextDouble() * 1_000_000_000L);
+			recorded.record(speed);
+			(i % 3 == 0 ? first : second).record(speed);
+		}
+		first.merge(second);
+		assertRollup(first, recorded.getCount(), recorded.getMin(), recorded.getMax(), recorded.getSum());
+		assertEquals(first.getMean(), recorded.getMean());
+		assertPercentiles(recorded, first);
+	}
+
+	@Test
+	public void testMergeEmpty() {
+		Rollup rollup = new Rollup();
+		rollup.record(10);
+		rollup.record(20);
+		rollup.merge(new Rollup());
+		assertRollup(rollup, 2L, 10L, 20L, 30L);
+		Rollup empty = new Rollup();
+		empty.merge(rollup);
+		assertRollup(empty, 2L, 10L, 20L, 30L);
+		assertPercentiles(rollup, empty);
+	}
+
+	@Test
+	public void testWriteRead() {
+		Rollup rollup = new Rollup();
+		for (int i = 0; i < 1000; i++) {
+			rollup.record(i * i * 37L);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(rollup.size());
+		rollup.write(buffer);
+		assertEquals(buffer.remaining(), 0);
+		buffer.flip();
+		Rollup read = Rollup.read(buffer);
+		assertEquals(buffer.remaining(), 0);
+		assertEquals(read.size(), rollup.size());
+		assertRollup(read, rollup.getCount(), rollup.getMin(), rollup.getMax(), rollup.getSum());
+		assertPercentiles(rollup, read);
+	}
+
+	@Test
+	public void testQueryWindows() {
+		MeasurementRollups rollups = new MeasurementRollups();
+		long day = 400000 * HOUR;
+		// Two speeds in each of six hours, at the start and in the middle.
+		for (int hour = 0; hour < 6; hour++) {
+			rollups.record(measurement(day + hour * HOUR, "fixed time", 1000 * (hour + 1)));
+			rollups.record(measurement(day + hour * HOUR + HOUR / 2, "fixed time", 1000 * (hour + 1)));
+		}
+		assertEquals(rollups.count(), 12L);
+
+		NavigableMap<Long, Rollup> hours = rollups.query("a:1990", "b:1990", null, day, day + 6 * HOUR, HOUR);
+		assertEquals(hours.size(), 6);
+		assertEquals(hours.firstKey(), day);
+		assertRollup(hours.get(day + 2 * HOUR), 2L, 3000L, 3000L, 6000L);
+
+		// The start is rounded down to its hour and the end is exclusive.
+		NavigableMap<Long, Rollup> aligned = rollups.query("a:1990", "b:1990", null, day + HOUR + HOUR / 2,
+				day + 4 * HOUR, HOUR);
+		assertEquals(aligned.keySet().toString(), "[" + (day + HOUR) + ", " + (day + 2 * HOUR) + ", "
+				+ (day + 3 * HOUR) + "]");
+
+		// Ninety minutes round up to two hours.
+		NavigableMap<Long, Rollup> pairs = rollups.query("a:1990", "b:1990", null, day, day + 6 * HOUR,
+				HOUR + HOUR / 2);
+		assertEquals(pairs.size(), 3);
+		assertRollup(pairs.get(day), 4L, 1000L, 2000L, 6000L);
+		assertRollup(pairs.get(day + 2 * HOUR), 4L, 3000L, 4000L, 14000L);
+		assertRollup(pairs.get(day + 4 * HOUR), 4L, 5000L, 6000L, 22000L);
+
+		// Windows count from the start of the period, not from the epoch.
+		NavigableMap<Long, Rollup> shifted = rollups.query("a:1990", "b:1990", null, day + HOUR, day + 6 * HOUR,
+				4 * HOUR);
+		assertEquals(shifted.size(), 2);
+		assertRollup(shifted.get(day + HOUR), 8L, 2000L, 5000L, 28000L);
+		assertRollup(shifted.get(day + 5 * HOUR), 2L, 6000L, 6000L, 12000L);
+
+		// Windows smaller than an hour are an hour wide.
+		assertEquals(rollups.query("a:1990", "b:1990", null, day, day + 6 * HOUR, 1).size(), 6);
+		assertEquals(rollups.query("b:1990", "a:1990", null, day, day + 6 * HOUR, HOUR).size(), 0);
+	}
+
+	@Test
+	public void testQueryCommand() {
+		MeasurementRollups rollups = new MeasurementRollups();
+		rollups.record(measurement(0, "fixed time", 1000));
+		rollups.record(measurement(HOUR / 2, "fixed size", 3000));
+		rollups.record(measurement(HOUR, "fixed size", 5000));
+		assertRollup(rollups.query("a:1990", "b:1990", "fixed time", 0, 2 * HOUR, 2 * HOUR).get(0L), 1L, 1000L,
+				1000L, 1000L);
+		assertRollup(rollups.query("a:1990", "b:1990", "fixed size", 0, 2 * HOUR, 2 * HOUR).get(0L), 2L, 3000L,
+				5000L, 8000L);
+		assertRollup(rollups.query("a:1990", "b:1990", null, 0, 2 * HOUR, 2 * HOUR).get(0L), 3L, 1000L, 5000L,
+				9000L);
+		assertEquals(rollups.query("a:1990", "b:1990", "datagrams", 0, 2 * HOUR, 2 * HOUR).size(), 0);
+	}
+
+	@Test
+	public void testRollupsMergeAndFile() throws IOException {
+		Random random = new Random(2016);
+		MeasurementRollups recorded = new MeasurementRollups();
+		MeasurementRollups first = new MeasurementRollups();
+		MeasurementRollups second = new MeasurementRollups();
+		for (int i = 0; i < 1000; i++) {
+			StoredMeasurement measurement = measurement(random.nextInt(10) * HOUR + random.nextInt((int) HOUR),
+					i % 2 == 0 ? "fixed time" : "fixed size", random.nextInt(1_000_000_000));
+			recorded.record(measurement);
+			(random.nextBoolean() ? first : second).record(measurement);
+		}
+		first.merge(second);
+		assertEquals(first.count(), recorded.count());
+
+		Path file = Files.createTempFile("netperf", ".rollup");
+		try {
+			first.write(file);
+			MeasurementRollups read = MeasurementRollups.read(file);
+			assertEquals(read.count(), recorded.count());
+			for (String command : new String[] { "fixed time", "fixed size", null }) {
+				NavigableMap<Long, Rollup> expected = recorded.query("a:1990", "b:1990", command, 0, 10 * HOUR, HOUR);
+				NavigableMap<Long, Rollup> merged = first.query("a:1990", "b:1990", command, 0, 10 * HOUR, HOUR);
+				NavigableMap<Long, Rollup> reread = read.query("a:1990", "b:1990", command, 0, 10 * HOUR, HOUR);
+				assertEquals(merged.keySet(), expected.keySet());
+				assertEquals(reread.keySet(), expected.keySet());
+				for (Long window : expected.keySet()) {
+					Rollup rollup = expected.get(window);
+					assertRollup(merged.get(window), rollup.getCount(), rollup.getMin(), rollup.getMax(),
+							rollup.getSum());
+					assertRollup(reread.get(window), rollup.getCount(), rollup.getMin(), rollup.getMax(),
+							rollup.getSum());
+					assertPercentiles(rollup, merged.get(window));
+					assertPercentiles(rollup, reread.get(window));
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
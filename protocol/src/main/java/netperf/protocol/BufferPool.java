@@ -0,0 +1,119 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct {@link ByteBuffer}s shared by every transfer in the JVM, so
+ * large blocks are allocated once instead of on every execution.
+ *
+ * Buffers are kept in power of two size classes from {@link #MIN_CLASS_SIZE}
+ * to {@link TransferCommand#MAX_BLOCK_SIZE}, each class retaining up to
+ * {@link #RETAINED_BYTES_PER_CLASS} bytes of released buffers.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class BufferPool {
+
+	/**
+	 * The smallest buffer handed out, smaller requests share this class.
+	 */
+	public static final int MIN_CLASS_SIZE = 1024;
+	private static final int RETAINED_BYTES_PER_CLASS = 64 * 1024 * 1024;
+	private static final int MIN_CLASS = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(TransferCommand.MAX_BLOCK_SIZE) - MIN_CLASS + 1;
+	private static final BufferPool shared = new BufferPool();
+
+	/**
+	 * @return the pool shared by every transfer
+	 */
+	public static BufferPool shared() {
+		return shared;
+	}
+
+	private Queue<ByteBuffer>[] free;
+	private AtomicInteger[] retained;
+
+	@SuppressWarnings("unchecked")
+	private BufferPool() {
+		free = new Queue[CLASSES];
+		retained = new AtomicInteger[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+			retained[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @param size
+	 *            between 1 and {@link TransferCommand#MAX_BLOCK_SIZE} bytes.
+	 * @return a direct buffer with its position at zero and its limit at size,
+	 *         with unspecified contents, to be given back through
+	 *         {@link #release(ByteBuffer)}.
+	 */
+	public ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+		ByteBuffer buffer = free[sizeClass].poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(MIN_CLASS_SIZE << sizeClass);
+		} else {
+			retained[sizeClass].decrementAndGet();
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * @param buffer
+	 *            a buffer obtained from {@link #acquire(int)}, not to be used
+	 *            afterwards. Buffers larger than any size class are left to the
+	 *            garbage collector.
+	 */
+	public void release(ByteBuffer buffer) {
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass >= CLASSES) {
+			return;
+		}
+		if (retained[sizeClass].incrementAndGet() * (long) buffer.capacity() <= RETAINED_BYTES_PER_CLASS) {
+			free[sizeClass].add(buffer);
+		} else {
+			retained[sizeClass].decrementAndGet();
+		}
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS;
+	}
+}
@@ -0,0 +1,105 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Formatter;
+
+/**
+ * A {@link SpeedMeasurement} of datagrams received, along with how many of
+ * them were lost or arrived out of order and the interarrival jitter as
+ * defined in RFC 3550, in nanoseconds.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ * 
+ */
+public class DatagramMeasurement extends SpeedMeasurement {
+	private long jitter;
+	private long lost;
+	private long outOfOrder;
+	private long received;
+
+	/**
+	 * @param start
+	 *            when the first datagram arrived
+	 * @param end
+	 *            when the last datagram arrived
+	 * @param bytes
+	 *            amount of bytes received
+	 * @param received
+	 *            amount of datagrams received
+	 * @param lost
+	 *            amount of datagrams sent but never received
+	 * @param outOfOrder
+	 *            amount of datagrams received after one sent later
+	 * @param jitter
+	 *            the interarrival jitter in nanoseconds
+	 */
+	public DatagramMeasurement(long start, long end, long bytes, long received, long lost, long outOfOrder,
+			long jitter) {
+		super(start, end, bytes);
+		this.received = received;
+		this.lost = lost;
+		this.outOfOrder = outOfOrder;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @return the interarrival jitter in nanoseconds
+	 */
+	public long getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return amount of datagrams sent but never received
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return amount of datagrams received after one sent later
+	 */
+	public long getOutOfOrder() {
+		return outOfOrder;
+	}
+
+	/**
+	 * @return amount of datagrams received
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	@Override
+	public String toString() {
+		try (Formatter formatter = new Formatter()) {
+			return formatter.format("%s %d received, %d lost, %d out of order, %.3f ms jitter", super.toString(),
+					getReceived(), getLost(), getOutOfOrder(), getJitter() / 1000000f).toString();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import netperf.protocol.MessageMarshaller.MarshalException;
+
+/**
+ * Decodes length prefixed frames as their bytes arrive, in chunks of any size
+ * or straight from a non-blocking channel, keeping whatever part of a frame
+ * has been received between calls.
+ *
+ * Each frame handed out is only valid until the next call, as the decoder
+ * reuses its buffer. A decoder is meant for a single connection and is not
+ * thread safe.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class FrameDecoder {
+
+	/**
+	 * Frames announcing a larger length are considered corrupt.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	private static final int INITIAL_BODY_SIZE = 256;
+	private MessageMarshaller marshaller;
+	private int maxFrameLength;
+	private ByteBuffer header;
+	private ByteBuffer body;
+	private boolean reading;
+	private boolean closed;
+
+	/**
+	 * Decode with a new {@link MessageMarshaller} and
+	 * {@link #DEFAULT_MAX_FRAME_LENGTH}.
+	 */
+	public FrameDecoder() {
+		this(new MessageMarshaller(), DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * @param marshaller
+	 *            used to unmarshall the decoded frames
+	 * @param maxFrameLength
+	 *            the largest frame accepted, in bytes
+	 */
+	public FrameDecoder(MessageMarshaller marshaller, int maxFrameLength) {
+		this.marshaller = marshaller;
+		this.maxFrameLength = maxFrameLength;
+		header = ByteBuffer.allocate(MessageMarshaller.LENGTH_HEADER_SIZE);
+		body = ByteBuffer.allocate(INITIAL_BODY_SIZE);
+	}
+
+	/**
+	 * Take the bytes needed to complete a frame from the chunk, leaving any
+	 * bytes past the frame in it for the next call.
+	 *
+	 * @param chunk
+	 *            received bytes, from its position to its limit
+	 * @return the frame without its length header, or null if the chunk ran
+	 *         out before completing it
+	 * @throws ProtocolException
+	 *             a frame announced an invalid length
+	 */
+	public ByteBuffer nextFrame(ByteBuffer chunk) throws ProtocolException {
+		while (chunk.hasRemaining()) {
+			ByteBuffer target = target();
+			int limit = chunk.limit();
+			chunk.limit(chunk.position() + Math.min(chunk.remaining(), target.remaining()));
+			target.put(chunk);
+			chunk.limit(limit);
+			ByteBuffer frame = advance();
+			if (frame != null) {
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read from the channel until a frame is complete, never past its end, so
+	 * the rest of the data stays in the channel.
+	 *
+	 * @param channel
+	 *            a channel in either blocking or non-blocking mode
+	 * @return the frame without its length header, or null if the channel has
+	 *         no more data for now or reached end of stream, see
+	 *         {@link #isClosed()}
+	 * @throws EOFException
+	 *             the channel reached end of stream in the middle of a frame
+	 * @throws IOException
+	 */
+	public ByteBuffer nextFrame(ReadableByteChannel channel) throws IOException {
+		while (true) {
+			ByteBuffer frame = advance();
+			if (frame != null) {
+				return frame;
+			}
+			int read = channel.read(target());
+			if (read < 0) {
+				endOfStream();
+				return null;
+			}
+			if (read == 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @param chunk
+	 * @return the next {@link Message}, or null if more bytes are needed
+	 * @throws MarshalException
+	 *             the frame does not contain a known {@link Message}
+	 * @throws ProtocolException
+	 *             a frame announced an invalid length
+	 * @see #nextFrame(ByteBuffer)
+	 */
+	public Message nextMessage(ByteBuffer chunk) throws MarshalException, ProtocolException {
+		ByteBuffer frame = nextFrame(chunk);
+		return frame == null ? null : marshaller.unmarshallMessage(frame);
+	}
+
+	/**
+	 * @param channel
+	 * @return the next {@link Message}, or null if the channel has no more data
+	 *         for now or reached end of stream
+	 * @throws MarshalException
+	 *             the frame does not contain a known {@link Message}
+	 * @throws IOException
+	 * @see #nextFrame(ReadableByteChannel)
+	 */
+	public Message nextMessage(ReadableByteChannel channel) throws MarshalException, IOException {
+		ByteBuffer frame = nextFrame(channel);
+		return frame == null ? null : marshaller.unmarshallMessage(frame);
+	}
+
+	/**
+	 * @param chunk
+	 * @return the next {@link SpeedMeasurement}, or null if more bytes are
+	 *         needed
+	 * @throws ProtocolException
+	 *             a frame announced an invalid length, or does not hold a
+	 *             whole speed
+	 * @see #nextFrame(ByteBuffer)
+	 */
+	public SpeedMeasurement nextSpeed(ByteBuffer chunk) throws ProtocolException {
+		ByteBuffer frame = nextFrame(chunk);
+		try {
+			return frame == null ? null : marshaller.unmarshallSpeed(frame);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw MessageMarshaller.malformed(e);
+		}
+	}
+
+	/**
+	 * Tell the decoder the peer closed the connection.
+	 *
+	 * @throws EOFException
+	 *             the connection was closed in the middle of a frame
+	 */
+	public void endOfStream() throws EOFException {
+		closed = true;
+		if (reading || header.position() > 0) {
+			throw new EOFException("Connection closed in the middle of a frame");
+		}
+	}
+
+	/**
+	 * @return whether the end of stream was reached
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private ByteBuffer advance() throws ProtocolException {
+		if (!reading) {
+			if (header.hasRemaining()) {
+				return null;
+			}
+			header.flip();
+			int length = header.getInt();
+			header.clear();
+			if (length < 0 || length > maxFrameLength) {
+				throw new ProtocolException("Invalid frame length " + length);
+			}
+			if (body.capacity() < length) {
+				body = ByteBuffer.allocate(Math.max(length, Math.min(body.capacity() * 2, maxFrameLength)));
+			}
+			body.clear();
+			body.limit(length);
+			reading = true;
+		}
+		if (body.hasRemaining()) {
+			return null;
+		}
+		reading = false;
+		body.flip();
+		return body;
+	}
+
+	private ByteBuffer target() {
+		return reading ? body : header;
+	}
+}
@@ -0,0 +1,132 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how many bytes a transfer moves on every interval of time, so
+ * slow-start ramps, stalls and periodic drops show up in the
+ * {@link SpeedMeasurement}.
+ * 
+ * Samples are kept in a primitive array sized for the expected duration of
+ * the transfer, recording a sample does not allocate unless the transfer
+ * outlives it. Intervals without any transfer record zero bytes. Every
+ * interval is also handed to a {@link ProgressListener} as it elapses.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ * 
+ */
+public class IntervalSampler {
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+	private int count;
+	private long counted;
+	private long interval;
+	private long intervalMillis;
+	private ProgressListener listener;
+	private long next;
+	private long[] samples;
+	private long started;
+
+	/**
+	 * Start sampling
+	 * 
+	 * @param intervalMillis
+	 *            the length of every interval in milliseconds, zero disables
+	 *            sampling
+	 * @param expectedMillis
+	 *            how long the transfer is expected to last, zero if unknown
+	 * @param listener
+	 *            notified of every interval as it elapses
+	 */
+	public IntervalSampler(long intervalMillis, long expectedMillis, ProgressListener listener) {
+		this.intervalMillis = intervalMillis;
+		this.listener = listener;
+		if (intervalMillis > 0) {
+			started = System.currentTimeMillis();
+			interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+			long capacity = Math.min(expectedMillis / intervalMillis + 2, MAX_INITIAL_CAPACITY);
+			samples = new long[(int) Math.max(capacity, MIN_CAPACITY)];
+			next = System.nanoTime() + interval;
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            the amount of bytes transferred since sampling started
+	 */
+	public void record(long bytes) {
+		if (interval == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		while (now >= next) {
+			add(bytes - counted);
+			counted = bytes;
+			next += interval;
+			long end = started + count * intervalMillis;
+			listener.progress(new SpeedMeasurement(end - intervalMillis, end, samples[count - 1]));
+		}
+	}
+
+	/**
+	 * Stop sampling, the last interval is recorded even if it did not elapse
+	 * completely
+	 * 
+	 * @param start
+	 *            when the transfer started
+	 * @param end
+	 *            when the transfer ended
+	 * @param bytes
+	 *            amount of bytes transferred
+	 * @return the measurement of the transfer with the recorded samples
+	 */
+	public SpeedMeasurement measurement(long start, long end, long bytes) {
+		if (interval == 0) {
+			return new SpeedMeasurement(start, end, bytes);
+		}
+		record(bytes);
+		if (bytes > counted || count == 0) {
+			add(bytes - counted);
+			counted = bytes;
+			long last = started + (count - 1) * intervalMillis;
+			if (end > last) {
+				listener.progress(new SpeedMeasurement(last, end, samples[count - 1]));
+			}
+		}
+		return new SpeedMeasurement(start, end, bytes, intervalMillis, Arrays.copyOf(samples, count));
+	}
+
+	private void add(long sample) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, count * 2);
+		}
+		samples[count++] = sample;
+	}
+}
@@ -0,0 +1,205 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * Counts latencies in nanoseconds on logarithmic buckets using a fixed amount
+ * of memory, whatever the amount of values recorded.
+ * 
+ * Values below {@link #SUB_BUCKETS} are counted exactly, larger ones on
+ * buckets of {@link #SUB_BUCKETS} linear steps between consecutive powers of
+ * two, so any value is reported with a relative error under 1 /
+ * {@link #SUB_BUCKETS}.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class LatencyHistogram {
+	/**
+	 * The amount of buckets between consecutive powers of two.
+	 */
+	public static final int SUB_BUCKETS = 32;
+	/**
+	 * The amount of buckets needed to cover every positive long.
+	 */
+	public static final int BUCKETS = (Long.SIZE - Integer.numberOfTrailingZeros(SUB_BUCKETS)) * SUB_BUCKETS;
+	private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+	private long[] counts;
+	private long max;
+	private long min;
+	private long total;
+
+	/**
+	 * An empty histogram
+	 */
+	public LatencyHistogram() {
+		counts = new long[BUCKETS];
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * @param index
+	 *            a bucket between 0 and {@link #BUCKETS}
+	 * @return the lowest value counted in the bucket
+	 */
+	public static long lowestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * @param index
+	 *            a bucket between 0 and {@link #BUCKETS}
+	 * @return the highest value counted in the bucket
+	 */
+	public static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return lowestValue(index) + (1L << shift) - 1;
+	}
+
+	/**
+	 * @param value
+	 *            a non negative value
+	 * @return the bucket counting the value
+	 */
+	public static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @param index
+	 *            a bucket between 0 and {@link #BUCKETS}
+	 * @return the amount of values counted in the bucket
+	 */
+	public long getCount(int index) {
+		return counts[index];
+	}
+
+	/**
+	 * @return the amount of values recorded
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the highest value recorded, zero if none was
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the lowest value recorded, zero if none was
+	 */
+	public long getMin() {
+		return total == 0 ? 0 : min;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the highest value of the bucket holding the percentile, never
+	 *         above {@link #getMax()}, zero if no value was recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long counted = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counted += counts[i];
+			if (counted >= rank) {
+				return Math.max(getMin(), Math.min(highestValue(i), max));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @param other
+	 *            a histogram whose values are added to this one
+	 */
+	public void merge(LatencyHistogram other) {
+		if (other.total == 0) {
+			// Its range means nothing, it may have been rebuilt with zeros.
+			return;
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * @param value
+	 *            a latency in nanoseconds, negative ones are counted as zero
+	 */
+	public void record(long value) {
+		record(Math.max(0, value), 1);
+	}
+
+	/**
+	 * @param value
+	 *            a non negative latency in nanoseconds
+	 * @param count
+	 *            how many times it was measured
+	 */
+	public void record(long value, long count) {
+		counts[index(value)] += count;
+		total += count;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Used when rebuilding a histogram, as bucket counts lose the exact
+	 * extremes.
+	 * 
+	 * @param min
+	 *            the lowest value recorded
+	 * @param max
+	 *            the highest value recorded
+	 */
+	public void setRange(long min, long max) {
+		this.min = min;
+		this.max = max;
+	}
+}
@@ -0,0 +1,80 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Formatter;
+
+/**
+ * A {@link SpeedMeasurement} of messages echoed back, along with the
+ * histogram of their round trip times.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class LatencyMeasurement extends SpeedMeasurement {
+	private LatencyHistogram histogram;
+
+	/**
+	 * @param start
+	 *            when the first message was sent
+	 * @param end
+	 *            when the last echo arrived
+	 * @param bytes
+	 *            amount of bytes sent
+	 * @param histogram
+	 *            the round trip times in nanoseconds
+	 */
+	public LatencyMeasurement(long start, long end, long bytes, LatencyHistogram histogram) {
+		super(start, end, bytes);
+		this.histogram = histogram;
+	}
+
+	/**
+	 * @return the round trip times in nanoseconds
+	 */
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the round trip time in nanoseconds of the percentile
+	 */
+	public long getPercentile(double percentile) {
+		return histogram.getPercentile(percentile);
+	}
+
+	@Override
+	public String toString() {
+		try (Formatter formatter = new Formatter()) {
+			return formatter.format("%d round trips, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+					histogram.getTotal(), getPercentile(50) / 1000000f, getPercentile(90) / 1000000f,
+					getPercentile(99) / 1000000f, getPercentile(99.9) / 1000000f, histogram.getMax() / 1000000f)
+					.toString();
+		}
+	}
+}
@@ -37,6 +37,9 @@ public class MeasurementMessage implements Message, Serializable {
 
 	private static final long serialVersionUID = 2747854783019757188L;
 	private TransferCommand command;
+	private boolean bidirectional;
+	private int parallelism;
+	private SocketSettings settings;
 
 	/**
 	 * @param command
@@ -44,6 +47,8 @@ public class MeasurementMessage implements Message, Serializable {
 	 */
 	public MeasurementMessage(TransferCommand command) {
 		this.command = command;
+		this.parallelism = 1;
+		this.settings = new SocketSettings();
 	}
 
 	@Override
@@ -58,8 +63,67 @@ public class MeasurementMessage implements Message, Serializable {
 		return command;
 	}
 
+	/**
+	 * @return whether both sides send and read at the same time, instead of
+	 *         one direction after the other
+	 */
+	public boolean isBidirectional() {
+		return bidirectional;
+	}
+
+	/**
+	 * @param bidirectional
+	 *            whether both sides send and read at the same time, instead of
+	 *            one direction after the other. Ignored by commands that do not
+	 *            {@link TransferCommand#supportsFullDuplex()}.
+	 */
+	public void setBidirectional(boolean bidirectional) {
+		this.bidirectional = bidirectional;
+	}
+
+	/**
+	 * @return the amount of concurrent connections measuring along with this
+	 *         one
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism
+	 *            the amount of concurrent connections measuring along with
+	 *            this one
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the options of the measurement connections
+	 */
+	public SocketSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @param settings
+	 *            the options of the measurement connections, applied by both
+	 *            ends
+	 */
+	public void setSettings(SocketSettings settings) {
+		this.settings = settings;
+	}
+
 	@Override
 	public String toString() {
-		return "Measurement Message to " + command;
+		String direction = (bidirectional ? " in both directions at once" : "")
+				+ (settings.isEmpty() ? "" : " with " + settings);
+		if (parallelism > 1) {
+			return "Measurement Message to " + command + " over one of " + parallelism + " connections" + direction;
+		}
+		return "Measurement Message to " + command + direction;
 	}
 }
@@ -26,12 +26,21 @@ package netperf.protocol;
  * #L%
  */
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -44,27 +53,123 @@ public class MessageMarshaller {
 
 	public class MarshalException extends Exception {
 		private static final long serialVersionUID = 2772923681006213964L;
+
+		public MarshalException() {
+		}
+
+		/**
+		 * @param cause
+		 *            what made the frame unreadable
+		 */
+		public MarshalException(Throwable cause) {
+			super(cause);
+		}
 	}
 
-	private static final int LENGTH_HEADER_SIZE = Integer.SIZE / 8;
+	public static final int LENGTH_HEADER_SIZE = Integer.SIZE / 8;
 
 	private static final byte START_MESSAGE = (byte) 1;
 	private static final byte MEASUREMENT_MESSAGE = (byte) 2;
 	private static final byte STOP_MESSAGE = (byte) 3;
 	private static final byte DISCONNECT_MESSAGE = (byte) 4;
+	private static final byte RESULT_MESSAGE = (byte) 5;
+	private static final byte PROGRESS_MESSAGE = (byte) 6;
 	private static final byte FIXED_TIME_COMMAND = (byte) 1;
 
 	private static final byte FIXED_SIZE_COMMAND = (byte) 2;
+	private static final byte ZERO_COPY_COMMAND = (byte) 3;
+	private static final byte DATAGRAM_COMMAND = (byte) 4;
+	private static final byte PING_PONG_COMMAND = (byte) 5;
+	private static final byte DATAGRAM_SPEED = (byte) 1;
+	private static final byte SAMPLED_SPEED = (byte) 2;
+	private static final byte LATENCY_SPEED = (byte) 4;
+	private static final byte HOST_BOUND_SPEED = (byte) 8;
+	private static final byte VERIFIED_SPEED = (byte) 16;
+	private static final byte CORRUPTED_SPEED = (byte) 32;
+	private static final byte BIDIRECTIONAL = (byte) 1;
+	private static final byte FRESH_CONNECTIONS = (byte) 2;
+	private static final byte SEND_BUFFER_OPTION = (byte) 1;
+	private static final byte RECEIVE_BUFFER_OPTION = (byte) 2;
+	private static final byte NO_DELAY_OPTION = (byte) 4;
+	private static final byte TRAFFIC_CLASS_OPTION = (byte) 8;
+	private static final byte LINGER_OPTION = (byte) 16;
+	private static final int PLAIN_SPEED_SIZE = 1 + (Long.SIZE / 8) * 3;
+	private static final int DATAGRAM_SPEED_SIZE = PLAIN_SPEED_SIZE + (Long.SIZE / 8) * 4;
 
 	/**
-	 * @param bytes
-	 * @return int read from bytes
+	 * Reads a whole frame from the channel, blocking until it arrives
+	 * 
+	 * @param channel
+	 *            a channel in blocking mode
+	 * @return the frame without its length header, ready to be read
+	 * @throws IOException
+	 *             the channel reached end of stream before the whole frame
+	 *             arrived
 	 */
-	private static int bytesToInt(byte[] bytes) {
-		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE);
-		buffer.put(bytes);
-		buffer.flip();// Switch from writing to reading
-		return buffer.getInt();
+	private static ByteBuffer readFrame(ReadableByteChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(LENGTH_HEADER_SIZE);
+		readFully(channel, header);
+		header.flip();
+		ByteBuffer frame = ByteBuffer.allocate(checkFrameLength(header.getInt()));
+		readFully(channel, frame);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Frames are only allocated after checking their length, so a corrupt or
+	 * hostile header can not exhaust the memory.
+	 * 
+	 * @param length
+	 *            as announced by a frame's header
+	 * @return the length
+	 * @throws ProtocolException
+	 *             the length is negative or above
+	 *             {@link FrameDecoder#DEFAULT_MAX_FRAME_LENGTH}
+	 */
+	private static int checkFrameLength(int length) throws ProtocolException {
+		if (length < 0 || length > FrameDecoder.DEFAULT_MAX_FRAME_LENGTH) {
+			throw new ProtocolException("Invalid frame length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * @param buffer
+	 *            positioned at a count of items
+	 * @param count
+	 *            as read from the buffer
+	 * @param itemSize
+	 *            the fewest bytes each item takes
+	 * @return the count, once known to fit in what remains of the buffer
+	 * @throws BufferUnderflowException
+	 *             the buffer is too short to hold that many items
+	 */
+	private static int checkCount(ByteBuffer buffer, long count, int itemSize) {
+		if (count < 0 || count > buffer.remaining() / itemSize) {
+			throw new BufferUnderflowException();
+		}
+		return (int) count;
+	}
+
+	/**
+	 * @param e
+	 *            thrown while reading a frame
+	 * @return the exception to report a frame that does not hold what it
+	 *         announces
+	 */
+	static ProtocolException malformed(RuntimeException e) {
+		ProtocolException malformed = new ProtocolException("Malformed frame");
+		malformed.initCause(e);
+		return malformed;
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
 	}
 
 	/**
@@ -73,68 +178,135 @@ public class MessageMarshaller {
 	 * @throws IOException
 	 */
 	private static int readMessageSize(InputStream inputStream) throws IOException {
-		byte[] bytes = new byte[LENGTH_HEADER_SIZE];
-		for (int read = 0; read < bytes.length; read += inputStream.read(bytes, read, bytes.length - read))
-			;
-		return bytesToInt(bytes);
+		int size = 0;
+		for (int i = 0; i < LENGTH_HEADER_SIZE; i++) {
+			int read = inputStream.read();
+			if (read < 0) {
+				throw new EOFException();
+			}
+			size = (size << 8) | read;
+		}
+		return size;
 	}
 
 	/**
 	 * Reads a raw chunk of data from the inputStream
 	 * 
 	 * @param inputStream
-	 * @return byte representation of x
+	 * @return the frame without its length header
+	 * @throws UncheckedIOException
+	 *             the stream failed or ended before the whole frame arrived
 	 */
 	private static byte[] readRawBytes(InputStream inputStream) {
 		try {
-			int size = readMessageSize(inputStream);
-			byte[] raw = new byte[size];
-			for (int read = 0; read < raw.length; read += inputStream.read(raw, read, raw.length - read))
-				;
+			byte[] raw = new byte[checkFrameLength(readMessageSize(inputStream))];
+			for (int read = 0; read < raw.length;) {
+				int count = inputStream.read(raw, read, raw.length - read);
+				if (count < 0) {
+					throw new EOFException();
+				}
+				read += count;
+			}
 			return raw;
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
 		}
-		return null;
 	}
 
-	private byte[] marshallAddresses(List<InetSocketAddress> addresses) {
-		int length = 0;
-		for (InetSocketAddress address : addresses) {
-			/*
-			 * The address varies in ipv4/ipv6, so we put the address length
-			 * before each address.
-			 */
-			length += LENGTH_HEADER_SIZE + address.getAddress().getAddress().length + Short.SIZE / 8;
-		}
-		ByteBuffer buffer = ByteBuffer.allocate(length + LENGTH_HEADER_SIZE);
-		buffer.putInt(addresses.size());
+	private static ByteBuffer acquire(BufferPool pool, int length) {
+		// Frames larger than the pool holds are rare enough to allocate, the
+		// pool drops them when released.
+		return length > TransferCommand.MAX_BLOCK_SIZE ? ByteBuffer.allocate(length) : pool.acquire(length);
+	}
+
+	private static int addressesLength(List<InetSocketAddress> addresses) {
+		int length = LENGTH_HEADER_SIZE;
 		for (InetSocketAddress address : addresses) {
-			byte[] bytes = address.getAddress().getAddress();
-			buffer.putInt(bytes.length);
-			buffer.put(bytes);
-			buffer.putShort((short) address.getPort());
+			length += addressLength(address);
 		}
-		return buffer.array();
+		return length;
 	}
 
-	private byte[] marshallDisconnectMessage(DisconnectMessage message) {
-		int length = 1;
-		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE + length);
-		buffer.putInt(1);
-		buffer.put(DISCONNECT_MESSAGE);
-		return buffer.array();
+	private static List<InetSocketAddress> resultAddresses(ResultMessage result) {
+		if (result.getAddress() == null) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(result.getAddress());
 	}
 
-	private byte[] marshallMeasurementMessage(MeasurementMessage message) throws MarshalException {
-		byte[] commandBytes = marshallTransferCommand(message.getCommand());
-		int length = 1 + commandBytes.length;
-		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE + length);
-		buffer.putInt(length);
-		buffer.put(MEASUREMENT_MESSAGE);
-		buffer.put(commandBytes);
-		return buffer.array();
+	/**
+	 * @return the error in UTF-8, empty if the measurement did not fail
+	 */
+	private static byte[] errorBytes(ResultMessage result) {
+		if (result.getError() == null) {
+			return new byte[0];
+		}
+		return result.getError().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int addressLength(InetSocketAddress address) {
+		return LENGTH_HEADER_SIZE + (address.getAddress() instanceof Inet4Address ? 4 : 16) + Short.SIZE / 8;
+	}
+
+	private static int commandLength(TransferCommand command) {
+		int length = 1 + Long.SIZE / 8 + Integer.SIZE / 8 + Integer.SIZE / 8 + 1;
+		if (command instanceof TransferDatagramsAtFixedRate || command instanceof TransferPingPong
+				|| command instanceof TransferDuringFixedTime) {
+			length += Long.SIZE / 8;
+		}
+		return length;
+	}
+
+	/**
+	 * @param message
+	 * @return the size in bytes of the frame holding the message, length
+	 *         header included
+	 * @throws MarshalException
+	 *             {@link Message} or {@link TransferCommand} unknown by
+	 *             {@link MessageMarshaller}.
+	 */
+	public int frameLength(Message message) throws MarshalException {
+		return LENGTH_HEADER_SIZE + messageLength(message);
+	}
+
+	/**
+	 * @param speed
+	 * @return the size in bytes of the frame holding the speed, length header
+	 *         included
+	 */
+	public int frameLength(SpeedMeasurement speed) {
+		return LENGTH_HEADER_SIZE + speedLength(speed);
+	}
+
+	/**
+	 * @param speeds
+	 * @return the size in bytes of the frame holding the speeds, length header
+	 *         included
+	 */
+	public int frameLength(SpeedMeasurement[] speeds) {
+		return LENGTH_HEADER_SIZE + speedsLength(speeds);
+	}
+
+	/**
+	 * @param settings
+	 * @return the size in bytes of the frame holding the settings, length
+	 *         header included
+	 */
+	public int frameLength(SocketSettings settings) {
+		return LENGTH_HEADER_SIZE + settingsLength(settings);
+	}
+
+	private static int histogramLength(LatencyHistogram histogram) {
+		int length = varLongLength(histogram.getMin()) + varLongLength(histogram.getMax())
+				+ varLongLength(usedBuckets(histogram));
+		int previous = 0;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			if (histogram.getCount(i) > 0) {
+				length += varLongLength(i - previous) + varLongLength(histogram.getCount(i));
+				previous = i;
+			}
+		}
+		return length;
 	}
 
 	/**
@@ -145,27 +317,138 @@ public class MessageMarshaller {
 	 *             {@link MessageMarshaller}.
 	 */
 	public byte[] marshallMessage(Message message) throws MarshalException {
+		ByteBuffer buffer = ByteBuffer.allocate(frameLength(message));
+		marshallMessage(message, buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * Write the frame holding the message without allocating, unless an
+	 * address has to be written: {@link InetAddress#getAddress()} returns a
+	 * copy.
+	 * 
+	 * @param message
+	 * @param buffer
+	 *            where the frame is written, from its position on, with at
+	 *            least {@link #frameLength(Message)} bytes remaining
+	 * @throws MarshalException
+	 *             {@link Message} or {@link TransferCommand} unknown by
+	 *             {@link MessageMarshaller}.
+	 */
+	public void marshallMessage(Message message, ByteBuffer buffer) throws MarshalException {
+		buffer.putInt(messageLength(message));
 		if (message instanceof MeasurementMessage) {
-			return marshallMeasurementMessage((MeasurementMessage) message);
+			putMeasurementMessage(buffer, (MeasurementMessage) message);
 		} else if (message instanceof StartMessage) {
-			return marshallStartMessage((StartMessage) message);
+			putStartMessage(buffer, (StartMessage) message);
 		} else if (message instanceof StopMessage) {
-			return marshallStopMessage((StopMessage) message);
+			buffer.put(STOP_MESSAGE);
 		} else if (message instanceof DisconnectMessage) {
-			return marshallDisconnectMessage((DisconnectMessage) message);
+			buffer.put(DISCONNECT_MESSAGE);
+		} else if (message instanceof ResultMessage) {
+			ResultMessage result = (ResultMessage) message;
+			buffer.put(RESULT_MESSAGE);
+			buffer.putInt(result.getRequestId());
+			putVarLong(buffer, result.getQueueMillis());
+			putVarLong(buffer, result.getTargetQueueMillis());
+			byte[] error = errorBytes(result);
+			putVarLong(buffer, error.length);
+			buffer.put(error);
+			List<InetSocketAddress> addresses = resultAddresses(result);
+			buffer.putInt(addresses.size());
+			for (InetSocketAddress address : addresses) {
+				putAddress(buffer, address);
+			}
+			// Speeds run up to the end of the frame, so they go last.
+			putSettings(buffer, result.getSourceSettings());
+			putSettings(buffer, result.getTargetSettings());
+			putSpeeds(buffer, result.getSpeeds());
+		} else if (message instanceof ProgressMessage) {
+			putProgressMessage(buffer, (ProgressMessage) message);
 		} else {
 			throw new MarshalException();
 		}
 	}
 
+	/**
+	 * @param message
+	 * @param pool
+	 *            where the buffer is acquired from
+	 * @return a buffer holding the frame, ready to be written and then
+	 *         released to the pool
+	 * @throws MarshalException
+	 *             {@link Message} or {@link TransferCommand} unknown by
+	 *             {@link MessageMarshaller}.
+	 */
+	public ByteBuffer marshallMessage(Message message, BufferPool pool) throws MarshalException {
+		ByteBuffer buffer = acquire(pool, frameLength(message));
+		marshallMessage(message, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
 	/**
 	 * @param speed
 	 * @return a byte representation of the given speed
 	 */
 	public byte[] marshallSpeed(SpeedMeasurement speed) {
-		SpeedMeasurement[] speeds = new SpeedMeasurement[1];
-		speeds[0] = speed;
-		return marshallSpeeds(speeds);
+		ByteBuffer buffer = ByteBuffer.allocate(frameLength(speed));
+		marshallSpeed(speed, buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * Write the frame holding the speed without allocating
+	 * 
+	 * @param speed
+	 * @param buffer
+	 *            where the frame is written, from its position on, with at
+	 *            least {@link #frameLength(SpeedMeasurement)} bytes remaining
+	 */
+	public void marshallSpeed(SpeedMeasurement speed, ByteBuffer buffer) {
+		buffer.putInt(speedLength(speed));
+		putSpeed(buffer, speed);
+	}
+
+	/**
+	 * @param speed
+	 * @param pool
+	 *            where the buffer is acquired from
+	 * @return a buffer holding the frame, ready to be written and then
+	 *         released to the pool
+	 */
+	public ByteBuffer marshallSpeed(SpeedMeasurement speed, BufferPool pool) {
+		ByteBuffer buffer = acquire(pool, frameLength(speed));
+		marshallSpeed(speed, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Write the frame holding the settings without allocating
+	 * 
+	 * @param settings
+	 * @param buffer
+	 *            where the frame is written, from its position on, with at
+	 *            least {@link #frameLength(SocketSettings)} bytes remaining
+	 */
+	public void marshallSettings(SocketSettings settings, ByteBuffer buffer) {
+		buffer.putInt(settingsLength(settings));
+		putSettings(buffer, settings);
+	}
+
+	/**
+	 * @param settings
+	 * @param pool
+	 *            where the buffer is acquired from
+	 * @return a buffer holding the frame, ready to be written and then
+	 *         released to the pool
+	 */
+	public ByteBuffer marshallSettings(SocketSettings settings, BufferPool pool) {
+		ByteBuffer buffer = acquire(pool, frameLength(settings));
+		marshallSettings(settings, buffer);
+		buffer.flip();
+		return buffer;
 	}
 
 	/**
@@ -173,59 +456,331 @@ public class MessageMarshaller {
 	 * @return a byte representation of the given speed array
 	 */
 	public byte[] marshallSpeeds(SpeedMeasurement[] speeds) {
-		int length = (Long.SIZE / 8) * 3 * speeds.length;
-		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE + length);
-		buffer.putInt(length);
-		for (SpeedMeasurement speed : speeds) {
-			buffer.putLong(speed.getStart());
-			buffer.putLong(speed.getEnd());
-			buffer.putLong(speed.getKilobytes());
-		}
+		ByteBuffer buffer = ByteBuffer.allocate(frameLength(speeds));
+		marshallSpeeds(speeds, buffer);
 		return buffer.array();
 	}
 
-	private byte[] marshallStartMessage(StartMessage message) throws MarshalException {
-		byte[] commandBytes = marshallTransferCommand(message.getCommand());
-		byte[] addressBytes = marshallAddresses(message.getAddresses());
-		int length = 1 + commandBytes.length + addressBytes.length;
-		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE + length);
-		buffer.putInt(length);
-		buffer.put(START_MESSAGE);
-		buffer.put(commandBytes);
-		buffer.put(addressBytes);
-		return buffer.array();
+	/**
+	 * Write the frame holding the speeds without allocating
+	 * 
+	 * @param speeds
+	 * @param buffer
+	 *            where the frame is written, from its position on, with at
+	 *            least {@link #frameLength(SpeedMeasurement[])} bytes
+	 *            remaining
+	 */
+	public void marshallSpeeds(SpeedMeasurement[] speeds, ByteBuffer buffer) {
+		buffer.putInt(speedsLength(speeds));
+		putSpeeds(buffer, speeds);
 	}
 
-	private byte[] marshallStopMessage(StopMessage message) {
-		int length = 1;
-		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE + length);
-		buffer.putInt(1);
-		buffer.put(STOP_MESSAGE);
-		return buffer.array();
+	private int messageLength(Message message) throws MarshalException {
+		if (message instanceof MeasurementMessage) {
+			MeasurementMessage measurement = (MeasurementMessage) message;
+			return 1 + commandLength(measurement.getCommand()) + Integer.SIZE / 8 + 1
+					+ settingsLength(measurement.getSettings());
+		} else if (message instanceof StartMessage) {
+			StartMessage start = (StartMessage) message;
+			return 1 + commandLength(start.getCommand()) + addressesLength(start.getAddresses()) + Integer.SIZE / 8
+					+ 1 + settingsLength(start.getSettings()) + Integer.SIZE / 8 * 2;
+		} else if (message instanceof StopMessage || message instanceof DisconnectMessage) {
+			return 1;
+		} else if (message instanceof ResultMessage) {
+			ResultMessage result = (ResultMessage) message;
+			return 1 + Integer.SIZE / 8 + varLongLength(result.getQueueMillis())
+					+ varLongLength(result.getTargetQueueMillis()) + varLongLength(errorBytes(result).length)
+					+ errorBytes(result).length + addressesLength(resultAddresses(result))
+					+ settingsLength(result.getSourceSettings()) + settingsLength(result.getTargetSettings())
+					+ speedsLength(result.getSpeeds());
+		} else if (message instanceof ProgressMessage) {
+			ProgressMessage progress = (ProgressMessage) message;
+			return 1 + Integer.SIZE / 8 + LENGTH_HEADER_SIZE + addressLength(progress.getAddress())
+					+ Integer.SIZE / 8 + 1 + speedLength(progress.getInterval());
+		} else {
+			throw new MarshalException();
+		}
 	}
 
-	private byte[] marshallTransferCommand(TransferCommand command) throws MarshalException {
-		// No length header is appended because this is currently embedded in
-		// other messages.
-		int length = 1 + Long.SIZE / 8;
-		ByteBuffer buffer = ByteBuffer.allocate(length);
+	/*
+	 * The address varies in ipv4/ipv6, so we put the address length before
+	 * each address.
+	 */
+	private static void putAddress(ByteBuffer buffer, InetSocketAddress address) {
+		byte[] bytes = address.getAddress().getAddress();
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		buffer.putShort((short) address.getPort());
+	}
+
+	private void putCommand(ByteBuffer buffer, TransferCommand command) throws MarshalException {
 		if (command instanceof TransferDuringFixedTime) {
 			buffer.put(FIXED_TIME_COMMAND);
 			buffer.putLong(((TransferDuringFixedTime) command).getMilliseconds());
 		} else if (command instanceof TransferWithFixedSize) {
 			buffer.put(FIXED_SIZE_COMMAND);
 			buffer.putLong(((TransferWithFixedSize) command).getKilobytesToSend());
+		} else if (command instanceof TransferWithZeroCopy) {
+			buffer.put(ZERO_COPY_COMMAND);
+			buffer.putLong(((TransferWithZeroCopy) command).getKilobytesToSend());
+		} else if (command instanceof TransferDatagramsAtFixedRate) {
+			buffer.put(DATAGRAM_COMMAND);
+			buffer.putLong(((TransferDatagramsAtFixedRate) command).getMilliseconds());
+		} else if (command instanceof TransferPingPong) {
+			buffer.put(PING_PONG_COMMAND);
+			buffer.putLong(((TransferPingPong) command).getRoundTrips());
 		} else {
 			throw new MarshalException();
 		}
-		return buffer.array();
+		buffer.putInt(command.getBlockSize());
+		buffer.putInt(command.getSampleInterval());
+		buffer.put((byte) (command.isVerifying() ? 1 : 0));
+		if (command instanceof TransferDatagramsAtFixedRate) {
+			buffer.putLong(((TransferDatagramsAtFixedRate) command).getKilobytesPerSecond());
+		} else if (command instanceof TransferPingPong) {
+			buffer.putLong(((TransferPingPong) command).getMilliseconds());
+		} else if (command instanceof TransferDuringFixedTime) {
+			buffer.putLong(((TransferDuringFixedTime) command).getWarmupMillis());
+		}
+	}
+
+	/**
+	 * Histograms are written as variable length integers, the lowest and
+	 * highest values, the amount of buckets holding values and, for each of
+	 * them, the distance to the previous one and its count.
+	 */
+	private static void putHistogram(ByteBuffer buffer, LatencyHistogram histogram) {
+		putVarLong(buffer, histogram.getMin());
+		putVarLong(buffer, histogram.getMax());
+		putVarLong(buffer, usedBuckets(histogram));
+		int previous = 0;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			if (histogram.getCount(i) > 0) {
+				putVarLong(buffer, i - previous);
+				putVarLong(buffer, histogram.getCount(i));
+				previous = i;
+			}
+		}
+	}
+
+	private void putMeasurementMessage(ByteBuffer buffer, MeasurementMessage message)
+			throws MarshalException {
+		buffer.put(MEASUREMENT_MESSAGE);
+		putCommand(buffer, message.getCommand());
+		buffer.putInt(message.getParallelism());
+		buffer.put((byte) (message.isBidirectional() ? 1 : 0));
+		putSettings(buffer, message.getSettings());
+	}
+
+	private static void putProgressMessage(ByteBuffer buffer, ProgressMessage message) {
+		buffer.put(PROGRESS_MESSAGE);
+		buffer.putInt(message.getRequestId());
+		buffer.putInt(1);
+		putAddress(buffer, message.getAddress());
+		buffer.putInt(message.getStream());
+		buffer.put((byte) (message.isSending() ? 1 : 0));
+		putSpeed(buffer, message.getInterval());
+	}
+
+	/**
+	 * Samples are written as variable length integers, the interval, the
+	 * amount of samples and the difference of each sample with the previous
+	 * one, as consecutive samples of a steady transfer are similar.
+	 */
+	private static void putSamples(ByteBuffer buffer, SpeedMeasurement speed) {
+		long[] samples = speed.getSamples();
+		putVarLong(buffer, speed.getSampleInterval());
+		putVarLong(buffer, samples.length);
+		long previous = 0;
+		for (long sample : samples) {
+			putVarLong(buffer, zigZag(sample - previous));
+			previous = sample;
+		}
+	}
+
+	private static void putSpeed(ByteBuffer buffer, SpeedMeasurement speed) {
+		byte flags = 0;
+		if (speed instanceof DatagramMeasurement) {
+			flags |= DATAGRAM_SPEED;
+		}
+		if (speed.getSampleInterval() > 0) {
+			flags |= SAMPLED_SPEED;
+		}
+		if (speed instanceof LatencyMeasurement) {
+			flags |= LATENCY_SPEED;
+		}
+		if (speed.isHostBound()) {
+			flags |= HOST_BOUND_SPEED;
+		}
+		if (speed.isVerified()) {
+			flags |= VERIFIED_SPEED;
+		}
+		if (speed.isCorrupted()) {
+			flags |= CORRUPTED_SPEED;
+		}
+		buffer.put(flags);
+		buffer.putLong(speed.getStart());
+		buffer.putLong(speed.getEnd());
+		buffer.putLong(speed.getBytes());
+		if (speed instanceof DatagramMeasurement) {
+			DatagramMeasurement datagrams = (DatagramMeasurement) speed;
+			buffer.putLong(datagrams.getReceived());
+			buffer.putLong(datagrams.getLost());
+			buffer.putLong(datagrams.getOutOfOrder());
+			buffer.putLong(datagrams.getJitter());
+		}
+		if (speed.getSampleInterval() > 0) {
+			putSamples(buffer, speed);
+		}
+		if (speed instanceof LatencyMeasurement) {
+			putHistogram(buffer, ((LatencyMeasurement) speed).getHistogram());
+		}
+		if (speed.isVerified()) {
+			putVarLong(buffer, speed.getChecksumNanos());
+		}
+	}
+
+	private static void putSpeeds(ByteBuffer buffer, SpeedMeasurement[] speeds) {
+		for (SpeedMeasurement speed : speeds) {
+			putSpeed(buffer, speed);
+		}
+	}
+
+	private void putStartMessage(ByteBuffer buffer, StartMessage message) throws MarshalException {
+		buffer.put(START_MESSAGE);
+		putCommand(buffer, message.getCommand());
+		buffer.putInt(message.getAddresses().size());
+		for (InetSocketAddress address : message.getAddresses()) {
+			putAddress(buffer, address);
+		}
+		buffer.putInt(message.getParallelism());
+		buffer.put((byte) ((message.isBidirectional() ? BIDIRECTIONAL : 0)
+				| (message.isFreshConnections() ? FRESH_CONNECTIONS : 0)));
+		putSettings(buffer, message.getSettings());
+		buffer.putInt(message.getRequestId());
+		buffer.putInt(message.getPriority());
+	}
+
+	private static void putSettings(ByteBuffer buffer, SocketSettings settings) {
+		byte options = 0;
+		if (settings.getSendBufferSize() != null) {
+			options |= SEND_BUFFER_OPTION;
+		}
+		if (settings.getReceiveBufferSize() != null) {
+			options |= RECEIVE_BUFFER_OPTION;
+		}
+		if (settings.getNoDelay() != null) {
+			options |= NO_DELAY_OPTION;
+		}
+		if (settings.getTrafficClass() != null) {
+			options |= TRAFFIC_CLASS_OPTION;
+		}
+		if (settings.getLinger() != null) {
+			options |= LINGER_OPTION;
+		}
+		buffer.put(options);
+		if (settings.getSendBufferSize() != null) {
+			buffer.putInt(settings.getSendBufferSize());
+		}
+		if (settings.getReceiveBufferSize() != null) {
+			buffer.putInt(settings.getReceiveBufferSize());
+		}
+		if (settings.getNoDelay() != null) {
+			buffer.put((byte) (settings.getNoDelay() ? 1 : 0));
+		}
+		if (settings.getTrafficClass() != null) {
+			buffer.putInt(settings.getTrafficClass());
+		}
+		if (settings.getLinger() != null) {
+			buffer.putInt(settings.getLinger());
+		}
+	}
+
+	private static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int samplesLength(SpeedMeasurement speed) {
+		if (speed.getSampleInterval() == 0) {
+			return 0;
+		}
+		long[] samples = speed.getSamples();
+		int length = varLongLength(speed.getSampleInterval()) + varLongLength(samples.length);
+		long previous = 0;
+		for (long sample : samples) {
+			length += varLongLength(zigZag(sample - previous));
+			previous = sample;
+		}
+		return length;
+	}
+
+	private static int speedLength(SpeedMeasurement speed) {
+		int length = speed instanceof DatagramMeasurement ? DATAGRAM_SPEED_SIZE : PLAIN_SPEED_SIZE;
+		length += samplesLength(speed);
+		if (speed instanceof LatencyMeasurement) {
+			length += histogramLength(((LatencyMeasurement) speed).getHistogram());
+		}
+		if (speed.isVerified()) {
+			length += varLongLength(speed.getChecksumNanos());
+		}
+		return length;
+	}
+
+	private static int settingsLength(SocketSettings settings) {
+		int length = 1;
+		length += settings.getSendBufferSize() == null ? 0 : Integer.SIZE / 8;
+		length += settings.getReceiveBufferSize() == null ? 0 : Integer.SIZE / 8;
+		length += settings.getNoDelay() == null ? 0 : 1;
+		length += settings.getTrafficClass() == null ? 0 : Integer.SIZE / 8;
+		length += settings.getLinger() == null ? 0 : Integer.SIZE / 8;
+		return length;
+	}
+
+	private static int speedsLength(SpeedMeasurement[] speeds) {
+		int length = 0;
+		for (SpeedMeasurement speed : speeds) {
+			length += speedLength(speed);
+		}
+		return length;
+	}
+
+	private static int usedBuckets(LatencyHistogram histogram) {
+		int used = 0;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			if (histogram.getCount(i) > 0) {
+				used++;
+			}
+		}
+		return used;
+	}
+
+	private static int varLongLength(long value) {
+		int length = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
 	}
 
 	private List<InetSocketAddress> unmarshallAddresses(ByteBuffer buffer) throws MarshalException {
 		List<InetSocketAddress> addresses = new LinkedList<>();
-		int total = buffer.getInt();
+		int total = checkCount(buffer, buffer.getInt(), LENGTH_HEADER_SIZE + 4 + Short.SIZE / 8);
 		for (int i = 0; i < total; i++) {
+			// Written before each address by putAddress, as ipv4 and ipv6
+			// addresses differ in length.
 			int addressLength = buffer.getInt();
+			if (addressLength != 4 && addressLength != 16) {
+				throw new MarshalException();
+			}
 			byte[] rawAddress = new byte[addressLength];
 			buffer.get(rawAddress);
 			short port = buffer.getShort();
@@ -241,12 +796,31 @@ public class MessageMarshaller {
 
 	private Message unmarshallMeasurementMessage(ByteBuffer buffer) throws MarshalException {
 		TransferCommand command = unmarshallTransferCommand(buffer);
-		return new MeasurementMessage(command);
+		MeasurementMessage message = new MeasurementMessage(command);
+		message.setParallelism(unmarshallParallelism(buffer));
+		message.setBidirectional(buffer.get() != 0);
+		message.setSettings(unmarshallSettings(buffer));
+		return message;
+	}
 
+	/**
+	 * @param buffer
+	 *            a single frame without its length header, as read from a
+	 *            channel
+	 * @return the {@link Message} contained in the buffer
+	 * @throws MarshalException
+	 *             the frame does not contain a known {@link Message}, or is
+	 *             shorter than the message it announces
+	 */
+	public Message unmarshallMessage(ByteBuffer buffer) throws MarshalException {
+		try {
+			return readMessage(buffer);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new MarshalException(e);
+		}
 	}
 
-	private Message unmarshallMessage(byte[] bytes) throws MarshalException {
-		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+	private Message readMessage(ByteBuffer buffer) throws MarshalException {
 		byte messageType = buffer.get();
 		switch (messageType) {
 		case START_MESSAGE:
@@ -257,63 +831,396 @@ public class MessageMarshaller {
 			return new StopMessage();
 		case DISCONNECT_MESSAGE:
 			return new DisconnectMessage();
+		case RESULT_MESSAGE:
+			return unmarshallResultMessage(buffer);
+		case PROGRESS_MESSAGE:
+			return unmarshallProgressMessage(buffer);
 		default:
 			throw new MarshalException();
 		}
 	}
 
+	/**
+	 * @param inputStream
+	 * @return the next {@link Message} read from the stream
+	 * @throws MarshalException
+	 *             the frame does not contain a known {@link Message}
+	 * @throws UncheckedIOException
+	 *             the stream failed or ended before the whole frame arrived
+	 */
 	public Message unmarshallMessage(InputStream inputStream) throws MarshalException {
-		return unmarshallMessage(readRawBytes(inputStream));
+		return unmarshallMessage(ByteBuffer.wrap(readRawBytes(inputStream)));
 	}
 
-	private SpeedMeasurement unmarshallSpeed(ByteBuffer buffer) {
+	/**
+	 * @param channel
+	 *            a channel in blocking mode
+	 * @return the next {@link Message} read from the channel
+	 * @throws MarshalException
+	 *             the frame does not contain a known {@link Message}
+	 * @throws IOException
+	 *             the channel was closed, or the frame is malformed
+	 */
+	public Message unmarshallMessage(ReadableByteChannel channel) throws MarshalException, IOException {
+		return unmarshallMessage(readFrame(channel));
+	}
+
+	private int unmarshallParallelism(ByteBuffer buffer) throws MarshalException {
+		int parallelism = buffer.getInt();
+		if (parallelism < 1) {
+			throw new MarshalException();
+		}
+		return parallelism;
+	}
+
+	private LatencyHistogram unmarshallHistogram(ByteBuffer buffer) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		long min = getVarLong(buffer);
+		long max = getVarLong(buffer);
+		int used = checkCount(buffer, getVarLong(buffer), 2);
+		int index = 0;
+		for (int i = 0; i < used; i++) {
+			index += (int) getVarLong(buffer);
+			if (index < 0 || index >= LatencyHistogram.BUCKETS) {
+				throw new IndexOutOfBoundsException("Bucket " + index);
+			}
+			histogram.record(LatencyHistogram.lowestValue(index), getVarLong(buffer));
+		}
+		if (used > 0) {
+			// An empty histogram is written with a range of zeros, keep it
+			// empty.
+			histogram.setRange(min, max);
+		}
+		return histogram;
+	}
+
+	private Message unmarshallProgressMessage(ByteBuffer buffer) throws MarshalException {
+		int requestId = buffer.getInt();
+		List<InetSocketAddress> addresses = unmarshallAddresses(buffer);
+		int stream = buffer.getInt();
+		boolean sending = buffer.get() != 0;
+		if (addresses.size() != 1) {
+			throw new MarshalException();
+		}
+		ProgressMessage message = new ProgressMessage(addresses.get(0), stream, sending, unmarshallSpeed(buffer));
+		message.setRequestId(requestId);
+		return message;
+	}
+
+	private long[] unmarshallSamples(ByteBuffer buffer) {
+		long[] samples = new long[checkCount(buffer, getVarLong(buffer), 1)];
+		long previous = 0;
+		for (int i = 0; i < samples.length; i++) {
+			long delta = getVarLong(buffer);
+			samples[i] = previous + ((delta >>> 1) ^ -(delta & 1));
+			previous = samples[i];
+		}
+		return samples;
+	}
+
+	private static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte part = buffer.get();
+			value |= (long) (part & 0x7F) << shift;
+			if ((part & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * @param buffer
+	 *            a single frame without its length header, or positioned at a
+	 *            speed inside a larger frame
+	 * @return the {@link SpeedMeasurement} at the buffer's position
+	 */
+	public SpeedMeasurement unmarshallSpeed(ByteBuffer buffer) {
+		byte flags = buffer.get();
 		long start = buffer.getLong();
 		long end = buffer.getLong();
-		long kilobytes = buffer.getLong();
-		return new SpeedMeasurement(start, end, kilobytes);
+		long bytes = buffer.getLong();
+		SpeedMeasurement speed;
+		if ((flags & DATAGRAM_SPEED) != 0) {
+			long received = buffer.getLong();
+			long lost = buffer.getLong();
+			long outOfOrder = buffer.getLong();
+			long jitter = buffer.getLong();
+			speed = new DatagramMeasurement(start, end, bytes, received, lost, outOfOrder, jitter);
+		} else if ((flags & LATENCY_SPEED) != 0) {
+			speed = new LatencyMeasurement(start, end, bytes, unmarshallHistogram(buffer));
+		} else if ((flags & SAMPLED_SPEED) != 0) {
+			long sampleInterval = getVarLong(buffer);
+			speed = new SpeedMeasurement(start, end, bytes, sampleInterval, unmarshallSamples(buffer));
+		} else {
+			speed = new SpeedMeasurement(start, end, bytes);
+		}
+		speed.setHostBound((flags & HOST_BOUND_SPEED) != 0);
+		if ((flags & VERIFIED_SPEED) != 0) {
+			speed.setVerification((flags & CORRUPTED_SPEED) != 0, getVarLong(buffer));
+		}
+		return speed;
 	}
 
 	/**
 	 * @param inputStream
 	 * @return {@link SpeedMeasurement} read from the given inputStream
+	 * @throws UncheckedIOException
+	 *             the stream failed or ended before the whole frame arrived,
+	 *             or the frame is malformed
 	 */
 	public SpeedMeasurement unmarshallSpeed(InputStream inputStream) {
-		return unmarshallSpeed(ByteBuffer.wrap(readRawBytes(inputStream)));
+		try {
+			return unmarshallSpeed(ByteBuffer.wrap(readRawBytes(inputStream)));
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new UncheckedIOException(malformed(e));
+		}
+	}
+
+	/**
+	 * @param channel
+	 *            a channel in blocking mode
+	 * @return {@link SpeedMeasurement} read from the given channel
+	 * @throws IOException
+	 *             the channel was closed, or the frame is malformed
+	 */
+	public SpeedMeasurement unmarshallSpeed(ReadableByteChannel channel) throws IOException {
+		try {
+			return unmarshallSpeed(readFrame(channel));
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw malformed(e);
+		}
 	}
 
-	private SpeedMeasurement[] unmarshallSpeeds(ByteBuffer buffer) {
-		int speedsToRead = (buffer.capacity()) / ((Long.SIZE / 8) * 3);
-		SpeedMeasurement[] speeds = new SpeedMeasurement[speedsToRead];
-		for (int i = 0; i < speedsToRead; i++) {
+	/**
+	 * @param buffer
+	 *            a single frame without its length header, or positioned at the
+	 *            first of the speeds ending a larger frame
+	 * @return every {@link SpeedMeasurement} from the buffer's position to its
+	 *         limit
+	 */
+	public SpeedMeasurement[] unmarshallSpeeds(ByteBuffer buffer) {
+		int first = buffer.position();
+		int count = 0;
+		while (buffer.hasRemaining()) {
+			skipSpeed(buffer);
+			count++;
+		}
+		buffer.position(first);
+		SpeedMeasurement[] speeds = new SpeedMeasurement[count];
+		for (int i = 0; i < count; i++) {
 			speeds[i] = unmarshallSpeed(buffer);
 		}
 		return speeds;
 	}
 
+	private static void skipSpeed(ByteBuffer buffer) {
+		byte flags = buffer.get(buffer.position());
+		buffer.position(buffer.position() + ((flags & DATAGRAM_SPEED) != 0 ? DATAGRAM_SPEED_SIZE : PLAIN_SPEED_SIZE));
+		if ((flags & LATENCY_SPEED) != 0) {
+			getVarLong(buffer);
+			getVarLong(buffer);
+			for (long varLongs = 2 * getVarLong(buffer); varLongs > 0; varLongs--) {
+				getVarLong(buffer);
+			}
+		} else if ((flags & SAMPLED_SPEED) != 0) {
+			getVarLong(buffer);
+			for (long varLongs = getVarLong(buffer); varLongs > 0; varLongs--) {
+				getVarLong(buffer);
+			}
+		}
+		if ((flags & VERIFIED_SPEED) != 0) {
+			getVarLong(buffer);
+		}
+	}
+
 	/**
 	 * @param inputStream
 	 * @return {@link SpeedMeasurement} array from the given input stream
+	 * @throws UncheckedIOException
+	 *             the stream failed or ended before the whole frame arrived,
+	 *             or the frame is malformed
 	 */
 	public SpeedMeasurement[] unmarshallSpeeds(InputStream inputStream) {
-		return unmarshallSpeeds(ByteBuffer.wrap(readRawBytes(inputStream)));
+		try {
+			return unmarshallSpeeds(ByteBuffer.wrap(readRawBytes(inputStream)));
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new UncheckedIOException(malformed(e));
+		}
+	}
+
+	/**
+	 * @param channel
+	 *            a channel in blocking mode
+	 * @return {@link SpeedMeasurement} array from the given channel
+	 * @throws IOException
+	 *             the channel was closed, or the frame is malformed
+	 */
+	public SpeedMeasurement[] unmarshallSpeeds(ReadableByteChannel channel) throws IOException {
+		try {
+			return unmarshallSpeeds(readFrame(channel));
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw malformed(e);
+		}
+	}
+
+	private Message unmarshallResultMessage(ByteBuffer buffer) throws MarshalException {
+		int requestId = buffer.getInt();
+		long queueMillis = getVarLong(buffer);
+		long targetQueueMillis = getVarLong(buffer);
+		byte[] error = new byte[checkCount(buffer, getVarLong(buffer), 1)];
+		buffer.get(error);
+		List<InetSocketAddress> addresses = unmarshallAddresses(buffer);
+		if (addresses.size() > 1) {
+			throw new MarshalException();
+		}
+		SocketSettings source = unmarshallSettings(buffer);
+		SocketSettings target = unmarshallSettings(buffer);
+		ResultMessage message = new ResultMessage(unmarshallSpeeds(buffer));
+		message.setRequestId(requestId);
+		message.setQueueMillis(queueMillis);
+		message.setTargetQueueMillis(targetQueueMillis);
+		message.setError(error.length == 0 ? null : new String(error, StandardCharsets.UTF_8));
+		message.setAddress(addresses.isEmpty() ? null : addresses.get(0));
+		message.setSourceSettings(source);
+		message.setTargetSettings(target);
+		return message;
+	}
+
+	/**
+	 * @param buffer
+	 *            a single frame without its length header, or positioned at
+	 *            settings inside a larger frame
+	 * @return the {@link SocketSettings} at the buffer's position
+	 */
+	public SocketSettings unmarshallSettings(ByteBuffer buffer) {
+		byte options = buffer.get();
+		SocketSettings settings = new SocketSettings();
+		if ((options & SEND_BUFFER_OPTION) != 0) {
+			settings.setSendBufferSize(buffer.getInt());
+		}
+		if ((options & RECEIVE_BUFFER_OPTION) != 0) {
+			settings.setReceiveBufferSize(buffer.getInt());
+		}
+		if ((options & NO_DELAY_OPTION) != 0) {
+			settings.setNoDelay(buffer.get() != 0);
+		}
+		if ((options & TRAFFIC_CLASS_OPTION) != 0) {
+			settings.setTrafficClass(buffer.getInt());
+		}
+		if ((options & LINGER_OPTION) != 0) {
+			settings.setLinger(buffer.getInt());
+		}
+		return settings;
+	}
+
+	/**
+	 * @param channel
+	 *            a channel in blocking mode
+	 * @return {@link SocketSettings} read from the given channel
+	 * @throws IOException
+	 *             the channel was closed, or the frame is malformed
+	 */
+	public SocketSettings unmarshallSettings(ReadableByteChannel channel) throws IOException {
+		try {
+			return unmarshallSettings(readFrame(channel));
+		} catch (BufferUnderflowException e) {
+			throw malformed(e);
+		}
 	}
 
 	private Message unmarshallStartMessage(ByteBuffer buffer) throws MarshalException {
 		TransferCommand command = unmarshallTransferCommand(buffer);
 		List<InetSocketAddress> addresses = unmarshallAddresses(buffer);
-		return new StartMessage(addresses, command);
+		StartMessage message = new StartMessage(addresses, command);
+		message.setParallelism(unmarshallParallelism(buffer));
+		byte flags = buffer.get();
+		message.setBidirectional((flags & BIDIRECTIONAL) != 0);
+		message.setFreshConnections((flags & FRESH_CONNECTIONS) != 0);
+		message.setSettings(unmarshallSettings(buffer));
+		message.setRequestId(buffer.getInt());
+		message.setPriority(buffer.getInt());
+		return message;
 	}
 
 	private TransferCommand unmarshallTransferCommand(ByteBuffer buffer) throws MarshalException {
 		byte commandType = buffer.get();
 		long data = buffer.getLong();
+		int blockSize = buffer.getInt();
+		int sampleInterval = buffer.getInt();
+		boolean verifying = buffer.get() != 0;
+		if (blockSize < 1 || blockSize > TransferCommand.MAX_BLOCK_SIZE || sampleInterval < 0) {
+			throw new MarshalException();
+		}
+		TransferCommand command;
 		switch (commandType) {
 		case FIXED_TIME_COMMAND:
-			return new TransferDuringFixedTime(data);
+			long warmupMillis = buffer.getLong();
+			if (warmupMillis < 0 && warmupMillis != TransferDuringFixedTime.AUTOMATIC_WARMUP) {
+				throw new MarshalException();
+			}
+			TransferDuringFixedTime fixedTime = new TransferDuringFixedTime(data, blockSize);
+			fixedTime.setWarmupMillis(warmupMillis);
+			command = fixedTime;
+			break;
 		case FIXED_SIZE_COMMAND:
-			return new TransferWithFixedSize(data);
+			command = new TransferWithFixedSize(data, blockSize);
+			break;
+		case ZERO_COPY_COMMAND:
+			command = new TransferWithZeroCopy(data, blockSize);
+			break;
+		case DATAGRAM_COMMAND:
+			long kilobytesPerSecond = buffer.getLong();
+			if (blockSize < TransferDatagramsAtFixedRate.MIN_DATAGRAM_SIZE
+					|| blockSize > TransferDatagramsAtFixedRate.MAX_DATAGRAM_SIZE || kilobytesPerSecond < 1) {
+				throw new MarshalException();
+			}
+			command = new TransferDatagramsAtFixedRate(data, kilobytesPerSecond, blockSize);
+			break;
+		case PING_PONG_COMMAND:
+			long milliseconds = buffer.getLong();
+			if (blockSize < TransferPingPong.MIN_PING_SIZE || (data <= 0 && milliseconds <= 0)) {
+				throw new MarshalException();
+			}
+			command = new TransferPingPong(data, milliseconds, blockSize);
+			break;
 		default:
 			throw new MarshalException();
 		}
+		if (verifying && !command.supportsVerification()) {
+			throw new MarshalException();
+		}
+		command.setSampleInterval(sampleInterval);
+		command.setVerifying(verifying);
+		return command;
+	}
+
+	/**
+	 * Write marshalled bytes to a channel in blocking mode, without going
+	 * through a stream that would serialize it with concurrent reads.
+	 * 
+	 * @param channel
+	 * @param bytes
+	 *            as returned by any of the marshall methods
+	 * @throws IOException
+	 */
+	public void write(WritableByteChannel channel, byte[] bytes) throws IOException {
+		write(channel, ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Write a marshalled frame to a channel in blocking mode, from the
+	 * buffer's position to its limit.
+	 * 
+	 * @param channel
+	 * @param buffer
+	 *            as returned by any of the marshall methods taking a
+	 *            {@link BufferPool}
+	 * @throws IOException
+	 */
+	public void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
 	}
 }
@@ -48,6 +48,20 @@ public interface MessageVisitor {
 	 */
 	void acceptMeasurementMessage(MeasurementMessage dataMessage);
 
+	/**
+	 * See visitor pattern
+	 * 
+	 * @param progressMessage
+	 */
+	void acceptProgressMessage(ProgressMessage progressMessage);
+
+	/**
+	 * See visitor pattern
+	 * 
+	 * @param resultMessage
+	 */
+	void acceptResultMessage(ResultMessage resultMessage);
+
 	/**
 	 * See visitor pattern
 	 * 
@@ -0,0 +1,156 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pseudo-random bytes to send, built once per JVM, so compressing links and
+ * WAN optimizers can not shrink the transferred data the way they shrink a
+ * repeating pattern.
+ *
+ * Transfers read the pool through a {@link Cursor} of their own, which hands
+ * out consecutive regions of it without copying or allocating. Each cursor
+ * starts at a different offset, so concurrent transfers send different data.
+ * The pool is {@link #POOL_SIZE} bytes long, twice
+ * {@link TransferCommand#MAX_BLOCK_SIZE}, and generated from a fixed seed, so
+ * every server holds the same bytes.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class PayloadPool {
+
+	/**
+	 * The size of the pool, which bounds the size of a region.
+	 */
+	public static final int POOL_SIZE = 2 * TransferCommand.MAX_BLOCK_SIZE;
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+	// A prime stride keeps starting offsets of consecutive cursors apart.
+	private static final int CURSOR_STRIDE = 1000003;
+	private static PayloadPool shared;
+
+	/**
+	 * @return the pool shared by every transfer, built on first use
+	 */
+	public static synchronized PayloadPool shared() {
+		if (shared == null) {
+			shared = new PayloadPool(POOL_SIZE);
+		}
+		return shared;
+	}
+
+	private ByteBuffer pool;
+	private AtomicInteger cursors;
+
+	private PayloadPool(int size) {
+		ByteBuffer bytes = ByteBuffer.allocateDirect(size);
+		// xorshift64*, fast and far from anything a compressor can model.
+		long state = SEED;
+		while (bytes.remaining() >= Long.SIZE / 8) {
+			state ^= state >>> 12;
+			state ^= state << 25;
+			state ^= state >>> 27;
+			bytes.putLong(state * 0x2545F4914F6CDD1DL);
+		}
+		bytes.clear();
+		pool = bytes.asReadOnlyBuffer();
+		cursors = new AtomicInteger();
+	}
+
+	/**
+	 * A position in the pool owned by a single transfer.
+	 */
+	public class Cursor {
+		private ByteBuffer view;
+		private int offset;
+		private ByteBuffer[] parts;
+
+		private Cursor(int offset) {
+			this.view = pool.duplicate();
+			this.offset = offset;
+			this.parts = new ByteBuffer[2];
+		}
+
+		/**
+		 * @param length
+		 *            at most {@link PayloadPool#POOL_SIZE} bytes
+		 * @return the next region of the pool, valid until the next call,
+		 *         wrapping to the start of the pool when the region would not
+		 *         fit before its end
+		 */
+		public ByteBuffer next(int length) {
+			if (offset + length > view.capacity()) {
+				offset = 0;
+			}
+			view.limit(offset + length);
+			view.position(offset);
+			offset += length;
+			return view;
+		}
+
+		/**
+		 * @param header
+		 *            bytes written before the region
+		 * @param region
+		 *            as returned by {@link #next(int)}
+		 * @return both buffers for a gathering write, valid until the next
+		 *         call
+		 */
+		public ByteBuffer[] parts(ByteBuffer header, ByteBuffer region) {
+			parts[0] = header;
+			parts[1] = region;
+			return parts;
+		}
+	}
+
+	/**
+	 * @return a cursor starting where no recent cursor started
+	 */
+	public Cursor cursor() {
+		return new Cursor(Math.floorMod(cursors.getAndIncrement() * CURSOR_STRIDE, pool.capacity()));
+	}
+
+	/**
+	 * Copy pool bytes into a buffer, for transfers that send the same buffer
+	 * over and over.
+	 *
+	 * @param buffer
+	 *            filled from its position to its limit, which is left at its
+	 *            position
+	 */
+	public void fill(ByteBuffer buffer) {
+		ByteBuffer region = cursor().next(Math.min(buffer.remaining(), pool.capacity()));
+		int position = buffer.position();
+		while (buffer.hasRemaining()) {
+			region.limit(Math.min(region.capacity(), region.position() + buffer.remaining()));
+			buffer.put(region);
+			region.clear();
+		}
+		buffer.position(position);
+	}
+}
@@ -0,0 +1,53 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * Notified by a {@link TransferCommand} every time an interval of the
+ * transfer elapses, from the thread moving the data.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public interface ProgressListener {
+
+	/**
+	 * A listener ignoring every interval.
+	 */
+	ProgressListener NONE = new ProgressListener() {
+		@Override
+		public void progress(SpeedMeasurement interval) {
+		}
+	};
+
+	/**
+	 * Must not block, the transfer waits until it returns.
+	 * 
+	 * @param interval
+	 *            the bytes transferred during the interval that just elapsed
+	 */
+	void progress(SpeedMeasurement interval);
+}
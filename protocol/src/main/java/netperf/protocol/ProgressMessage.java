@@ -0,0 +1,117 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.net.InetSocketAddress;
+
+/**
+ * A message sent to the controller while a measurement runs, with the speed
+ * of a single interval of one of its transfers.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class ProgressMessage implements Message {
+
+	private InetSocketAddress address;
+	private SpeedMeasurement interval;
+	private boolean sending;
+	private int stream;
+	private int requestId;
+
+	/**
+	 * @param address
+	 *            the address measured against
+	 * @param stream
+	 *            the connection to the address the interval belongs to, when
+	 *            measuring over several at once
+	 * @param sending
+	 *            whether data was sent to or read from the address
+	 * @param interval
+	 *            the bytes transferred during the interval
+	 */
+	public ProgressMessage(InetSocketAddress address, int stream, boolean sending, SpeedMeasurement interval) {
+		this.address = address;
+		this.stream = stream;
+		this.sending = sending;
+		this.interval = interval;
+	}
+
+	/**
+	 * @return the id of the {@link StartMessage} this message answers, zero
+	 *         if it had none
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @param requestId
+	 *            the id of the {@link StartMessage} this message answers
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	@Override
+	public void accept(MessageVisitor visitor) {
+		visitor.acceptProgressMessage(this);
+	}
+
+	/**
+	 * @return the address measured against
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the bytes transferred during the interval
+	 */
+	public SpeedMeasurement getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return the connection to the address the interval belongs to
+	 */
+	public int getStream() {
+		return stream;
+	}
+
+	/**
+	 * @return whether data was sent to or read from the address
+	 */
+	public boolean isSending() {
+		return sending;
+	}
+
+	@Override
+	public String toString() {
+		return "Progress " + (sending ? "sending to " : "reading from ") + address + " stream " + stream + ": "
+				+ interval;
+	}
+}
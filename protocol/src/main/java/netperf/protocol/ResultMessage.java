@@ -0,0 +1,197 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.net.InetSocketAddress;
+
+/**
+ * A message with the speeds measured for a {@link StartMessage}, sent back
+ * through the connection the {@link StartMessage} arrived from.
+ * 
+ * Each address of the {@link StartMessage} gets its own result, tagged with
+ * the address and the {@link StartMessage#getRequestId()}, so results of
+ * several messages in flight over the same connection can be told apart.
+ * 
+ * The time the measurement waited for the source and the target to admit it
+ * is reported apart from the speeds, which only cover the transfers.
+ * 
+ * A measurement that failed is answered without speeds and with the
+ * {@link #getError()} instead.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class ResultMessage implements Message {
+
+	private InetSocketAddress address;
+	private int requestId;
+	private long queueMillis;
+	private long targetQueueMillis;
+	private String error;
+	private SpeedMeasurement[] speeds;
+	private SocketSettings sourceSettings;
+	private SocketSettings targetSettings;
+
+	/**
+	 * @param speeds
+	 *            the measured speeds
+	 */
+	public ResultMessage(SpeedMeasurement[] speeds) {
+		this.speeds = speeds;
+		this.sourceSettings = new SocketSettings();
+		this.targetSettings = new SocketSettings();
+	}
+
+	@Override
+	public void accept(MessageVisitor visitor) {
+		visitor.acceptResultMessage(this);
+	}
+
+	/**
+	 * @return the address measured against, null if unknown
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @param address
+	 *            the address measured against
+	 */
+	public void setAddress(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * @return the id of the {@link StartMessage} this message answers, zero
+	 *         if it had none
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @param requestId
+	 *            the id of the {@link StartMessage} this message answers
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * @return milliseconds the measurement waited at the source before it
+	 *         started
+	 */
+	public long getQueueMillis() {
+		return queueMillis;
+	}
+
+	/**
+	 * @param queueMillis
+	 *            milliseconds the measurement waited at the source before it
+	 *            started
+	 */
+	public void setQueueMillis(long queueMillis) {
+		this.queueMillis = queueMillis;
+	}
+
+	/**
+	 * @return milliseconds the measurement waited for the target to admit it,
+	 *         including a round trip
+	 */
+	public long getTargetQueueMillis() {
+		return targetQueueMillis;
+	}
+
+	/**
+	 * @param targetQueueMillis
+	 *            milliseconds the measurement waited for the target to admit
+	 *            it
+	 */
+	public void setTargetQueueMillis(long targetQueueMillis) {
+		this.targetQueueMillis = targetQueueMillis;
+	}
+
+	/**
+	 * @return why the measurement failed, null if it did not
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @param error
+	 *            why the measurement failed
+	 */
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	/**
+	 * @return the measured speeds
+	 */
+	public SpeedMeasurement[] getSpeeds() {
+		return speeds;
+	}
+
+	/**
+	 * @return the options the source's measurement connection was granted,
+	 *         the first one's when measuring over several
+	 */
+	public SocketSettings getSourceSettings() {
+		return sourceSettings;
+	}
+
+	/**
+	 * @return the options the target's measurement connection was granted,
+	 *         the first one's when measuring over several
+	 */
+	public SocketSettings getTargetSettings() {
+		return targetSettings;
+	}
+
+	/**
+	 * @param sourceSettings
+	 *            the options the source's measurement connection was granted
+	 */
+	public void setSourceSettings(SocketSettings sourceSettings) {
+		this.sourceSettings = sourceSettings;
+	}
+
+	/**
+	 * @param targetSettings
+	 *            the options the target's measurement connection was granted
+	 */
+	public void setTargetSettings(SocketSettings targetSettings) {
+		this.targetSettings = targetSettings;
+	}
+
+	@Override
+	public String toString() {
+		return "Result Message with " + (error == null ? speeds.length + " speeds" : "error " + error)
+				+ (address == null ? "" : " from " + address);
+	}
+}
@@ -0,0 +1,227 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.Objects;
+
+/**
+ * The options of a measurement connection, requested through a
+ * {@link StartMessage} and applied by both ends, or those the kernel actually
+ * granted, as reported in a {@link ResultMessage}.
+ *
+ * Options left unset keep the system defaults. The buffer sizes bound the
+ * amount of data in flight, so filling a link with a large bandwidth delay
+ * product takes buffers at least that large. The source applies the options
+ * before connecting, the target once it accepted the connection, which on
+ * most systems is too late to negotiate a larger window scale than the
+ * listening socket offered.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class SocketSettings implements Serializable {
+
+	private static final long serialVersionUID = -2178402398474061393L;
+	private Integer sendBufferSize;
+	private Integer receiveBufferSize;
+	private Boolean noDelay;
+	private Integer trafficClass;
+	private Integer linger;
+
+	/**
+	 * @param channel
+	 *            a connected channel
+	 * @return the options the channel actually has
+	 * @throws IOException
+	 */
+	public static SocketSettings granted(NetworkChannel channel) throws IOException {
+		SocketSettings settings = new SocketSettings();
+		settings.sendBufferSize = channel.getOption(StandardSocketOptions.SO_SNDBUF);
+		settings.receiveBufferSize = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+		settings.noDelay = channel.getOption(StandardSocketOptions.TCP_NODELAY);
+		settings.trafficClass = channel.getOption(StandardSocketOptions.IP_TOS);
+		settings.linger = channel.getOption(StandardSocketOptions.SO_LINGER);
+		return settings;
+	}
+
+	/**
+	 * Set the options that were set in these settings.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void apply(NetworkChannel channel) throws IOException {
+		if (sendBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		if (receiveBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (noDelay != null) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+		}
+		if (trafficClass != null) {
+			channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+		}
+		if (linger != null) {
+			channel.setOption(StandardSocketOptions.SO_LINGER, linger);
+		}
+	}
+
+	/**
+	 * @return seconds to block closing while unsent data remains, negative
+	 *         when disabled, null to keep the system default
+	 */
+	public Integer getLinger() {
+		return linger;
+	}
+
+	/**
+	 * @return bytes of the receive buffer, null to keep the system default
+	 */
+	public Integer getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @return bytes of the send buffer, null to keep the system default
+	 */
+	public Integer getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @return the type of service octet of outgoing packets, null to keep the
+	 *         system default
+	 */
+	public Integer getTrafficClass() {
+		return trafficClass;
+	}
+
+	/**
+	 * @return whether no option is set
+	 */
+	public boolean isEmpty() {
+		return sendBufferSize == null && receiveBufferSize == null && noDelay == null && trafficClass == null
+				&& linger == null;
+	}
+
+	/**
+	 * @return whether Nagle's algorithm is disabled, null to keep the system
+	 *         default
+	 */
+	public Boolean getNoDelay() {
+		return noDelay;
+	}
+
+	/**
+	 * @param linger
+	 *            seconds to block closing while unsent data remains, negative
+	 *            to disable, null to keep the system default
+	 */
+	public void setLinger(Integer linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * @param noDelay
+	 *            whether to disable Nagle's algorithm, null to keep the system
+	 *            default
+	 */
+	public void setNoDelay(Boolean noDelay) {
+		this.noDelay = noDelay;
+	}
+
+	/**
+	 * @param receiveBufferSize
+	 *            bytes of the receive buffer, null to keep the system default
+	 */
+	public void setReceiveBufferSize(Integer receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @param sendBufferSize
+	 *            bytes of the send buffer, null to keep the system default
+	 */
+	public void setSendBufferSize(Integer sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @param trafficClass
+	 *            the type of service octet of outgoing packets, null to keep
+	 *            the system default
+	 */
+	public void setTrafficClass(Integer trafficClass) {
+		this.trafficClass = trafficClass;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof SocketSettings)) {
+			return false;
+		}
+		SocketSettings settings = (SocketSettings) other;
+		return Objects.equals(sendBufferSize, settings.sendBufferSize)
+				&& Objects.equals(receiveBufferSize, settings.receiveBufferSize)
+				&& Objects.equals(noDelay, settings.noDelay) && Objects.equals(trafficClass, settings.trafficClass)
+				&& Objects.equals(linger, settings.linger);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(sendBufferSize, receiveBufferSize, noDelay, trafficClass, linger);
+	}
+
+	@Override
+	public String toString() {
+		if (isEmpty()) {
+			return "system defaults";
+		}
+		StringBuilder builder = new StringBuilder();
+		if (sendBufferSize != null) {
+			builder.append(", send buffer ").append(sendBufferSize).append(" bytes");
+		}
+		if (receiveBufferSize != null) {
+			builder.append(", receive buffer ").append(receiveBufferSize).append(" bytes");
+		}
+		if (noDelay != null) {
+			builder.append(noDelay ? ", no delay" : ", nagle");
+		}
+		if (trafficClass != null) {
+			builder.append(", traffic class ").append(trafficClass);
+		}
+		if (linger != null) {
+			builder.append(linger < 0 ? ", linger off" : ", linger " + linger + " s");
+		}
+		return builder.substring(2);
+	}
+}
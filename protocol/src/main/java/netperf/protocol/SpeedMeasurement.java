@@ -26,31 +26,147 @@ package netperf.protocol;
  * #L%
  */
 
+import java.util.Arrays;
 import java.util.Formatter;
 
 /**
- * A measurement of the connection speed in kilobytes per millisecond
+ * A measurement of the connection speed, counting transferred bytes
  * 
  * @author Julián Maestri <serpi90@gmail.com>
  * 
  */
 public class SpeedMeasurement {
+	private long bytes;
+	private long checksumNanos;
+	private boolean corrupted;
 	private long end;
-	private long kilobytes;
+	private boolean hostBound;
+	private long sampleInterval;
+	private long[] samples;
 	private long start;
+	private boolean verified;
 
 	/**
 	 * @param start
 	 *            when the transfer started
 	 * @param end
 	 *            when the transfer ended
-	 * @param kilobytes
-	 *            amount of kilobytes transferred
+	 * @param bytes
+	 *            amount of bytes transferred
 	 */
-	public SpeedMeasurement(long start, long end, long kilobytes) {
+	public SpeedMeasurement(long start, long end, long bytes) {
+		this(start, end, bytes, 0, new long[0]);
+	}
+
+	/**
+	 * @param start
+	 *            when the transfer started
+	 * @param end
+	 *            when the transfer ended
+	 * @param bytes
+	 *            amount of bytes transferred
+	 * @param sampleInterval
+	 *            the length in milliseconds of the intervals sampled
+	 * @param samples
+	 *            amount of bytes transferred on each interval since start
+	 */
+	public SpeedMeasurement(long start, long end, long bytes, long sampleInterval, long[] samples) {
 		this.start = start;
 		this.end = end;
-		this.kilobytes = kilobytes;
+		this.bytes = bytes;
+		this.sampleInterval = sampleInterval;
+		this.samples = samples;
+	}
+
+	/**
+	 * @param measurements
+	 *            measurements of transfers running at the same time
+	 * @return a measurement spanning from the first start to the last end,
+	 *         with the bytes transferred by all of them. When all of them are
+	 *         {@link DatagramMeasurement}s the datagram counts are added and
+	 *         the worst jitter is kept, when all of them are
+	 *         {@link LatencyMeasurement}s their histograms are merged. The
+	 *         aggregate is host bound if any of them is, verified if any of
+	 *         them is, with their checksum times added, and corrupted if any
+	 *         of them is.
+	 */
+	public static SpeedMeasurement aggregate(SpeedMeasurement... measurements) {
+		long start = Long.MAX_VALUE;
+		long end = Long.MIN_VALUE;
+		long bytes = 0;
+		long received = 0;
+		long lost = 0;
+		long outOfOrder = 0;
+		long jitter = 0;
+		boolean datagrams = true;
+		LatencyHistogram latencies = new LatencyHistogram();
+		boolean latency = true;
+		long sampleInterval = measurements.length > 0 ? measurements[0].getSampleInterval() : 0;
+		long[] samples = new long[0];
+		for (SpeedMeasurement measurement : measurements) {
+			if (measurement.getSampleInterval() != sampleInterval) {
+				sampleInterval = 0;
+			} else if (sampleInterval > 0) {
+				// Connections start together, so their intervals roughly
+				// overlap.
+				long[] other = measurement.getSamples();
+				if (other.length > samples.length) {
+					samples = Arrays.copyOf(samples, other.length);
+				}
+				for (int i = 0; i < other.length; i++) {
+					samples[i] += other[i];
+				}
+			}
+			start = Math.min(start, measurement.getStart());
+			end = Math.max(end, measurement.getEnd());
+			bytes += measurement.getBytes();
+			if (measurement instanceof DatagramMeasurement) {
+				DatagramMeasurement datagram = (DatagramMeasurement) measurement;
+				received += datagram.getReceived();
+				lost += datagram.getLost();
+				outOfOrder += datagram.getOutOfOrder();
+				jitter = Math.max(jitter, datagram.getJitter());
+			} else {
+				datagrams = false;
+			}
+			if (measurement instanceof LatencyMeasurement) {
+				latencies.merge(((LatencyMeasurement) measurement).getHistogram());
+			} else {
+				latency = false;
+			}
+		}
+		SpeedMeasurement aggregate;
+		if (latency && measurements.length > 0) {
+			aggregate = new LatencyMeasurement(start, end, bytes, latencies);
+		} else if (datagrams) {
+			aggregate = new DatagramMeasurement(start, end, bytes, received, lost, outOfOrder, jitter);
+		} else if (sampleInterval > 0) {
+			aggregate = new SpeedMeasurement(start, end, bytes, sampleInterval, samples);
+		} else {
+			aggregate = new SpeedMeasurement(start, end, bytes);
+		}
+		for (SpeedMeasurement measurement : measurements) {
+			aggregate.hostBound |= measurement.isHostBound();
+			aggregate.verified |= measurement.isVerified();
+			aggregate.corrupted |= measurement.isCorrupted();
+			aggregate.checksumNanos += measurement.getChecksumNanos();
+		}
+		return aggregate;
+	}
+
+	/**
+	 * @return nanoseconds spent checksumming the transferred data, zero unless
+	 *         {@link #isVerified()}
+	 */
+	public long getChecksumNanos() {
+		return checksumNanos;
+	}
+
+	/**
+	 * @return the transferred amount in bytes
+	 */
+	public long getBytes() {
+		return bytes;
 	}
 
 	/**
@@ -61,17 +177,45 @@ public class SpeedMeasurement {
 	}
 
 	/**
-	 * @return the transferred amount in kilobytes
+	 * @return the transferred amount in whole kilobytes
 	 */
 	public long getKilobytes() {
-		return kilobytes;
+		return bytes / 1024;
+	}
+
+	/**
+	 * @return the length in milliseconds of the intervals sampled, zero if the
+	 *         transfer was not sampled
+	 */
+	public long getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * @return amount of bytes transferred on each interval since the transfer
+	 *         started, empty if the transfer was not sampled
+	 */
+	public long[] getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the transfer speed on each sampled interval in kilobytes per
+	 *         second
+	 */
+	public float[] getSampleSpeeds() {
+		float[] speeds = new float[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			speeds[i] = (samples[i] / 1024f) / (sampleInterval / 1000f);
+		}
+		return speeds;
 	}
 
 	/**
 	 * @return the transfer speed in kilobytes per second
 	 */
 	public float getSpeed() {
-		return (float) kilobytes / ((end - start) / 1000);
+		return (bytes / 1024f) / ((end - start) / 1000f);
 	}
 
 	/**
@@ -81,11 +225,64 @@ public class SpeedMeasurement {
 		return start;
 	}
 
+	/**
+	 * @return whether the speed got close to what the host itself sustains
+	 *         over loopback, so the measurement may be limited by the host's
+	 *         CPU and JVM rather than by the network
+	 */
+	public boolean isHostBound() {
+		return hostBound;
+	}
+
+	/**
+	 * @return whether the data read did not match the checksum of the data
+	 *         sent
+	 */
+	public boolean isCorrupted() {
+		return corrupted;
+	}
+
+	/**
+	 * @return whether the transferred data was checksummed
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+
+	/**
+	 * @param hostBound
+	 *            whether the speed got close to what the host itself sustains
+	 *            over loopback
+	 */
+	public void setHostBound(boolean hostBound) {
+		this.hostBound = hostBound;
+	}
+
+	/**
+	 * Mark the transferred data as checksummed.
+	 *
+	 * @param corrupted
+	 *            whether the data read did not match the checksum of the data
+	 *            sent
+	 * @param checksumNanos
+	 *            nanoseconds spent checksumming the transferred data
+	 */
+	public void setVerification(boolean corrupted, long checksumNanos) {
+		this.verified = true;
+		this.corrupted = corrupted;
+		this.checksumNanos = checksumNanos;
+	}
+
 	@Override
 	public String toString() {
 		try (Formatter formatter = new Formatter()) {
-			return formatter.format("%.2f kb/s (%d kb / %d ms)", getSpeed(), getKilobytes(), getEnd() - getStart())
-					.toString();
+			formatter.format("%.2f kb/s (%d kb / %d ms)%s", getSpeed(), getKilobytes(), getEnd() - getStart(),
+					isHostBound() ? " host bound" : "");
+			if (isVerified()) {
+				formatter.format(" %s, checksum %.2f ms", isCorrupted() ? "CORRUPTED" : "verified",
+						getChecksumNanos() / 1e6);
+			}
+			return formatter.toString();
 		}
 	}
 }
@@ -33,11 +33,20 @@ import java.util.List;
  * A message indicating the receiver to start measuring the transfer speed
  * against the provided addresses
  * 
+ * The receiver answers with a {@link ResultMessage} for each address, in the
+ * order they complete, carrying the {@link #getRequestId()} of this message.
+ * 
  * @author Julián Maestri <serpi90@gmail.com>
  */
 public class StartMessage implements Message {
 	private List<InetSocketAddress> addresses;
 	private TransferCommand command;
+	private boolean bidirectional;
+	private boolean freshConnections;
+	private int parallelism;
+	private SocketSettings settings;
+	private int requestId;
+	private int priority;
 
 	/**
 	 * @param addresses
@@ -48,6 +57,8 @@ public class StartMessage implements Message {
 	public StartMessage(List<InetSocketAddress> addresses, TransferCommand command) {
 		this.addresses = addresses;
 		this.command = command;
+		this.parallelism = 1;
+		this.settings = new SocketSettings();
 	}
 
 	@Override
@@ -55,6 +66,41 @@ public class StartMessage implements Message {
 		visitor.acceptStartMessage(this);
 	}
 
+	/**
+	 * @return the id echoed in every {@link ProgressMessage} and
+	 *         {@link ResultMessage} answering this message, zero if none
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @param requestId
+	 *            the id echoed in every {@link ProgressMessage} and
+	 *            {@link ResultMessage} answering this message, to tell apart
+	 *            the answers to several messages sent over one connection
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * @return the priority of the measurements among others waiting for the
+	 *         same interface, zero unless given
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @param priority
+	 *            higher runs first among measurements waiting for the same
+	 *            interface of the receiver, if it orders them by priority
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
 	/**
 	 * @return the addresses to measure speed against
 	 */
@@ -69,6 +115,79 @@ public class StartMessage implements Message {
 		return command;
 	}
 
+	/**
+	 * @return whether both sides send and read at the same time, instead of
+	 *         one direction after the other
+	 */
+	public boolean isBidirectional() {
+		return bidirectional;
+	}
+
+	/**
+	 * @param bidirectional
+	 *            whether both sides send and read at the same time, instead of
+	 *            one direction after the other. Ignored by commands that do not
+	 *            {@link TransferCommand#supportsFullDuplex()}.
+	 */
+	public void setBidirectional(boolean bidirectional) {
+		this.bidirectional = bidirectional;
+	}
+
+	/**
+	 * @return whether to measure over newly opened connections, instead of
+	 *         ones kept open from previous measurements
+	 */
+	public boolean isFreshConnections() {
+		return freshConnections;
+	}
+
+	/**
+	 * @param freshConnections
+	 *            whether to measure over newly opened connections, instead of
+	 *            ones kept open from previous measurements, so the transfer
+	 *            goes through slow start again.
+	 */
+	public void setFreshConnections(boolean freshConnections) {
+		this.freshConnections = freshConnections;
+	}
+
+	/**
+	 * @return the amount of concurrent connections to measure with against
+	 *         each address
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism
+	 *            the amount of concurrent connections to measure with against
+	 *            each address, the speeds of every connection are reported
+	 *            along with their aggregate.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the options of the measurement connections
+	 */
+	public SocketSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @param settings
+	 *            the options of the measurement connections, applied by both
+	 *            ends
+	 */
+	public void setSettings(SocketSettings settings) {
+		this.settings = settings;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -79,6 +198,25 @@ public class StartMessage implements Message {
 		}
 		builder.append("requesting to ");
 		builder.append(command);
+		if (parallelism > 1) {
+			builder.append(" over ");
+			builder.append(parallelism);
+			builder.append(" connections");
+		}
+		if (bidirectional) {
+			builder.append(" in both directions at once");
+		}
+		if (freshConnections) {
+			builder.append(" over fresh connections");
+		}
+		if (priority != 0) {
+			builder.append(" with priority ");
+			builder.append(priority);
+		}
+		if (!settings.isEmpty()) {
+			builder.append(" with ");
+			builder.append(settings);
+		}
 		return builder.toString();
 	}
 }
@@ -0,0 +1,117 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums the data of a transfer on both ends, so the receiver tells
+ * whether what it read is what was sent.
+ *
+ * {@link CRC32} over direct buffers runs on the JIT's vectorized intrinsic,
+ * keeping up with the transfer, and the time spent on it is accounted apart
+ * from the transfer so its overhead shows.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class TransferChecksum {
+	private CRC32 crc;
+	private long nanos;
+
+	/**
+	 * An empty checksum
+	 */
+	public TransferChecksum() {
+		crc = new CRC32();
+	}
+
+	/**
+	 * @return nanoseconds spent checksumming so far
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Read the sender's checksum, following the data, and compare it with
+	 * this one.
+	 *
+	 * @param channel
+	 *            in blocking mode
+	 * @param measurement
+	 *            marked as verified, corrupted if the checksums differ
+	 * @return the measurement
+	 * @throws IOException
+	 */
+	public SpeedMeasurement receive(ByteChannel channel, SpeedMeasurement measurement) throws IOException {
+		ByteBuffer sent = ByteBuffer.allocate(Long.SIZE / 8);
+		while (sent.hasRemaining()) {
+			if (channel.read(sent) < 0) {
+				throw new EOFException();
+			}
+		}
+		measurement.setVerification(sent.getLong(0) != crc.getValue(), nanos);
+		return measurement;
+	}
+
+	/**
+	 * Send this checksum after the data.
+	 *
+	 * @param channel
+	 *            in blocking mode
+	 * @param measurement
+	 *            marked as verified
+	 * @return the measurement
+	 * @throws IOException
+	 */
+	public SpeedMeasurement send(ByteChannel channel, SpeedMeasurement measurement) throws IOException {
+		ByteBuffer value = ByteBuffer.allocate(Long.SIZE / 8);
+		value.putLong(0, crc.getValue());
+		while (value.hasRemaining()) {
+			channel.write(value);
+		}
+		measurement.setVerification(false, nanos);
+		return measurement;
+	}
+
+	/**
+	 * @param buffer
+	 *            checksummed from its position to its limit, which are left
+	 *            as they were
+	 */
+	public void update(ByteBuffer buffer) {
+		int position = buffer.position();
+		long start = System.nanoTime();
+		crc.update(buffer);
+		nanos += System.nanoTime() - start;
+		buffer.position(position);
+	}
+}
@@ -26,63 +26,301 @@ package netperf.protocol;
  * #L%
  */
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 
 /**
- * A command pattern implementation that sends one kilobyte at a time over a
+ * A command pattern implementation that sends one block at a time over a
  * connection and returns the {@link SpeedMeasurement} indicating the connection
  * speed.
  * 
+ * Blocks are {@link #getBlockSize()} bytes long, one kilobyte unless
+ * specified, and are read and written through direct buffers from the
+ * {@link BufferPool}. Their contents come from the {@link PayloadPool}, so
+ * they do not compress.
+ * 
+ * Commands that {@link #supportsVerification()} can checksum the data on both
+ * ends when {@link #isVerifying()}, reporting corruption and the time spent
+ * checksumming in the receiver's {@link SpeedMeasurement}.
+ * 
  * @author Julián Maestri <serpi90@gmail.com>
  * 
  */
 public abstract class TransferCommand {
 
 	/**
-	 * Read the required kilobytes
+	 * The block size used when none is specified.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	/**
+	 * The largest block size allowed.
+	 */
+	public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The interval in milliseconds transfers are sampled on unless specified.
+	 */
+	public static final int DEFAULT_SAMPLE_INTERVAL = 100;
+
+	private int blockSize;
+	private int sampleInterval;
+	private boolean verifying;
+
+	/**
+	 * @param blockSize
+	 *            the amount of bytes read or written at a time, between 1 and
+	 *            {@link #MAX_BLOCK_SIZE}.
+	 */
+	protected TransferCommand(int blockSize) {
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + " bytes");
+		}
+		this.blockSize = blockSize;
+		this.sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+	}
+
+	/**
+	 * Read the required data
+	 * 
+	 * @param channel
+	 *            the connection to read from, in blocking mode
+	 * @return the speed in which the required data was read
+	 * @throws IOException
+	 */
+	public SpeedMeasurement executeRead(ByteChannel channel) throws IOException {
+		return executeRead(channel, ProgressListener.NONE);
+	}
+
+	/**
+	 * Read the required data
 	 * 
-	 * @param out
-	 *            the connection to read from
-	 * @return the speed in which the required kilobytes were read
+	 * @param channel
+	 *            the connection to read from, in blocking mode
+	 * @param listener
+	 *            notified of every sampled interval while reading
+	 * @return the speed in which the required data was read
 	 * @throws IOException
 	 */
-	public abstract SpeedMeasurement executeRead(InputStream out) throws IOException;
+	public abstract SpeedMeasurement executeRead(ByteChannel channel, ProgressListener listener)
+			throws IOException;
+
+	/**
+	 * Write the required data
+	 * 
+	 * @param channel
+	 *            the connection to write to, in blocking mode
+	 * @return the speed in which the required data was written
+	 * @throws IOException
+	 */
+	public SpeedMeasurement executeSend(ByteChannel channel) throws IOException {
+		return executeSend(channel, ProgressListener.NONE);
+	}
+
+	/**
+	 * Write the required data
+	 * 
+	 * @param channel
+	 *            the connection to write to, in blocking mode
+	 * @param listener
+	 *            notified of every sampled interval while writing
+	 * @return the speed in which the required data was written
+	 * @throws IOException
+	 */
+	public abstract SpeedMeasurement executeSend(ByteChannel channel, ProgressListener listener)
+			throws IOException;
+
+	/**
+	 * @return whether {@link #executeSend(ByteChannel, ProgressListener)} and
+	 *         {@link #executeRead(ByteChannel, ProgressListener)} can run at
+	 *         the same time on both ends of a connection
+	 */
+	public boolean supportsFullDuplex() {
+		return true;
+	}
+
+	/**
+	 * @return whether the command can checksum the transferred data
+	 */
+	public boolean supportsVerification() {
+		return false;
+	}
+
+	/**
+	 * @return whether the transferred data is checksummed on both ends
+	 */
+	public boolean isVerifying() {
+		return verifying;
+	}
+
+	/**
+	 * @param verifying
+	 *            whether to checksum the transferred data on both ends
+	 * @throws IllegalArgumentException
+	 *             the command does not {@link #supportsVerification()}
+	 */
+	public void setVerifying(boolean verifying) {
+		if (verifying && !supportsVerification()) {
+			throw new IllegalArgumentException(this + " can not verify the transferred data");
+		}
+		this.verifying = verifying;
+	}
+
+	/**
+	 * @return the amount of bytes read or written at a time
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return the interval in milliseconds transfers are sampled on, zero if
+	 *         they are not sampled
+	 */
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * @param sampleInterval
+	 *            the interval in milliseconds transfers are sampled on, zero
+	 *            to not sample them
+	 */
+	public void setSampleInterval(int sampleInterval) {
+		if (sampleInterval < 0) {
+			throw new IllegalArgumentException("Sample interval can not be negative");
+		}
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * @param expectedMillis
+	 *            how long the transfer is expected to last, zero if unknown
+	 * @param listener
+	 *            notified of every sampled interval
+	 * @return a sampler started on {@link #getSampleInterval()}
+	 */
+	protected IntervalSampler startSampler(long expectedMillis, ProgressListener listener) {
+		return new IntervalSampler(sampleInterval, expectedMillis, listener);
+	}
+
+	/**
+	 * The buffer is acquired for each execution, as the same command is
+	 * executed concurrently against every address of a {@link StartMessage}.
+	 * 
+	 * @return a block to send, to be released to the {@link BufferPool}.
+	 */
+	protected ByteBuffer acquireBlock() {
+		ByteBuffer block = BufferPool.shared().acquire(blockSize);
+		PayloadPool.shared().fill(block);
+		return block;
+	}
+
+	/**
+	 * @return a checksum when {@link #isVerifying()}, null otherwise
+	 */
+	protected TransferChecksum startChecksum() {
+		return verifying ? new TransferChecksum() : null;
+	}
 
 	/**
-	 * Write the required kilobytes
+	 * Add a block just read to the checksum, if any
 	 * 
-	 * @param out
-	 *            the connection to write to
-	 * @return the speed in which the required kilobytes were written
+	 * @param checksum
+	 *            as returned by {@link #startChecksum()}
+	 * @param block
+	 *            checksummed from its start to its limit
+	 */
+	protected void checksum(TransferChecksum checksum, ByteBuffer block) {
+		if (checksum != null) {
+			int position = block.position();
+			block.position(0);
+			checksum.update(block);
+			block.position(position);
+		}
+	}
+
+	/**
+	 * Read a single block, from the buffer's position to its limit
+	 * 
+	 * @param channel
+	 * @param block
 	 * @throws IOException
+	 *             the channel reached end of stream before the whole block
+	 *             arrived
 	 */
-	public abstract SpeedMeasurement executeSend(OutputStream out) throws IOException;
+	protected void readBlock(ByteChannel channel, ByteBuffer block) throws IOException {
+		while (block.hasRemaining()) {
+			if (channel.read(block) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
 
 	/**
-	 * Read a single kilobyte and return it
+	 * Prepare the block to be read into or sent again
 	 * 
-	 * @param input
-	 * @return
+	 * @param block
+	 *            a block obtained through {@link #acquireBlock()}
+	 */
+	protected void resetBlock(ByteBuffer block) {
+		block.clear();
+		block.limit(blockSize);
+	}
+
+	/**
+	 * Write a single block, from the buffer's position to its limit
+	 * 
+	 * @param channel
+	 * @param block
 	 * @throws IOException
 	 */
-	protected byte[] readKilobyte(InputStream input, byte[] buffer) throws IOException {
-		int read = 0;
-		while (read < buffer.length) {
-			read += input.read(buffer, read, buffer.length - read);
+	protected void sendBlock(ByteChannel channel, ByteBuffer block) throws IOException {
+		while (block.hasRemaining()) {
+			channel.write(block);
 		}
-		return buffer;
 	}
 
 	/**
-	 * Write a single kilobyte
+	 * Write a single block, its first bytes from the block and the rest from
+	 * the payload, in a single gathering write when the channel supports it,
+	 * so every block carries different data without copying it.
 	 * 
-	 * @param output
-	 * @param kilobyte
+	 * @param channel
+	 * @param block
+	 *            a block obtained through {@link #acquireBlock()}, from its
+	 *            start to its limit
+	 * @param header
+	 *            the amount of bytes of the block that are sent as they are
+	 * @param payload
+	 *            where the rest of the block comes from
+	 * @param checksum
+	 *            as returned by {@link #startChecksum()}
 	 * @throws IOException
 	 */
-	protected void sendKilobyte(OutputStream output, byte[] kilobyte) throws IOException {
-		output.write(kilobyte, 0, kilobyte.length);
+	protected void sendBlock(ByteChannel channel, ByteBuffer block, int header, PayloadPool.Cursor payload,
+			TransferChecksum checksum) throws IOException {
+		ByteBuffer region = payload.next(block.limit() - header);
+		block.position(0);
+		block.limit(header);
+		if (checksum != null) {
+			checksum.update(block);
+			checksum.update(region);
+		}
+		if (channel instanceof GatheringByteChannel) {
+			ByteBuffer[] parts = payload.parts(block, region);
+			while (block.hasRemaining() || region.hasRemaining()) {
+				((GatheringByteChannel) channel).write(parts);
+			}
+		} else {
+			block.limit(header + region.remaining());
+			block.position(header);
+			block.put(region);
+			block.position(0);
+			sendBlock(channel, block);
+		}
 	}
 }
@@ -0,0 +1,332 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Obtain {@link DatagramMeasurement} sending UDP datagrams at a fixed rate
+ * during a fixed amount of time. The measured variables are loss, reordering
+ * and jitter.
+ * 
+ * The connection the command is executed on only coordinates the transfer:
+ * the reader binds a {@link DatagramChannel} and writes its port, the sender
+ * sends datagrams of {@link #getBlockSize()} bytes to that port, each one
+ * starting with its sequence number and the time it was sent, followed by
+ * {@link #END_MARKERS} datagrams with a negative sequence number. Finally the
+ * sender writes the amount of datagrams it sent, so the reader can count the
+ * ones lost at the end.
+ * 
+ * Every {@link #getSampleInterval()} the reader reports the datagrams received
+ * during the interval, an estimate of those lost and the jitter so far, in
+ * nanoseconds, to its {@link ProgressListener}, and the sender the bytes it
+ * sent.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ * 
+ */
+public class TransferDatagramsAtFixedRate extends TransferCommand {
+	/**
+	 * The largest payload a UDP datagram carries.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 65507;
+	/**
+	 * Sequence number and send time.
+	 */
+	public static final int MIN_DATAGRAM_SIZE = 2 * Long.SIZE / 8;
+	private static final int END_MARKERS = 3;
+	private static final long END_SEQUENCE = -1;
+	private static final long IDLE_TIMEOUT = 2000;
+	/**
+	 * Datagrams that may go missing in a row before the reader gives up.
+	 */
+	private static final int IDLE_INTERVALS = 4;
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+	private long kilobytesPerSecond;
+	private long milliseconds;
+
+	/**
+	 * @param milliseconds
+	 *            the amount of time to send datagrams
+	 * @param kilobytesPerSecond
+	 *            the rate to send datagrams at
+	 */
+	public TransferDatagramsAtFixedRate(long milliseconds, long kilobytesPerSecond) {
+		this(milliseconds, kilobytesPerSecond, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param milliseconds
+	 *            the amount of time to send datagrams
+	 * @param kilobytesPerSecond
+	 *            the rate to send datagrams at
+	 * @param blockSize
+	 *            the size of each datagram, between {@link #MIN_DATAGRAM_SIZE}
+	 *            and {@link #MAX_DATAGRAM_SIZE}
+	 */
+	public TransferDatagramsAtFixedRate(long milliseconds, long kilobytesPerSecond, int blockSize) {
+		super(blockSize);
+		if (blockSize < MIN_DATAGRAM_SIZE || blockSize > MAX_DATAGRAM_SIZE) {
+			throw new IllegalArgumentException(
+					"Datagram size must be between " + MIN_DATAGRAM_SIZE + " and " + MAX_DATAGRAM_SIZE + " bytes");
+		}
+		if (kilobytesPerSecond < 1) {
+			throw new IllegalArgumentException("Rate must be at least 1 kb/s");
+		}
+		this.milliseconds = milliseconds;
+		this.kilobytesPerSecond = kilobytesPerSecond;
+	}
+
+	@Override
+	public SpeedMeasurement executeRead(ByteChannel channel, ProgressListener listener) throws IOException {
+		SocketChannel control = control(channel);
+		ByteBuffer block = acquireBlock();
+		try (DatagramChannel datagrams = DatagramChannel.open(); Selector selector = Selector.open()) {
+			datagrams.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+			datagrams.bind(new InetSocketAddress(((InetSocketAddress) control.getLocalAddress()).getAddress(), 0));
+			datagrams.configureBlocking(false);
+			datagrams.register(selector, SelectionKey.OP_READ);
+			ByteBuffer port = ByteBuffer.allocate(Integer.SIZE / 8);
+			port.putInt(((InetSocketAddress) datagrams.getLocalAddress()).getPort());
+			port.flip();
+			sendBlock(channel, port);
+
+			long start = 0;
+			long end = 0;
+			long received = 0;
+			long outOfOrder = 0;
+			long highest = -1;
+			long previousTransit = 0;
+			double jitter = 0;
+			long idle = TimeUnit.MILLISECONDS.toNanos(getIdleTimeout());
+			long lastArrival = System.nanoTime();
+			// Each interval is sampled from the arrival of the first datagram.
+			long intervalMillis = getSampleInterval();
+			long nextInterval = Long.MAX_VALUE;
+			Interval interval = new Interval();
+			receiving: while (true) {
+				long wait = Math.min(lastArrival + idle, nextInterval) - System.nanoTime();
+				if (wait > 0) {
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+					selector.selectedKeys().clear();
+				}
+				while (true) {
+					resetBlock(block);
+					if (datagrams.receive(block) == null) {
+						break;
+					}
+					long arrival = System.nanoTime();
+					lastArrival = arrival;
+					long sequence = block.getLong(0);
+					if (sequence == END_SEQUENCE) {
+						break receiving;
+					}
+					end = System.currentTimeMillis();
+					if (received == 0) {
+						start = end;
+						interval.start = end;
+						if (intervalMillis > 0) {
+							nextInterval = arrival + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+						}
+					}
+					// RFC 3550 6.4.1, the clocks need not be synchronized as
+					// only the difference between transit times is used.
+					long transit = arrival - block.getLong(Long.SIZE / 8);
+					if (received > 0) {
+						jitter += (Math.abs(transit - previousTransit) - jitter) / 16;
+					}
+					previousTransit = transit;
+					if (sequence < highest) {
+						outOfOrder++;
+						interval.outOfOrder++;
+					} else {
+						highest = sequence;
+					}
+					received++;
+					interval.received++;
+				}
+				while (System.nanoTime() >= nextInterval) {
+					listener.progress(interval.next(interval.start + intervalMillis, highest, jitter));
+					nextInterval += TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+				}
+				if (System.nanoTime() - lastArrival >= idle) {
+					break;
+				}
+			}
+			if (received == 0) {
+				start = end = System.currentTimeMillis();
+			} else if (intervalMillis > 0 && interval.received > 0 && end > interval.start) {
+				listener.progress(interval.next(end, highest, jitter));
+			}
+
+			ByteBuffer sent = ByteBuffer.allocate(Long.SIZE / 8);
+			readBlock(channel, sent);
+			long lost = Math.max(0, sent.getLong(0) - received);
+			return new DatagramMeasurement(start, end, received * getBlockSize(), received, lost, outOfOrder,
+					Math.round(jitter));
+		} finally {
+			BufferPool.shared().release(block);
+		}
+	}
+
+	@Override
+	public SpeedMeasurement executeSend(ByteChannel channel, ProgressListener listener) throws IOException {
+		SocketChannel control = control(channel);
+		ByteBuffer port = ByteBuffer.allocate(Integer.SIZE / 8);
+		readBlock(channel, port);
+		InetSocketAddress target = new InetSocketAddress(((InetSocketAddress) control.getRemoteAddress()).getAddress(),
+				port.getInt(0));
+		ByteBuffer block = acquireBlock();
+		try (DatagramChannel datagrams = DatagramChannel.open()) {
+			datagrams.connect(target);
+			double interval = getIntervalNanos();
+			long start = System.currentTimeMillis();
+			long begin = System.nanoTime();
+			long finish = begin + TimeUnit.MILLISECONDS.toNanos(milliseconds);
+			long sequence = 0;
+			IntervalSampler sampler = startSampler(milliseconds, listener);
+			// Each datagram is scheduled from the beginning, so late sends are
+			// caught up instead of lowering the rate.
+			for (long next = begin; next < finish; next = begin + (long) (sequence * interval)) {
+				long now = System.nanoTime();
+				if (now >= finish) {
+					break;
+				} else if (next > now) {
+					LockSupport.parkNanos(next - now);
+				}
+				resetBlock(block);
+				block.putLong(0, sequence++);
+				block.putLong(Long.SIZE / 8, System.nanoTime());
+				datagrams.write(block);
+				sampler.record(sequence * getBlockSize());
+			}
+			long end = System.currentTimeMillis();
+			for (int i = 0; i < END_MARKERS; i++) {
+				resetBlock(block);
+				block.putLong(0, END_SEQUENCE);
+				datagrams.write(block);
+			}
+
+			ByteBuffer sent = ByteBuffer.allocate(Long.SIZE / 8);
+			sent.putLong(sequence);
+			sent.flip();
+			sendBlock(channel, sent);
+			return sampler.measurement(start, end, sequence * getBlockSize());
+		} finally {
+			BufferPool.shared().release(block);
+		}
+	}
+
+	/**
+	 * Both directions would coordinate over the same connection at once.
+	 */
+	@Override
+	public boolean supportsFullDuplex() {
+		return false;
+	}
+
+	/**
+	 * The datagrams received during an interval of the transfer. Datagrams
+	 * lost are estimated as the sequence numbers first covered during the
+	 * interval that did not arrive in it, as a late one may still arrive in
+	 * the next.
+	 */
+	private class Interval {
+		private long start;
+		private long received;
+		private long outOfOrder;
+		private long highest = -1;
+
+		/**
+		 * @return this interval, ended, as reported to the listener, the next
+		 *         one starting where it ends
+		 */
+		private DatagramMeasurement next(long end, long highestSequence, double jitter) {
+			long lost = Math.max(0, highestSequence - highest - received);
+			DatagramMeasurement measurement = new DatagramMeasurement(start, end, received * getBlockSize(),
+					received, lost, outOfOrder, Math.round(jitter));
+			start = end;
+			received = 0;
+			outOfOrder = 0;
+			highest = highestSequence;
+			return measurement;
+		}
+	}
+
+	private static SocketChannel control(ByteChannel channel) throws IOException {
+		if (!(channel instanceof SocketChannel)) {
+			throw new IOException("Datagrams are coordinated through a socket connection");
+		}
+		return (SocketChannel) channel;
+	}
+
+	/**
+	 * @return how long the reader waits for a datagram before taking the
+	 *         sender for gone, a few intervals between datagrams so slow rates
+	 *         are not cut short, and no less than 2 seconds
+	 */
+	public long getIdleTimeout() {
+		long interval = (long) Math.ceil(getIntervalNanos() / TimeUnit.MILLISECONDS.toNanos(1));
+		return Math.max(IDLE_TIMEOUT, IDLE_INTERVALS * interval);
+	}
+
+	/**
+	 * @return the time between datagrams in nanoseconds
+	 */
+	private double getIntervalNanos() {
+		return (double) TimeUnit.SECONDS.toNanos(1) * getBlockSize() / (kilobytesPerSecond * 1024);
+	}
+
+	/**
+	 * @return the rate to send datagrams at in kilobytes per second
+	 */
+	public long getKilobytesPerSecond() {
+		return kilobytesPerSecond;
+	}
+
+	/**
+	 * @return the amount of time to send datagrams
+	 */
+	public long getMilliseconds() {
+		return milliseconds;
+	}
+
+	@Override
+	public String toString() {
+		return "Transfer datagrams at " + kilobytesPerSecond + " kb/s during " + milliseconds + " ms";
+	}
+}
@@ -27,75 +27,211 @@ package netperf.protocol;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 
 /**
  * Obtain {@link SpeedMeasurement} sending all possible data during a fixed
  * amount of time. The variable is the transferred data size.
  * 
+ * The first byte of every block tells the receiver whether more blocks
+ * follow, or whether the block belongs to the warm-up.
+ * 
+ * A warm-up, when set, is transferred before the measured time and left out
+ * of the {@link SpeedMeasurement} on both ends, so slow start and a cold JIT
+ * do not drag down short measurements. It either lasts a fixed time or, when
+ * {@link #AUTOMATIC_WARMUP}, until the sender's throughput holds within
+ * {@link #STEADY_TOLERANCE} over {@link #STEADY_WINDOWS} consecutive windows
+ * of {@link #STEADY_WINDOW_MILLIS}, for at most
+ * {@link #MAX_AUTOMATIC_WARMUP} milliseconds.
+ * 
  * @author Julián Maestri <serpi90@gmail.com>
  * 
  */
 public class TransferDuringFixedTime extends TransferCommand {
 	private static final byte LAST_MESSAGE = (byte) 0;
 	private static final byte NOT_LAST_MESSAGE = (byte) 1;
+	private static final byte WARMUP_MESSAGE = (byte) 2;
+	/**
+	 * Warm up until throughput stabilizes instead of during a fixed time.
+	 */
+	public static final long AUTOMATIC_WARMUP = -1;
+	/**
+	 * The longest an automatic warm-up lasts when throughput does not
+	 * stabilize.
+	 */
+	public static final long MAX_AUTOMATIC_WARMUP = 2000;
+	/**
+	 * The length of the windows compared by an automatic warm-up.
+	 */
+	public static final long STEADY_WINDOW_MILLIS = 50;
+	/**
+	 * The amount of consecutive windows that must agree to end an automatic
+	 * warm-up.
+	 */
+	public static final int STEADY_WINDOWS = 3;
+	/**
+	 * The relative difference allowed between the throughput of consecutive
+	 * windows of a stable transfer.
+	 */
+	public static final float STEADY_TOLERANCE = 0.1f;
 	private long milliseconds;
-	private byte[] kilobyte;
+	private long warmupMillis;
 
 	/**
 	 * @param milliseconds
 	 *            the time limit when sending data
 	 */
 	public TransferDuringFixedTime(long milliseconds) {
+		this(milliseconds, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param milliseconds
+	 *            the time limit when sending data
+	 * @param blockSize
+	 *            the amount of bytes written at a time
+	 */
+	public TransferDuringFixedTime(long milliseconds, int blockSize) {
+		super(blockSize);
 		this.milliseconds = milliseconds;
-		this.kilobyte = new byte[1024];
-		for (int i = 0; i < kilobyte.length; i++) {
-			kilobyte[i] = (byte) i;
-		}
 	}
 
 	@Override
-	public SpeedMeasurement executeRead(InputStream input) throws IOException {
-		long start = System.currentTimeMillis();
-		long readKilobytes = 0;
-		do {
-			readKilobyte(input, kilobyte);
-			readKilobytes++;
-		} while (kilobyte[0] != LAST_MESSAGE);
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < kilobyte.length && i < 20; i++) {
-			sb.append(kilobyte[i]);
-			sb.append(' ');
+	public SpeedMeasurement executeRead(ByteChannel channel, ProgressListener listener) throws IOException {
+		ByteBuffer block = acquireBlock();
+		try {
+			TransferChecksum checksum = startChecksum();
+			long start = System.currentTimeMillis();
+			IntervalSampler sampler = null;
+			long readBytes = 0;
+			do {
+				resetBlock(block);
+				readBlock(channel, block);
+				checksum(checksum, block);
+				if (block.get(0) == WARMUP_MESSAGE) {
+					// Measured time starts once the warm-up was read.
+					start = System.currentTimeMillis();
+					continue;
+				}
+				if (sampler == null) {
+					sampler = startSampler(milliseconds, listener);
+				}
+				readBytes += block.limit();
+				sampler.record(readBytes);
+			} while (block.get(0) != LAST_MESSAGE);
+			SpeedMeasurement measurement = sampler.measurement(start, start + milliseconds, readBytes);
+			return checksum == null ? measurement : checksum.receive(channel, measurement);
+		} finally {
+			BufferPool.shared().release(block);
 		}
-		return new SpeedMeasurement(start, start + milliseconds, readKilobytes);
 	}
 
 	@Override
-	public SpeedMeasurement executeSend(OutputStream output) throws IOException {
-		long sentKilobytes = 0;
-		long start = System.currentTimeMillis();
-		long end = start + milliseconds;
-		kilobyte[0] = NOT_LAST_MESSAGE;
-		while (System.currentTimeMillis() < end) {
-			sendKilobyte(output, kilobyte);
-			sentKilobytes++;
+	public SpeedMeasurement executeSend(ByteChannel channel, ProgressListener listener) throws IOException {
+		ByteBuffer block = acquireBlock();
+		try {
+			PayloadPool.Cursor payload = PayloadPool.shared().cursor();
+			TransferChecksum checksum = startChecksum();
+			if (warmupMillis != 0) {
+				warmUp(channel, block, payload, checksum);
+			}
+			long sentBytes = 0;
+			long start = System.currentTimeMillis();
+			long end = start + milliseconds;
+			IntervalSampler sampler = startSampler(milliseconds, listener);
+			block.put(0, NOT_LAST_MESSAGE);
+			while (System.currentTimeMillis() < end) {
+				resetBlock(block);
+				sendBlock(channel, block, 1, payload, checksum);
+				sentBytes += getBlockSize();
+				sampler.record(sentBytes);
+			}
+			resetBlock(block);
+			block.put(0, LAST_MESSAGE);
+			sendBlock(channel, block, 1, payload, checksum);
+			SpeedMeasurement measurement = sampler.measurement(start, end, sentBytes + getBlockSize());
+			return checksum == null ? measurement : checksum.send(channel, measurement);
+		} finally {
+			BufferPool.shared().release(block);
+		}
+	}
+
+	/**
+	 * Send warm-up blocks until the warm-up is over.
+	 */
+	private void warmUp(ByteChannel channel, ByteBuffer block, PayloadPool.Cursor payload, TransferChecksum checksum)
+			throws IOException {
+		long now = System.currentTimeMillis();
+		long end = now + (warmupMillis == AUTOMATIC_WARMUP ? MAX_AUTOMATIC_WARMUP : warmupMillis);
+		long windowStart = now;
+		long windowBytes = 0;
+		float previous = 0;
+		int steady = 0;
+		block.put(0, WARMUP_MESSAGE);
+		while (now < end) {
+			resetBlock(block);
+			sendBlock(channel, block, 1, payload, checksum);
+			windowBytes += getBlockSize();
+			now = System.currentTimeMillis();
+			if (warmupMillis == AUTOMATIC_WARMUP && now - windowStart >= STEADY_WINDOW_MILLIS) {
+				float rate = windowBytes / (float) (now - windowStart);
+				if (previous > 0 && Math.abs(rate - previous) <= previous * STEADY_TOLERANCE) {
+					if (++steady >= STEADY_WINDOWS - 1) {
+						return;
+					}
+				} else {
+					steady = 0;
+				}
+				previous = rate;
+				windowStart = now;
+				windowBytes = 0;
+			}
 		}
-		kilobyte[0] = LAST_MESSAGE;
-		sendKilobyte(output, kilobyte);
-		return new SpeedMeasurement(start, end, sentKilobytes + 1);
 	}
 
 	/**
 	 * @return duration in milliseconds to send data during
-	 *         {@link #executeSend(OutputStream)}
+	 *         {@link #executeSend(ByteChannel)}
 	 */
 	public long getMilliseconds() {
 		return milliseconds;
 	}
 
+	/**
+	 * @return milliseconds transferred before the measured time, zero without
+	 *         warm-up or {@link #AUTOMATIC_WARMUP}
+	 */
+	public long getWarmupMillis() {
+		return warmupMillis;
+	}
+
+	/**
+	 * @param warmupMillis
+	 *            milliseconds to transfer before the measured time, zero
+	 *            without warm-up, the default, or {@link #AUTOMATIC_WARMUP} to
+	 *            warm up until throughput stabilizes
+	 */
+	public void setWarmupMillis(long warmupMillis) {
+		if (warmupMillis < 0 && warmupMillis != AUTOMATIC_WARMUP) {
+			throw new IllegalArgumentException("Warm-up must be positive, zero or automatic");
+		}
+		this.warmupMillis = warmupMillis;
+	}
+
+	@Override
+	public boolean supportsVerification() {
+		return true;
+	}
+
 	@Override
 	public String toString() {
-		return "Transfer during " + milliseconds + " ms";
+		String warmup = "";
+		if (warmupMillis == AUTOMATIC_WARMUP) {
+			warmup = " after warming up";
+		} else if (warmupMillis > 0) {
+			warmup = " after warming up " + warmupMillis + " ms";
+		}
+		return "Transfer during " + milliseconds + " ms in blocks of " + getBlockSize() + " bytes" + warmup;
 	}
 }
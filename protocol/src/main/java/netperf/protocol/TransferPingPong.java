@@ -0,0 +1,208 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Obtain {@link LatencyMeasurement} sending small timestamped messages one at
+ * a time and waiting for each to be echoed back, for a fixed amount of round
+ * trips or a fixed amount of time, whichever ends first. The measured
+ * variable is the round trip time.
+ * 
+ * The first byte of every message tells the echoing side whether more
+ * messages follow, the send time travels along so the round trip is measured
+ * from the echo alone.
+ * 
+ * @author Julián Maestri <serpi90@gmail.com>
+ * 
+ */
+public class TransferPingPong extends TransferCommand {
+	/**
+	 * The message size used when none is specified.
+	 */
+	public static final int DEFAULT_PING_SIZE = 64;
+	/**
+	 * Marker and send time.
+	 */
+	public static final int MIN_PING_SIZE = 1 + Long.SIZE / 8;
+	private static final byte LAST_MESSAGE = (byte) 0;
+	private static final byte NOT_LAST_MESSAGE = (byte) 1;
+	private static final int TIMESTAMP = 1;
+	private long milliseconds;
+	private long roundTrips;
+
+	/**
+	 * @param roundTrips
+	 *            the amount of messages to echo, zero for no limit
+	 * @param milliseconds
+	 *            the time limit to echo messages, zero for no limit
+	 */
+	public TransferPingPong(long roundTrips, long milliseconds) {
+		this(roundTrips, milliseconds, DEFAULT_PING_SIZE);
+	}
+
+	/**
+	 * @param roundTrips
+	 *            the amount of messages to echo, zero for no limit
+	 * @param milliseconds
+	 *            the time limit to echo messages, zero for no limit
+	 * @param blockSize
+	 *            the size of each message, at least {@link #MIN_PING_SIZE}
+	 */
+	public TransferPingPong(long roundTrips, long milliseconds, int blockSize) {
+		super(blockSize);
+		if (blockSize < MIN_PING_SIZE) {
+			throw new IllegalArgumentException("Message size must be at least " + MIN_PING_SIZE + " bytes");
+		}
+		if (roundTrips <= 0 && milliseconds <= 0) {
+			throw new IllegalArgumentException("Either round trips or time must be limited");
+		}
+		this.roundTrips = roundTrips;
+		this.milliseconds = milliseconds;
+	}
+
+	/**
+	 * Echo every message back until the last one arrives
+	 */
+	@Override
+	public SpeedMeasurement executeRead(ByteChannel channel, ProgressListener listener) throws IOException {
+		boolean noDelay = noDelay(channel);
+		ByteBuffer block = acquireBlock();
+		try {
+			long start = System.currentTimeMillis();
+			long echoedBytes = 0;
+			while (true) {
+				resetBlock(block);
+				readBlock(channel, block);
+				if (block.get(0) == LAST_MESSAGE) {
+					break;
+				}
+				block.flip();
+				sendBlock(channel, block);
+				echoedBytes += block.limit();
+			}
+			return new SpeedMeasurement(start, System.currentTimeMillis(), echoedBytes);
+		} finally {
+			BufferPool.shared().release(block);
+			restoreNoDelay(channel, noDelay);
+		}
+	}
+
+	/**
+	 * Send messages one at a time, recording the round trip of each
+	 */
+	@Override
+	public SpeedMeasurement executeSend(ByteChannel channel, ProgressListener listener) throws IOException {
+		boolean noDelay = noDelay(channel);
+		ByteBuffer block = acquireBlock();
+		try {
+			LatencyHistogram histogram = new LatencyHistogram();
+			long start = System.currentTimeMillis();
+			long finish = milliseconds > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliseconds)
+					: Long.MAX_VALUE;
+			long sent = 0;
+			while ((roundTrips <= 0 || sent < roundTrips) && System.nanoTime() < finish) {
+				resetBlock(block);
+				block.put(0, NOT_LAST_MESSAGE);
+				block.putLong(TIMESTAMP, System.nanoTime());
+				sendBlock(channel, block);
+				resetBlock(block);
+				readBlock(channel, block);
+				histogram.record(System.nanoTime() - block.getLong(TIMESTAMP));
+				sent++;
+			}
+			long end = System.currentTimeMillis();
+			resetBlock(block);
+			block.put(0, LAST_MESSAGE);
+			sendBlock(channel, block);
+			return new LatencyMeasurement(start, end, sent * getBlockSize(), histogram);
+		} finally {
+			BufferPool.shared().release(block);
+			restoreNoDelay(channel, noDelay);
+		}
+	}
+
+	/**
+	 * Echoes would be mixed with the other side's messages.
+	 */
+	@Override
+	public boolean supportsFullDuplex() {
+		return false;
+	}
+
+	/**
+	 * Messages are written whole, waiting to coalesce them would only add
+	 * latency.
+	 * 
+	 * @return whether the channel had no delay before
+	 */
+	private static boolean noDelay(ByteChannel channel) throws IOException {
+		if (!(channel instanceof NetworkChannel)) {
+			return true;
+		}
+		NetworkChannel network = (NetworkChannel) channel;
+		boolean previous = network.getOption(StandardSocketOptions.TCP_NODELAY);
+		network.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		return previous;
+	}
+
+	/**
+	 * Pooled connections are reused by later measurements, which must get the
+	 * settings they asked for.
+	 */
+	private static void restoreNoDelay(ByteChannel channel, boolean noDelay) throws IOException {
+		if (!noDelay && channel.isOpen()) {
+			((NetworkChannel) channel).setOption(StandardSocketOptions.TCP_NODELAY, false);
+		}
+	}
+
+	/**
+	 * @return the time limit to echo messages, zero for no limit
+	 */
+	public long getMilliseconds() {
+		return milliseconds;
+	}
+
+	/**
+	 * @return the amount of messages to echo, zero for no limit
+	 */
+	public long getRoundTrips() {
+		return roundTrips;
+	}
+
+	@Override
+	public String toString() {
+		return "Ping pong " + (roundTrips > 0 ? roundTrips + " times " : "") + (milliseconds > 0 ? "during "
+				+ milliseconds + " ms " : "") + "with messages of " + getBlockSize() + " bytes";
+	}
+}
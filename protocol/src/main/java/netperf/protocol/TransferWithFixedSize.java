@@ -27,8 +27,8 @@ package netperf.protocol;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 
 /**
  * Obtain {@link SpeedMeasurement} sending a fixed amount of data, the measured
@@ -39,49 +39,90 @@ import java.io.OutputStream;
  */
 public class TransferWithFixedSize extends TransferCommand {
 	private long kilobytesToSend;
-	private byte[] kilobyte;
 
 	/**
 	 * @param kilobytesToSend
 	 *            The amount of random data in kilobytes to transfer
 	 */
 	public TransferWithFixedSize(long kilobytesToSend) {
-		super();
+		this(kilobytesToSend, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param kilobytesToSend
+	 *            The amount of random data in kilobytes to transfer
+	 * @param blockSize
+	 *            the amount of bytes written at a time, the last block is
+	 *            shorter if it does not divide the amount of data.
+	 */
+	public TransferWithFixedSize(long kilobytesToSend, int blockSize) {
+		super(blockSize);
 		this.kilobytesToSend = kilobytesToSend;
-		this.kilobyte = new byte[1024];
-		for (int i = 0; i < kilobyte.length; i++) {
-			kilobyte[i] = (byte) i;
-		}
 	}
 
 	@Override
-	public SpeedMeasurement executeRead(InputStream input) throws IOException {
-		long start = System.currentTimeMillis();
-		for (long i = kilobytesToSend; i > 0; i = i - 1) {
-			readKilobyte(input, kilobyte);
+	public SpeedMeasurement executeRead(ByteChannel channel, ProgressListener listener) throws IOException {
+		ByteBuffer block = acquireBlock();
+		try {
+			TransferChecksum checksum = startChecksum();
+			long start = System.currentTimeMillis();
+			IntervalSampler sampler = startSampler(0, listener);
+			for (long remaining = kilobytesToSend * 1024; remaining > 0; remaining -= block.limit()) {
+				resetBlock(block);
+				if (remaining < block.limit()) {
+					block.limit((int) remaining);
+				}
+				readBlock(channel, block);
+				checksum(checksum, block);
+				sampler.record(kilobytesToSend * 1024 - remaining + block.limit());
+			}
+			SpeedMeasurement measurement = sampler.measurement(start, System.currentTimeMillis(),
+					kilobytesToSend * 1024);
+			return checksum == null ? measurement : checksum.receive(channel, measurement);
+		} finally {
+			BufferPool.shared().release(block);
 		}
-		return new SpeedMeasurement(start, System.currentTimeMillis(), kilobytesToSend);
 	}
 
 	@Override
-	public SpeedMeasurement executeSend(OutputStream output) throws IOException {
-		long start = System.currentTimeMillis();
-		for (long i = kilobytesToSend; i > 0; i = i - 1) {
-			sendKilobyte(output, this.kilobyte);
+	public SpeedMeasurement executeSend(ByteChannel channel, ProgressListener listener) throws IOException {
+		ByteBuffer block = acquireBlock();
+		try {
+			PayloadPool.Cursor payload = PayloadPool.shared().cursor();
+			TransferChecksum checksum = startChecksum();
+			long start = System.currentTimeMillis();
+			IntervalSampler sampler = startSampler(0, listener);
+			for (long remaining = kilobytesToSend * 1024; remaining > 0;) {
+				resetBlock(block);
+				int length = (int) Math.min(remaining, block.limit());
+				block.limit(length);
+				sendBlock(channel, block, 0, payload, checksum);
+				remaining -= length;
+				sampler.record(kilobytesToSend * 1024 - remaining);
+			}
+			SpeedMeasurement measurement = sampler.measurement(start, System.currentTimeMillis(),
+					kilobytesToSend * 1024);
+			return checksum == null ? measurement : checksum.send(channel, measurement);
+		} finally {
+			BufferPool.shared().release(block);
 		}
-		return new SpeedMeasurement(start, System.currentTimeMillis(), kilobytesToSend);
 	}
 
 	/**
 	 * @return amount of data in kilobytes to send during
-	 *         {@link #executeSend(OutputStream)}
+	 *         {@link #executeSend(ByteChannel)}
 	 */
 	public long getKilobytesToSend() {
 		return kilobytesToSend;
 	}
 
+	@Override
+	public boolean supportsVerification() {
+		return true;
+	}
+
 	@Override
 	public String toString() {
-		return "Transfer " + kilobytesToSend + " kb";
+		return "Transfer " + kilobytesToSend + " kb in blocks of " + getBlockSize() + " bytes";
 	}
 }
@@ -0,0 +1,152 @@
+package netperf.protocol;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Obtain {@link SpeedMeasurement} sending a fixed amount of data straight from
+ * a file into the connection with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the
+ * kernel moves the data (sendfile) instead of copying it through the JVM. The
+ * measured variable is time.
+ *
+ * The file is built once per JVM from the {@link PayloadPool} and sent over
+ * and over until the requested amount of data is transferred. The receiver
+ * reads it in blocks of {@link #getBlockSize()} bytes,
+ * {@link #DEFAULT_ZERO_COPY_BLOCK_SIZE} unless specified.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ *
+ */
+public class TransferWithZeroCopy extends TransferCommand {
+	/**
+	 * The block size used when none is specified, larger than
+	 * {@link TransferCommand#DEFAULT_BLOCK_SIZE} so the receiver keeps up.
+	 */
+	public static final int DEFAULT_ZERO_COPY_BLOCK_SIZE = 64 * 1024;
+	private static final int PAYLOAD_SIZE = 64 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static FileChannel payload;
+	private long kilobytesToSend;
+
+	/**
+	 * @param kilobytesToSend
+	 *            The amount of data in kilobytes to transfer
+	 */
+	public TransferWithZeroCopy(long kilobytesToSend) {
+		this(kilobytesToSend, DEFAULT_ZERO_COPY_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param kilobytesToSend
+	 *            The amount of data in kilobytes to transfer
+	 * @param blockSize
+	 *            the amount of bytes read at a time
+	 */
+	public TransferWithZeroCopy(long kilobytesToSend, int blockSize) {
+		super(blockSize);
+		this.kilobytesToSend = kilobytesToSend;
+	}
+
+	/**
+	 * @return the file every execution sends from, built on first use.
+	 * @throws IOException
+	 */
+	private static synchronized FileChannel payload() throws IOException {
+		if (payload == null) {
+			Path path = Files.createTempFile("netperf", ".payload");
+			path.toFile().deleteOnExit();
+			try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				PayloadPool.Cursor cursor = PayloadPool.shared().cursor();
+				for (int written = 0; written < PAYLOAD_SIZE; written += BUFFER_SIZE) {
+					ByteBuffer buffer = cursor.next(BUFFER_SIZE);
+					while (buffer.hasRemaining()) {
+						file.write(buffer);
+					}
+				}
+			}
+			payload = FileChannel.open(path, StandardOpenOption.READ);
+		}
+		return payload;
+	}
+
+	@Override
+	public SpeedMeasurement executeRead(ByteChannel channel, ProgressListener listener) throws IOException {
+		ByteBuffer block = acquireBlock();
+		try {
+			long start = System.currentTimeMillis();
+			IntervalSampler sampler = startSampler(0, listener);
+			for (long remaining = kilobytesToSend * 1024; remaining > 0; remaining -= block.limit()) {
+				resetBlock(block);
+				if (remaining < block.limit()) {
+					block.limit((int) remaining);
+				}
+				readBlock(channel, block);
+				sampler.record(kilobytesToSend * 1024 - remaining + block.limit());
+			}
+			return sampler.measurement(start, System.currentTimeMillis(), kilobytesToSend * 1024);
+		} finally {
+			BufferPool.shared().release(block);
+		}
+	}
+
+	@Override
+	public SpeedMeasurement executeSend(ByteChannel channel, ProgressListener listener) throws IOException {
+		FileChannel file = payload();
+		long start = System.currentTimeMillis();
+		IntervalSampler sampler = startSampler(0, listener);
+		long position = 0;
+		for (long remaining = kilobytesToSend * 1024; remaining > 0;) {
+			long sent = file.transferTo(position, Math.min(remaining, PAYLOAD_SIZE - position), channel);
+			position = (position + sent) % PAYLOAD_SIZE;
+			remaining -= sent;
+			sampler.record(kilobytesToSend * 1024 - remaining);
+		}
+		return sampler.measurement(start, System.currentTimeMillis(), kilobytesToSend * 1024);
+	}
+
+	/**
+	 * @return amount of data in kilobytes to send during
+	 *         {@link #executeSend(ByteChannel)}
+	 */
+	public long getKilobytesToSend() {
+		return kilobytesToSend;
+	}
+
+	@Override
+	public String toString() {
+		return "Transfer " + kilobytesToSend + " kb with zero copy";
+	}
+}
@@ -0,0 +1,124 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.FrameDecoder;
+import netperf.protocol.MeasurementMessage;
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.StopMessage;
+import netperf.protocol.TransferWithFixedSize;
+
+@SuppressWarnings("javadoc")
+public class FrameDecoderTest {
+
+	private MessageMarshaller marshaller;
+	private FrameDecoder decoder;
+
+	@Before
+	public void setUp() {
+		marshaller = new MessageMarshaller();
+		decoder = new FrameDecoder(marshaller, 1024);
+	}
+
+	@Test
+	public void testByteByByte() throws MarshalException, ProtocolException {
+		byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(new TransferWithFixedSize(60)));
+		ByteBuffer chunk = ByteBuffer.allocate(1);
+		for (int i = 0; i < bytes.length - 1; i++) {
+			chunk.clear();
+			chunk.put(bytes[i]).flip();
+			assertNull(decoder.nextMessage(chunk));
+		}
+		chunk.clear();
+		chunk.put(bytes[bytes.length - 1]).flip();
+		MeasurementMessage message = (MeasurementMessage) decoder.nextMessage(chunk);
+		assertEquals(((TransferWithFixedSize) message.getCommand()).getKilobytesToSend(), 60L);
+	}
+
+	@Test
+	public void testManyFramesInOneChunk() throws MarshalException, ProtocolException {
+		ByteBuffer chunk = ByteBuffer.allocate(256);
+		chunk.put(marshaller.marshallMessage(new StopMessage()));
+		chunk.put(marshaller.marshallSpeed(new SpeedMeasurement(1, 2, 3)));
+		chunk.put(marshaller.marshallMessage(new DisconnectMessage()));
+		chunk.flip();
+		assertTrue(decoder.nextMessage(chunk) instanceof StopMessage);
+		assertEquals(decoder.nextSpeed(chunk).getBytes(), 3L);
+		assertTrue(decoder.nextMessage(chunk) instanceof DisconnectMessage);
+		assertEquals(chunk.remaining(), 0);
+	}
+
+	@Test
+	public void testCleanEndOfStream() throws MarshalException, IOException {
+		ReadableByteChannel channel = Channels
+				.newChannel(new ByteArrayInputStream(marshaller.marshallMessage(new StopMessage())));
+		Message message = decoder.nextMessage(channel);
+		assertTrue(message instanceof StopMessage);
+		assertNull(decoder.nextMessage(channel));
+		assertTrue(decoder.isClosed());
+	}
+
+	@Test(expected = EOFException.class)
+	public void testEndOfStreamInsideFrame() throws MarshalException, IOException {
+		byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(new TransferWithFixedSize(60)));
+		ByteArrayInputStream truncated = new ByteArrayInputStream(bytes, 0, bytes.length - 1);
+		decoder.nextMessage(Channels.newChannel(truncated));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testFrameTooLong() throws MarshalException, ProtocolException {
+		ByteBuffer chunk = ByteBuffer.allocate(MessageMarshaller.LENGTH_HEADER_SIZE);
+		chunk.putInt(1025).flip();
+		decoder.nextMessage(chunk);
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void testStreamEndsInsideFrame() throws MarshalException {
+		byte[] bytes = marshaller.marshallMessage(new StopMessage());
+		marshaller.unmarshallMessage(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+	}
+}
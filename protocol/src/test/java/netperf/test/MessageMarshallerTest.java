@@ -27,24 +27,39 @@ package netperf.test;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import netperf.protocol.DatagramMeasurement;
+import netperf.protocol.LatencyHistogram;
+import netperf.protocol.LatencyMeasurement;
 import netperf.protocol.MeasurementMessage;
 import netperf.protocol.Message;
 import netperf.protocol.MessageMarshaller;
 import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
 import netperf.protocol.SpeedMeasurement;
 import netperf.protocol.StartMessage;
 import netperf.protocol.StopMessage;
+import netperf.protocol.TransferDatagramsAtFixedRate;
 import netperf.protocol.TransferDuringFixedTime;
+import netperf.protocol.TransferPingPong;
 import netperf.protocol.TransferWithFixedSize;
+import netperf.protocol.TransferWithZeroCopy;
 
 @SuppressWarnings("javadoc")
 public class MessageMarshallerTest {
@@ -56,6 +71,20 @@ public class MessageMarshallerTest {
 		marshaller = new MessageMarshaller();
 	}
 
+	@Test
+	public void testMeasurementMessageDatagrams() throws MarshalException {
+		TransferDatagramsAtFixedRate command = new TransferDatagramsAtFixedRate(60, 512, 1400);
+		Message message = new MeasurementMessage(command);
+		byte[] bytes = marshaller.marshallMessage(message);
+		message = marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		MeasurementMessage measurementMessage = (MeasurementMessage) message;
+		assert (measurementMessage.getCommand() instanceof TransferDatagramsAtFixedRate);
+		TransferDatagramsAtFixedRate datagrams = (TransferDatagramsAtFixedRate) measurementMessage.getCommand();
+		assertEquals(datagrams.getMilliseconds(), command.getMilliseconds());
+		assertEquals(datagrams.getKilobytesPerSecond(), command.getKilobytesPerSecond());
+		assertEquals(datagrams.getBlockSize(), command.getBlockSize());
+	}
+
 	@Test
 	public void testMeasurementMessageFixedSize() throws MarshalException {
 		TransferWithFixedSize command = new TransferWithFixedSize(60);
@@ -69,6 +98,61 @@ public class MessageMarshallerTest {
 				command.getKilobytesToSend());
 	}
 
+	@Test
+	public void testMeasurementMessageBlockSize() throws MarshalException {
+		TransferDuringFixedTime command = new TransferDuringFixedTime(60, 4 * 1024 * 1024);
+		Message message = new MeasurementMessage(command);
+		byte[] bytes = marshaller.marshallMessage(message);
+		message = marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		MeasurementMessage measurementMessage = (MeasurementMessage) message;
+		assertEquals(measurementMessage.getCommand().getBlockSize(), command.getBlockSize());
+	}
+
+	@Test
+	public void testMeasurementMessageBidirectional() throws MarshalException {
+		MeasurementMessage original = new MeasurementMessage(new TransferWithFixedSize(60));
+		original.setBidirectional(true);
+		byte[] bytes = marshaller.marshallMessage(original);
+		MeasurementMessage message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assert (message.isBidirectional());
+	}
+
+	@Test
+	public void testMeasurementMessageParallelism() throws MarshalException {
+		MeasurementMessage original = new MeasurementMessage(new TransferDuringFixedTime(60));
+		original.setParallelism(8);
+		byte[] bytes = marshaller.marshallMessage(original);
+		MeasurementMessage message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getParallelism(), original.getParallelism());
+		assert (!message.isBidirectional());
+	}
+
+	@Test
+	public void testMeasurementMessageSettings() throws MarshalException {
+		MeasurementMessage original = new MeasurementMessage(new TransferDuringFixedTime(60));
+		original.getSettings().setSendBufferSize(4 * 1024 * 1024);
+		original.getSettings().setNoDelay(false);
+		original.getSettings().setLinger(-1);
+		byte[] bytes = marshaller.marshallMessage(original);
+		MeasurementMessage message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getSettings().getSendBufferSize(), Integer.valueOf(4 * 1024 * 1024));
+		assertEquals(message.getSettings().getReceiveBufferSize(), null);
+		assertEquals(message.getSettings().getNoDelay(), Boolean.FALSE);
+		assertEquals(message.getSettings().getTrafficClass(), null);
+		assertEquals(message.getSettings().getLinger(), Integer.valueOf(-1));
+	}
+
+	@Test
+	public void testMeasurementMessagePingPong() throws MarshalException {
+		TransferPingPong command = new TransferPingPong(1000, 5000, 128);
+		byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(command));
+		MeasurementMessage message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		TransferPingPong pingPong = (TransferPingPong) message.getCommand();
+		assertEquals(pingPong.getRoundTrips(), command.getRoundTrips());
+		assertEquals(pingPong.getMilliseconds(), command.getMilliseconds());
+		assertEquals(pingPong.getBlockSize(), command.getBlockSize());
+	}
+
 	@Test
 	public void testMeasurementMessageFixedTime() throws MarshalException {
 		TransferDuringFixedTime command = new TransferDuringFixedTime(60);
@@ -80,6 +164,226 @@ public class MessageMarshallerTest {
 		assert (measurementMessage.getCommand() instanceof TransferDuringFixedTime);
 		assertEquals(((TransferDuringFixedTime) measurementMessage.getCommand()).getMilliseconds(),
 				command.getMilliseconds());
+		assertEquals(((TransferDuringFixedTime) measurementMessage.getCommand()).getWarmupMillis(), 0L);
+	}
+
+	@Test
+	public void testMeasurementMessageWarmup() throws MarshalException {
+		TransferDuringFixedTime fixed = new TransferDuringFixedTime(60);
+		fixed.setWarmupMillis(250);
+		TransferDuringFixedTime automatic = new TransferDuringFixedTime(60);
+		automatic.setWarmupMillis(TransferDuringFixedTime.AUTOMATIC_WARMUP);
+		for (TransferDuringFixedTime command : new TransferDuringFixedTime[] { fixed, automatic }) {
+			byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(command));
+			MeasurementMessage message = (MeasurementMessage) marshaller
+					.unmarshallMessage(new ByteArrayInputStream(bytes));
+			assertEquals(((TransferDuringFixedTime) message.getCommand()).getWarmupMillis(),
+					command.getWarmupMillis());
+		}
+	}
+
+	@Test
+	public void testMeasurementMessageVerifying() throws MarshalException {
+		TransferWithFixedSize command = new TransferWithFixedSize(60);
+		command.setVerifying(true);
+		byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(command));
+		MeasurementMessage message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getCommand().isVerifying(), true);
+		bytes = marshaller.marshallMessage(new MeasurementMessage(new TransferDuringFixedTime(60)));
+		message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getCommand().isVerifying(), false);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testVerifyingUnsupported() {
+		new TransferWithZeroCopy(60).setVerifying(true);
+	}
+
+	@Test
+	public void testMeasurementMessageZeroCopy() throws MarshalException {
+		TransferWithZeroCopy command = new TransferWithZeroCopy(60);
+		Message message = new MeasurementMessage(command);
+		byte[] bytes = marshaller.marshallMessage(message);
+		message = marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assert (message instanceof MeasurementMessage);
+		MeasurementMessage measurementMessage = (MeasurementMessage) message;
+		assert (measurementMessage.getCommand() instanceof TransferWithZeroCopy);
+		assertEquals(((TransferWithZeroCopy) measurementMessage.getCommand()).getKilobytesToSend(),
+				command.getKilobytesToSend());
+	}
+
+	@Test
+	public void testProgressMessage() throws MarshalException {
+		InetSocketAddress address = new InetSocketAddress("10.0.0.2", 2345);
+		ProgressMessage original = new ProgressMessage(address, 3, true, new SpeedMeasurement(100, 200, 300));
+		byte[] bytes = marshaller.marshallMessage(original);
+		ProgressMessage message = (ProgressMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getAddress(), address);
+		assertEquals(message.getStream(), original.getStream());
+		assertEquals(message.isSending(), original.isSending());
+		assertEquals(message.getInterval().getStart(), original.getInterval().getStart());
+		assertEquals(message.getInterval().getEnd(), original.getInterval().getEnd());
+		assertEquals(message.getInterval().getBytes(), original.getInterval().getBytes());
+	}
+
+	@Test
+	public void testResultMessage() throws MarshalException {
+		SpeedMeasurement[] speeds = { new SpeedMeasurement(1, 2, 3), new DatagramMeasurement(4, 5, 6, 7, 8, 9, 10) };
+		byte[] bytes = marshaller.marshallMessage(new ResultMessage(speeds));
+		ResultMessage message = (ResultMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getSpeeds().length, speeds.length);
+		assertEquals(message.getSpeeds()[0].getBytes(), speeds[0].getBytes());
+		assertEquals(((DatagramMeasurement) message.getSpeeds()[1]).getLost(), 8L);
+		assertEquals(message.getAddress(), null);
+		assertEquals(message.getRequestId(), 0);
+	}
+
+	@Test
+	public void testRequestIds() throws MarshalException {
+		InetSocketAddress address = new InetSocketAddress("10.0.0.2", 2345);
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(1);
+		addresses.add(address);
+		StartMessage start = new StartMessage(addresses, new TransferDuringFixedTime(60));
+		start.setRequestId(42);
+		start = (StartMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(marshaller.marshallMessage(start)));
+		assertEquals(start.getRequestId(), 42);
+		ProgressMessage progress = new ProgressMessage(address, 0, false, new SpeedMeasurement(1, 2, 3));
+		progress.setRequestId(43);
+		progress = (ProgressMessage) marshaller
+				.unmarshallMessage(new ByteArrayInputStream(marshaller.marshallMessage(progress)));
+		assertEquals(progress.getRequestId(), 43);
+		ResultMessage result = new ResultMessage(new SpeedMeasurement[] { new SpeedMeasurement(1, 2, 3) });
+		result.setRequestId(44);
+		result.setAddress(address);
+		result = (ResultMessage) marshaller
+				.unmarshallMessage(new ByteArrayInputStream(marshaller.marshallMessage(result)));
+		assertEquals(result.getRequestId(), 44);
+		assertEquals(result.getAddress(), address);
+		assertEquals(result.getSpeeds()[0].getBytes(), 3L);
+	}
+
+	@Test
+	public void testQueueing() throws MarshalException {
+		InetSocketAddress address = new InetSocketAddress("10.0.0.2", 2345);
+		StartMessage start = new StartMessage(Collections.singletonList(address), new TransferDuringFixedTime(60));
+		start.setRequestId(42);
+		start.setPriority(-3);
+		start = (StartMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(marshaller.marshallMessage(start)));
+		assertEquals(start.getPriority(), -3);
+		assertEquals(start.getRequestId(), 42);
+		ResultMessage result = new ResultMessage(new SpeedMeasurement[] { new SpeedMeasurement(1, 2, 3) });
+		result.setQueueMillis(1500);
+		result.setTargetQueueMillis(70000);
+		result = (ResultMessage) marshaller
+				.unmarshallMessage(new ByteArrayInputStream(marshaller.marshallMessage(result)));
+		assertEquals(result.getQueueMillis(), 1500L);
+		assertEquals(result.getTargetQueueMillis(), 70000L);
+		assertEquals(result.getSpeeds()[0].getBytes(), 3L);
+	}
+
+	@Test
+	public void testResultMessageError() throws MarshalException {
+		ResultMessage failed = new ResultMessage(new SpeedMeasurement[0]);
+		failed.setRequestId(7);
+		failed.setError("java.io.IOException: Connection reset by peer ñ");
+		ResultMessage message = (ResultMessage) marshaller
+				.unmarshallMessage(new ByteArrayInputStream(marshaller.marshallMessage(failed)));
+		assertEquals(message.getError(), "java.io.IOException: Connection reset by peer ñ");
+		assertEquals(message.getRequestId(), 7);
+		assertEquals(message.getSpeeds().length, 0);
+		ResultMessage measured = (ResultMessage) marshaller.unmarshallMessage(
+				new ByteArrayInputStream(marshaller.marshallMessage(new ResultMessage(new SpeedMeasurement[0]))));
+		assertNull(measured.getError());
+	}
+
+	@Test(expected = MarshalException.class)
+	public void testEmptyFrame() throws MarshalException {
+		marshaller.unmarshallMessage(ByteBuffer.allocate(0));
+	}
+
+	@Test(expected = MarshalException.class)
+	public void testTruncatedMessage() throws MarshalException {
+		byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(new TransferWithFixedSize(60)));
+		marshaller.unmarshallMessage(ByteBuffer.wrap(bytes, MessageMarshaller.LENGTH_HEADER_SIZE,
+				bytes.length - MessageMarshaller.LENGTH_HEADER_SIZE - 1).slice());
+	}
+
+	@Test(expected = MarshalException.class)
+	public void testErrorLongerThanFrame() throws MarshalException {
+		ByteBuffer frame = ByteBuffer.allocate(16);
+		// A result announcing an error of 2^28 bytes.
+		frame.put((byte) 5).putInt(1).put((byte) 0).put((byte) 0).put(new byte[] { -1, -1, -1, -1, 1 });
+		frame.flip();
+		marshaller.unmarshallMessage(frame);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testFrameTooLongFromChannel() throws MarshalException, IOException {
+		ByteBuffer header = ByteBuffer.allocate(MessageMarshaller.LENGTH_HEADER_SIZE).putInt(Integer.MAX_VALUE);
+		marshaller.unmarshallMessage(Channels.newChannel(new ByteArrayInputStream(header.array())));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testNegativeFrameLengthFromChannel() throws MarshalException, IOException {
+		ByteBuffer header = ByteBuffer.allocate(MessageMarshaller.LENGTH_HEADER_SIZE).putInt(-1);
+		marshaller.unmarshallMessage(Channels.newChannel(new ByteArrayInputStream(header.array())));
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void testFrameTooLongFromStream() throws MarshalException {
+		ByteBuffer header = ByteBuffer.allocate(MessageMarshaller.LENGTH_HEADER_SIZE).putInt(Integer.MAX_VALUE);
+		marshaller.unmarshallMessage(new ByteArrayInputStream(header.array()));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testSampleCountLongerThanFrame() throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(64);
+		frame.putInt(0);
+		// Sampled every millisecond, with 2^28 samples announced.
+		frame.put((byte) 2).putLong(1).putLong(2).putLong(3).put((byte) 1).put(new byte[] { -1, -1, -1, -1, 1 });
+		frame.putInt(0, frame.position() - MessageMarshaller.LENGTH_HEADER_SIZE);
+		marshaller.unmarshallSpeed(Channels.newChannel(new ByteArrayInputStream(frame.array(), 0, frame.position())));
+	}
+
+	@Test
+	public void testResultMessageSettings() throws MarshalException {
+		SpeedMeasurement[] speeds = { new SpeedMeasurement(1, 2, 3) };
+		ResultMessage original = new ResultMessage(speeds);
+		original.getSourceSettings().setReceiveBufferSize(87380);
+		original.getTargetSettings().setTrafficClass(0x10);
+		original.getTargetSettings().setNoDelay(true);
+		byte[] bytes = marshaller.marshallMessage(original);
+		ResultMessage message = (ResultMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getSourceSettings().getReceiveBufferSize(), Integer.valueOf(87380));
+		assertEquals(message.getTargetSettings().getTrafficClass(), Integer.valueOf(0x10));
+		assertEquals(message.getTargetSettings().getNoDelay(), Boolean.TRUE);
+		assertEquals(message.getSpeeds().length, 1);
+		assertEquals(message.getSpeeds()[0].getBytes(), 3L);
+	}
+
+	@Test
+	public void testMessagesIntoBuffer() throws MarshalException {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		SpeedMeasurement[] speeds = { new SpeedMeasurement(1, 2, 3, 100, new long[] { 4, 5 }),
+				new LatencyMeasurement(6, 7, 8, histogram) };
+		Message[] messages = { new MeasurementMessage(new TransferPingPong(10, 20)), new ResultMessage(speeds) };
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		for (Message message : messages) {
+			int position = buffer.position();
+			marshaller.marshallMessage(message, buffer);
+			assertEquals(buffer.position() - position, marshaller.frameLength(message));
+		}
+		buffer.flip();
+		buffer.limit(buffer.getInt() + MessageMarshaller.LENGTH_HEADER_SIZE);
+		MeasurementMessage measurement = (MeasurementMessage) marshaller.unmarshallMessage(buffer);
+		assertEquals(((TransferPingPong) measurement.getCommand()).getRoundTrips(), 10L);
+		buffer.limit(buffer.capacity());
+		buffer.limit(buffer.getInt() + buffer.position());
+		ResultMessage result = (ResultMessage) marshaller.unmarshallMessage(buffer);
+		assertEquals(result.getSpeeds().length, speeds.length);
+		assertEquals(result.getSpeeds()[0].getSamples()[1], 5L);
+		assertEquals(((LatencyMeasurement) result.getSpeeds()[1]).getHistogram().getMin(), 1000L);
 	}
 
 	@Test
@@ -89,7 +393,123 @@ public class MessageMarshallerTest {
 		SpeedMeasurement speed = marshaller.unmarshallSpeed(new ByteArrayInputStream(bytes));
 		assertEquals(speed.getStart(), original.getStart());
 		assertEquals(speed.getEnd(), original.getEnd());
-		assertEquals(speed.getKilobytes(), original.getKilobytes());
+		assertEquals(speed.getBytes(), original.getBytes());
+	}
+
+	@Test
+	public void testSpeedsWithDatagrams() {
+		SpeedMeasurement[] speeds = new SpeedMeasurement[2];
+		speeds[0] = new SpeedMeasurement(1, 2, 3);
+		DatagramMeasurement datagrams = new DatagramMeasurement(4, 5, 6, 7, 8, 9, 10);
+		speeds[1] = datagrams;
+		byte[] bytes = marshaller.marshallSpeeds(speeds);
+		speeds = marshaller.unmarshallSpeeds(new ByteArrayInputStream(bytes));
+		assertEquals(speeds.length, 2);
+		assert (!(speeds[0] instanceof DatagramMeasurement));
+		assertEquals(speeds[0].getBytes(), 3L);
+		DatagramMeasurement speed = (DatagramMeasurement) speeds[1];
+		assertEquals(speed.getStart(), datagrams.getStart());
+		assertEquals(speed.getEnd(), datagrams.getEnd());
+		assertEquals(speed.getBytes(), datagrams.getBytes());
+		assertEquals(speed.getReceived(), datagrams.getReceived());
+		assertEquals(speed.getLost(), datagrams.getLost());
+		assertEquals(speed.getOutOfOrder(), datagrams.getOutOfOrder());
+		assertEquals(speed.getJitter(), datagrams.getJitter());
+	}
+
+	@Test
+	public void testSpeedHostBound() {
+		SpeedMeasurement original = new SpeedMeasurement(1, 2, 3, 100, new long[] { 4 });
+		original.setHostBound(true);
+		SpeedMeasurement[] speeds = marshaller
+				.unmarshallSpeeds(new ByteArrayInputStream(marshaller.marshallSpeeds(new SpeedMeasurement[] {
+						original, new SpeedMeasurement(5, 6, 7) })));
+		assertEquals(speeds[0].isHostBound(), true);
+		assertEquals(speeds[0].getSamples()[0], 4L);
+		assertEquals(speeds[1].isHostBound(), false);
+		assertEquals(SpeedMeasurement.aggregate(speeds).isHostBound(), true);
+	}
+
+	@Test
+	public void testSpeedVerification() {
+		SpeedMeasurement verified = new SpeedMeasurement(1, 2, 3);
+		verified.setVerification(false, 1000);
+		SpeedMeasurement corrupted = new SpeedMeasurement(4, 5, 6);
+		corrupted.setVerification(true, 2000);
+		SpeedMeasurement[] speeds = marshaller.unmarshallSpeeds(new ByteArrayInputStream(marshaller
+				.marshallSpeeds(new SpeedMeasurement[] { verified, corrupted, new SpeedMeasurement(7, 8, 9) })));
+		assertEquals(speeds[0].isVerified(), true);
+		assertEquals(speeds[0].isCorrupted(), false);
+		assertEquals(speeds[0].getChecksumNanos(), 1000L);
+		assertEquals(speeds[1].isCorrupted(), true);
+		assertEquals(speeds[1].getChecksumNanos(), 2000L);
+		assertEquals(speeds[2].isVerified(), false);
+		assertEquals(speeds[2].getBytes(), 9L);
+		SpeedMeasurement aggregate = SpeedMeasurement.aggregate(speeds);
+		assertEquals(aggregate.isCorrupted(), true);
+		assertEquals(aggregate.getChecksumNanos(), 3000L);
+	}
+
+	@Test
+	public void testSpeedsWithSamples() {
+		long[] samples = { 0, 1, 1024 * 1024, 1024 * 1024 - 1, 0, Long.MAX_VALUE, 3 };
+		SpeedMeasurement original = new SpeedMeasurement(1, 2, 3, 100, samples);
+		byte[] bytes = marshaller.marshallSpeed(original);
+		assert (bytes.length < 1 + (Long.SIZE / 8) * (3 + samples.length));
+		SpeedMeasurement speed = marshaller.unmarshallSpeed(new ByteArrayInputStream(bytes));
+		assertEquals(speed.getBytes(), original.getBytes());
+		assertEquals(speed.getSampleInterval(), original.getSampleInterval());
+		assertEquals(speed.getSamples().length, samples.length);
+		for (int i = 0; i < samples.length; i++) {
+			assertEquals(speed.getSamples()[i], samples[i]);
+		}
+	}
+
+	@Test
+	public void testMeasurementMessageSampleInterval() throws MarshalException {
+		TransferWithFixedSize command = new TransferWithFixedSize(60);
+		command.setSampleInterval(250);
+		byte[] bytes = marshaller.marshallMessage(new MeasurementMessage(command));
+		MeasurementMessage message = (MeasurementMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getCommand().getSampleInterval(), command.getSampleInterval());
+	}
+
+	@Test
+	public void testSpeedWithLatencies() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value * 1000);
+		}
+		LatencyMeasurement original = new LatencyMeasurement(1, 2, 3, histogram);
+		byte[] bytes = marshaller.marshallSpeed(original);
+		LatencyMeasurement speed = (LatencyMeasurement) marshaller.unmarshallSpeed(new ByteArrayInputStream(bytes));
+		assertEquals(speed.getHistogram().getTotal(), histogram.getTotal());
+		assertEquals(speed.getHistogram().getMin(), 1000L);
+		assertEquals(speed.getHistogram().getMax(), 100000000L);
+		assertEquals(speed.getPercentile(100), 100000000L);
+		for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+			long expected = (long) (percentile * 1000000);
+			assertEquals(speed.getPercentile(percentile), original.getPercentile(percentile));
+			assert (Math.abs(speed.getPercentile(percentile) - expected) <= expected / LatencyHistogram.SUB_BUCKETS);
+		}
+	}
+
+	@Test
+	public void testEmptyLatencies() {
+		LatencyMeasurement empty = new LatencyMeasurement(1, 2, 0, new LatencyHistogram());
+		LatencyMeasurement speed = (LatencyMeasurement) marshaller
+				.unmarshallSpeed(new ByteArrayInputStream(marshaller.marshallSpeed(empty)));
+		assertEquals(speed.getHistogram().getTotal(), 0L);
+		assertEquals(speed.getHistogram().getMin(), 0L);
+		LatencyHistogram measured = new LatencyHistogram();
+		measured.record(5000);
+		LatencyHistogram aggregate = new LatencyHistogram();
+		aggregate.merge(speed.getHistogram());
+		aggregate.merge(measured);
+		assertEquals(aggregate.getMin(), 5000L);
+		measured.merge(speed.getHistogram());
+		assertEquals(measured.getMin(), 5000L);
+		assertEquals(measured.getTotal(), 1L);
 	}
 
 	@Test
@@ -104,10 +524,10 @@ public class MessageMarshallerTest {
 		assertEquals(speeds.length, 2);
 		assertEquals(speeds[0].getStart(), speed0.getStart());
 		assertEquals(speeds[0].getEnd(), speed0.getEnd());
-		assertEquals(speeds[0].getKilobytes(), speed0.getKilobytes());
+		assertEquals(speeds[0].getBytes(), speed0.getBytes());
 		assertEquals(speeds[1].getStart(), speed1.getStart());
 		assertEquals(speeds[1].getEnd(), speed1.getEnd());
-		assertEquals(speeds[1].getKilobytes(), speed1.getKilobytes());
+		assertEquals(speeds[1].getBytes(), speed1.getBytes());
 	}
 
 	@Test
@@ -154,6 +574,34 @@ public class MessageMarshallerTest {
 				command.getMilliseconds());
 	}
 
+	@Test
+	public void testStartMessageParallelism() throws MarshalException {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(1);
+		addresses.add(new InetSocketAddress("127.0.0.1", 345));
+		StartMessage original = new StartMessage(addresses, new TransferWithFixedSize(60));
+		original.setParallelism(4);
+		original.setBidirectional(true);
+		byte[] bytes = marshaller.marshallMessage(original);
+		StartMessage message = (StartMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.getAddresses().get(0), addresses.get(0));
+		assertEquals(message.getParallelism(), original.getParallelism());
+		assert (message.isBidirectional());
+		assert (!message.isFreshConnections());
+		assert (message.getSettings().isEmpty());
+	}
+
+	@Test
+	public void testStartMessageFreshConnections() throws MarshalException {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(1);
+		addresses.add(new InetSocketAddress("127.0.0.1", 345));
+		StartMessage original = new StartMessage(addresses, new TransferDuringFixedTime(60));
+		original.setFreshConnections(true);
+		byte[] bytes = marshaller.marshallMessage(original);
+		StartMessage message = (StartMessage) marshaller.unmarshallMessage(new ByteArrayInputStream(bytes));
+		assertEquals(message.isFreshConnections(), true);
+		assertEquals(message.isBidirectional(), false);
+	}
+
 	@Test
 	public void testStopMessage() throws MarshalException {
 		Message message = new StopMessage();
@@ -0,0 +1,111 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import netperf.protocol.DatagramMeasurement;
+import netperf.protocol.ProgressListener;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.TransferDatagramsAtFixedRate;
+
+@SuppressWarnings("javadoc")
+public class TransferDatagramsAtFixedRateTest {
+
+	@Test
+	public void testIdleTimeoutAtFastRate() {
+		assertEquals(new TransferDatagramsAtFixedRate(1000, 512, 1400).getIdleTimeout(), 2000L);
+	}
+
+	@Test
+	public void testIdleTimeoutAtSlowRate() {
+		// A datagram every 1.4 seconds.
+		assertEquals(new TransferDatagramsAtFixedRate(10000, 1, 1434).getIdleTimeout(), 5604L);
+		// The largest datagrams at the slowest rate, one every 64 seconds.
+		assertEquals(new TransferDatagramsAtFixedRate(10000, 1,
+				TransferDatagramsAtFixedRate.MAX_DATAGRAM_SIZE).getIdleTimeout(), 255888L);
+	}
+
+	private static ProgressListener collect(final List<SpeedMeasurement> intervals) {
+		return new ProgressListener() {
+			@Override
+			public void progress(SpeedMeasurement interval) {
+				intervals.add(interval);
+			}
+		};
+	}
+
+	@Test
+	public void testProgress() throws Exception {
+		final TransferDatagramsAtFixedRate command = new TransferDatagramsAtFixedRate(500, 256, 1024);
+		command.setSampleInterval(100);
+		final List<SpeedMeasurement> read = new ArrayList<>();
+		List<SpeedMeasurement> sent = new ArrayList<>();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (ServerSocketChannel server = ServerSocketChannel.open()
+				.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+				SocketChannel reader = server.accept()) {
+			Future<SpeedMeasurement> received = executor.submit(new Callable<SpeedMeasurement>() {
+				@Override
+				public SpeedMeasurement call() throws Exception {
+					return command.executeRead(reader, collect(read));
+				}
+			});
+			command.executeSend(sender, collect(sent));
+			DatagramMeasurement measurement = (DatagramMeasurement) received.get();
+			assertTrue(sent.size() >= 4);
+			assertTrue(read.size() >= 4);
+			long datagrams = 0;
+			long lost = 0;
+			for (SpeedMeasurement interval : read) {
+				DatagramMeasurement datagramInterval = (DatagramMeasurement) interval;
+				assertEquals(datagramInterval.getBytes(), datagramInterval.getReceived() * 1024);
+				datagrams += datagramInterval.getReceived();
+				lost += datagramInterval.getLost();
+			}
+			assertEquals(datagrams, measurement.getReceived());
+			assertTrue(lost <= measurement.getLost() + measurement.getOutOfOrder());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
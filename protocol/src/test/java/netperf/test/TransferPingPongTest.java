@@ -0,0 +1,81 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Protocol
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import netperf.protocol.LatencyMeasurement;
+import netperf.protocol.ProgressListener;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.TransferPingPong;
+
+@SuppressWarnings("javadoc")
+public class TransferPingPongTest {
+
+	/**
+	 * Connections outlive the measurement when pooled, so they keep the delay
+	 * they had before it.
+	 */
+	@Test
+	public void testNoDelayRestored() throws Exception {
+		final TransferPingPong command = new TransferPingPong(10, 0);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (ServerSocketChannel server = ServerSocketChannel.open()
+				.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+				SocketChannel echoer = server.accept()) {
+			sender.setOption(StandardSocketOptions.TCP_NODELAY, false);
+			echoer.setOption(StandardSocketOptions.TCP_NODELAY, false);
+			Future<SpeedMeasurement> echoed = executor.submit(new Callable<SpeedMeasurement>() {
+				@Override
+				public SpeedMeasurement call() throws Exception {
+					return command.executeRead(echoer, ProgressListener.NONE);
+				}
+			});
+			LatencyMeasurement sent = (LatencyMeasurement) command.executeSend(sender, ProgressListener.NONE);
+			echoed.get();
+			assertEquals(sent.getHistogram().getTotal(), 10L);
+			assertFalse(sender.getOption(StandardSocketOptions.TCP_NODELAY));
+			assertFalse(echoer.getOption(StandardSocketOptions.TCP_NODELAY));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
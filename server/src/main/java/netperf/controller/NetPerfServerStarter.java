@@ -26,6 +26,16 @@ package netperf.controller;
  * #L%
  */
 
+import java.io.IOException;
+
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.TransferCommand;
+import netperf.protocol.TransferDuringFixedTime;
+import netperf.protocol.TransferWithZeroCopy;
+import netperf.server.ConnectionPool;
+import netperf.server.ExecutionMode;
+import netperf.server.HostCalibration;
+import netperf.server.MeasurementScheduler;
 import netperf.server.NetPerfServer;
 
 import org.apache.commons.logging.Log;
@@ -38,16 +48,58 @@ import org.apache.commons.logging.impl.SimpleLog;
  */
 public class NetPerfServerStarter {
 
+	private static final int DEFAULT_BOUND = 256;
+
 	/**
 	 * System entry point
 	 * 
 	 * @param args
+	 *            <code>[port] [--event-loops N] [--workers platform|virtual|N] [--calibrate]
+	 *            [--metrics-port N] [--pool idle-per-target] [--pool-idle seconds]
+	 *            [--max-concurrent N] [--scheduling fifo|priority] [--admission-timeout seconds]</code>
 	 */
 	public static void main(String[] args) {
 		short port = 1990;
-		if (args.length > 0) {
+		int eventLoops = 0;
+		ExecutionMode mode = ExecutionMode.PLATFORM;
+		int bound = DEFAULT_BOUND;
+		boolean calibrate = false;
+		int metricsPort = 0;
+		int pool = ConnectionPool.DEFAULT_MAX_IDLE_PER_TARGET;
+		long poolIdleMillis = ConnectionPool.DEFAULT_IDLE_MILLIS;
+		int maxConcurrent = MeasurementScheduler.DEFAULT_MAX_CONCURRENT;
+		MeasurementScheduler.Ordering ordering = MeasurementScheduler.Ordering.PRIORITY;
+		long admissionTimeout = MeasurementScheduler.DEFAULT_ADMISSION_TIMEOUT;
+		for (int i = 0; i < args.length; i++) {
 			try {
-				port = Short.parseShort(args[0]);
+				if ("--event-loops".equals(args[i]) && i + 1 < args.length) {
+					eventLoops = Integer.parseInt(args[++i]);
+				} else if ("--metrics-port".equals(args[i]) && i + 1 < args.length) {
+					metricsPort = Integer.parseInt(args[++i]);
+				} else if ("--pool".equals(args[i]) && i + 1 < args.length) {
+					pool = Integer.parseInt(args[++i]);
+				} else if ("--pool-idle".equals(args[i]) && i + 1 < args.length) {
+					poolIdleMillis = Long.parseLong(args[++i]) * 1000;
+				} else if ("--max-concurrent".equals(args[i]) && i + 1 < args.length) {
+					maxConcurrent = Integer.parseInt(args[++i]);
+				} else if ("--scheduling".equals(args[i]) && i + 1 < args.length) {
+					ordering = "fifo".equals(args[++i]) ? MeasurementScheduler.Ordering.FIFO
+							: MeasurementScheduler.Ordering.PRIORITY;
+				} else if ("--admission-timeout".equals(args[i]) && i + 1 < args.length) {
+					admissionTimeout = Long.parseLong(args[++i]) * 1000;
+				} else if ("--calibrate".equals(args[i])) {
+					calibrate = true;
+				} else if ("--workers".equals(args[i]) && i + 1 < args.length) {
+					String workers = args[++i];
+					if ("virtual".equals(workers)) {
+						mode = ExecutionMode.VIRTUAL;
+					} else if (!"platform".equals(workers)) {
+						bound = Integer.parseInt(workers);
+						mode = ExecutionMode.BOUNDED;
+					}
+				} else {
+					port = Short.parseShort(args[i]);
+				}
 			} catch (NumberFormatException e) {
 			}
 		}
@@ -55,7 +107,50 @@ public class NetPerfServerStarter {
 		log.info("Listening at port: " + port);
 		NetPerfServer server = new NetPerfServer(port);
 		server.setLog(log);
+		log.info("Running connections and measurements on " + mode.toString().toLowerCase() + " threads");
+		server.setExecutionMode(mode, bound);
+		if (eventLoops > 0) {
+			log.info("Handling connections with " + eventLoops + " event loops");
+			server.setEventLoops(eventLoops);
+		}
+		server.setMetricsPort(metricsPort);
+		if (pool > 0) {
+			log.info("Keeping up to " + pool + " idle connections per target for " + poolIdleMillis / 1000 + " s");
+		}
+		server.getConnectionPool().setMaxIdlePerTarget(pool);
+		server.getConnectionPool().setIdleMillis(poolIdleMillis);
+		if (maxConcurrent > 0) {
+			log.info("Running up to " + maxConcurrent + " measurements per interface, the rest waiting in "
+					+ ordering.toString().toLowerCase() + " order for up to " + admissionTimeout / 1000 + " s");
+		} else {
+			log.info("Running measurements without admission control");
+		}
+		server.getScheduler().setMaxConcurrent(maxConcurrent);
+		server.getScheduler().setOrdering(ordering);
+		server.getScheduler().setAdmissionTimeout(admissionTimeout);
+		if (calibrate) {
+			calibrate(log);
+		}
 		server.start();
 	}
 
+	/**
+	 * Calibrate the default transfers at startup, and any other on demand.
+	 */
+	private static void calibrate(Log log) {
+		HostCalibration calibration = HostCalibration.shared();
+		calibration.setEnabled(true);
+		TransferCommand[] commands = { new TransferDuringFixedTime(HostCalibration.CALIBRATION_MILLIS),
+				new TransferWithZeroCopy(0) };
+		for (TransferCommand command : commands) {
+			try {
+				SpeedMeasurement[] ceiling = calibration.calibrate(command);
+				log.info("Loopback ceiling for " + command.getClass().getSimpleName() + " in blocks of "
+						+ command.getBlockSize() + " bytes: send " + ceiling[0] + " receive " + ceiling[1]);
+			} catch (IOException e) {
+				log.error("Could not calibrate " + command, e);
+			}
+		}
+	}
+
 }
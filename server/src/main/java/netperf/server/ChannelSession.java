@@ -0,0 +1,343 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.apache.commons.logging.Log;
+
+import netperf.protocol.BufferPool;
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.FrameDecoder;
+import netperf.protocol.MeasurementMessage;
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.MessageVisitor;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.StartMessage;
+import netperf.protocol.StopMessage;
+
+/**
+ * The non-blocking counterpart of {@link ServerThread}: the state of one
+ * incoming connection handled by an {@link EventLoop}.
+ *
+ * Frames are read without blocking, and never past the end of the current
+ * frame, so when a {@link MeasurementMessage} arrives the data following it is
+ * still unread in the socket. The connection is then taken off the selector,
+ * switched to blocking mode and handed to a measurement worker executing
+ * {@link MeasureSpeed#executeAsTarget(MeasurementMessage)}, after which it is
+ * registered again.
+ *
+ * Progress of the measurements is dropped while
+ * {@link ServerThread#PROGRESS_BACKLOG} frames are waiting to be written, so a
+ * slow reader never holds up a transfer.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class ChannelSession implements MessageVisitor, ControlConnection {
+
+	private SocketChannel channel;
+	private EventLoop loop;
+	private SelectionKey key;
+	private FrameDecoder decoder;
+	private Queue<ByteBuffer> pending;
+	private MessageMarshaller marshaller;
+	private Log log;
+
+	/**
+	 * @param channel
+	 *            the incoming connection.
+	 * @param loop
+	 *            the loop handling this connection.
+	 */
+	public ChannelSession(SocketChannel channel, EventLoop loop) {
+		this.channel = channel;
+		this.loop = loop;
+		this.pending = new LinkedList<>();
+		this.marshaller = new MessageMarshaller();
+		this.decoder = new FrameDecoder(marshaller, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+		this.log = loop.getServer().getLog();
+		loop.getServer().getMetrics().connectionOpened();
+	}
+
+	@Override
+	public void acceptDisconnectMessage(DisconnectMessage disconnectMessage) {
+		log.info("Closing connection from" + channel.socket().getRemoteSocketAddress());
+		close();
+		log.info("Closed connection from" + channel.socket().getRemoteSocketAddress());
+	}
+
+	@Override
+	public void acceptMeasurementMessage(final MeasurementMessage dataMessage) {
+		log.info("Received: " + dataMessage + " from: " + channel.socket().getRemoteSocketAddress());
+		key.cancel();
+		key = null;
+		// The key is deregistered once the loop selects again, only then the
+		// channel can be switched to blocking mode.
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(true);
+				} catch (IOException e) {
+					log.error("Error switching connection to blocking mode", e);
+					close();
+					return;
+				}
+				loop.getServer().execute(new Runnable() {
+					@Override
+					public void run() {
+						measureAsTarget(dataMessage);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void acceptProgressMessage(ProgressMessage progressMessage) {
+		log.warn("Unexpected " + progressMessage);
+	}
+
+	@Override
+	public void acceptResultMessage(ResultMessage resultMessage) {
+		log.warn("Unexpected " + resultMessage);
+	}
+
+	@Override
+	public void acceptStartMessage(StartMessage startMessage) {
+		log.info("Received " + startMessage);
+		for (InetSocketAddress address : startMessage.getAddresses()) {
+			log.info("Measuring against " + address.toString());
+			loop.getServer().getScheduler().submit(address, startMessage.getPriority(),
+					new OutboundMeasurement(address, startMessage, this, log));
+		}
+	}
+
+	@Override
+	public void acceptStopMessage(StopMessage stopMessage) {
+		log.info("Stopping server");
+		close();
+		loop.getServer().stop();
+	}
+
+	/**
+	 * Handle the events the loop selected for this connection.
+	 *
+	 * @param selected
+	 *            the key of this connection.
+	 */
+	void handle(SelectionKey selected) {
+		try {
+			if (selected.isValid() && selected.isWritable()) {
+				flush();
+			}
+			if (selected.isValid() && selected.isReadable()) {
+				read();
+			}
+		} catch (IOException e) {
+			loop.getServer().getMetrics().connectionError();
+			log.error("Error handling connection", e);
+			close();
+		} catch (RuntimeException e) {
+			// A peer sending garbage only loses its own connection, the loop
+			// keeps serving the others.
+			loop.getServer().getMetrics().protocolError();
+			log.error("Error handling message", e);
+			close();
+		}
+	}
+
+	@Override
+	public NetPerfServer getServer() {
+		return loop.getServer();
+	}
+
+	@Override
+	public void progress(final ProgressMessage progress) {
+		final ByteBuffer bytes;
+		try {
+			bytes = marshaller.marshallMessage(progress, BufferPool.shared());
+		} catch (MarshalException e) {
+			log.error("Error marshalling progress", e);
+			return;
+		}
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.size() >= ServerThread.PROGRESS_BACKLOG) {
+					log.debug("Dropped " + progress);
+					BufferPool.shared().release(bytes);
+					return;
+				}
+				pending.add(bytes);
+				try {
+					flush();
+				} catch (IOException e) {
+					log.error("Error sending progress", e);
+					close();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void respond(ResultMessage result) throws MarshalException {
+		final ByteBuffer bytes = marshaller.marshallMessage(result, BufferPool.shared());
+		log.info("Sending " + result.getSpeeds().length + " speeds back");
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				pending.add(bytes);
+				try {
+					flush();
+				} catch (IOException e) {
+					log.error("Error sending speeds", e);
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Register the connection in the loop's selector, must be invoked from the
+	 * loop's thread.
+	 *
+	 * @throws IOException
+	 */
+	void resume() throws IOException {
+		channel.configureBlocking(false);
+		key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		flush();
+	}
+
+	private void close() {
+		if (!channel.isOpen()) {
+			return;
+		}
+		loop.getServer().getMetrics().connectionClosed();
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.error("Error closing connection", e);
+		}
+		for (ByteBuffer bytes; (bytes = pending.poll()) != null;) {
+			BufferPool.shared().release(bytes);
+		}
+	}
+
+	private void flush() throws IOException {
+		if (key == null) {
+			// Handed over to a measurement, will flush when resumed.
+			return;
+		}
+		while (!pending.isEmpty()) {
+			ByteBuffer bytes = pending.peek();
+			channel.write(bytes);
+			if (bytes.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			BufferPool.shared().release(pending.poll());
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void measureAsTarget(MeasurementMessage message) {
+		boolean measured = false;
+		try {
+			MeasurementScheduler.Admission admission = loop.getServer().getScheduler().admitTarget(channel);
+			try {
+				new MeasureSpeed(channel, log, loop.getServer().getMetrics(), loop.getServer().getStreamExecutor())
+						.executeAsTarget(message);
+				measured = true;
+			} finally {
+				admission.release();
+			}
+		} catch (IOException | RuntimeException e) {
+			// Only this connection is lost, a pooled one may well have been
+			// dropped by its peer.
+			loop.getServer().getMetrics().connectionError();
+			log.error("Error executing MeasureSpeedCommand asTarget", e);
+		}
+		final boolean resuming = measured;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!resuming) {
+					close();
+					return;
+				}
+				try {
+					resume();
+				} catch (IOException e) {
+					log.error("Error registering connection", e);
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read until the socket has no more data, dispatching every complete
+	 * frame. Stops early when a message hands the connection over.
+	 *
+	 * @throws IOException
+	 */
+	private void read() throws IOException {
+		while (key != null) {
+			Message message;
+			try {
+				message = decoder.nextMessage(channel);
+			} catch (MarshalException e) {
+				loop.getServer().getMetrics().protocolError();
+				log.error("Error reading message", e);
+				continue;
+			}
+			if (message == null) {
+				if (decoder.isClosed()) {
+					log.info("Connection closed by " + channel.socket().getRemoteSocketAddress());
+					close();
+				}
+				return;
+			}
+			message.accept(this);
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.impl.NoOpLog;
+
+import netperf.protocol.BufferPool;
+import netperf.protocol.DisconnectMessage;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.SocketSettings;
+
+/**
+ * Measurement connections to other servers kept open between measurements, so
+ * measuring the same target again skips the connection setup, slow start and
+ * the target spawning a {@link ServerThread}.
+ *
+ * Idle connections are kept by target address and {@link SocketSettings},
+ * since buffer sizes are agreed on when connecting, up to
+ * {@link #getMaxIdlePerTarget()} for each target, and closed after being idle
+ * for {@link #getIdleMillis()}. A connection closed by the other side while
+ * idle is noticed and dropped when acquired.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class ConnectionPool {
+
+	/**
+	 * The amount of idle connections kept for each target unless specified.
+	 */
+	public static final int DEFAULT_MAX_IDLE_PER_TARGET = 4;
+	/**
+	 * How long a connection is kept idle unless specified, longer than the
+	 * usual period of a scheduled mesh.
+	 */
+	public static final long DEFAULT_IDLE_MILLIS = 10 * 60 * 1000;
+
+	private static class Idle {
+		private SocketChannel channel;
+		private SocketSettings settings;
+		private long since;
+
+		private Idle(SocketChannel channel, SocketSettings settings) {
+			this.channel = channel;
+			this.settings = settings;
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+	private Map<InetSocketAddress, Deque<Idle>> idle;
+	private int maxIdlePerTarget;
+	private long idleMillis;
+	private Log log;
+	private MessageMarshaller marshaller;
+	private ServerMetrics metrics;
+	private Thread reaper;
+
+	/**
+	 * @param metrics
+	 *            where reused and idle connections are counted
+	 */
+	public ConnectionPool(ServerMetrics metrics) {
+		this.idle = new HashMap<>();
+		this.maxIdlePerTarget = DEFAULT_MAX_IDLE_PER_TARGET;
+		this.idleMillis = DEFAULT_IDLE_MILLIS;
+		this.log = new NoOpLog();
+		this.marshaller = new MessageMarshaller();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param address
+	 *            the server to connect to
+	 * @param settings
+	 *            the options of the connection
+	 * @param fresh
+	 *            whether to open a new connection even if an idle one is
+	 *            available
+	 * @return a connected channel in blocking mode, to be given back through
+	 *         {@link #release(InetSocketAddress, SocketSettings, SocketChannel)}
+	 *         once the measurement completes, or closed if it failed
+	 * @throws IOException
+	 */
+	public SocketChannel acquire(InetSocketAddress address, SocketSettings settings, boolean fresh)
+			throws IOException {
+		SocketChannel channel = fresh ? null : reuse(address, settings);
+		return channel != null ? channel : connect(address, settings);
+	}
+
+	/**
+	 * @param address
+	 *            the server connected to
+	 * @param settings
+	 *            the options the connection was acquired with
+	 * @return an idle connection that looks alive, in blocking mode, null if
+	 *         none. The other side may still have closed it in the meantime
+	 * @throws IOException
+	 */
+	public SocketChannel reuse(InetSocketAddress address, SocketSettings settings) throws IOException {
+		SocketChannel channel;
+		while ((channel = poll(address, settings)) != null) {
+			if (isAlive(channel)) {
+				metrics.connectionReused();
+				log.info("Reusing connection to " + address + " from port " + channel.socket().getLocalPort());
+				return channel;
+			}
+			log.info("Dropping connection to " + address + " closed while idle");
+			channel.close();
+		}
+		return null;
+	}
+
+	/**
+	 * @param address
+	 *            the server to connect to
+	 * @param settings
+	 *            the options of the connection
+	 * @return a new connected channel in blocking mode
+	 * @throws IOException
+	 */
+	public SocketChannel connect(InetSocketAddress address, SocketSettings settings) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			// Buffer sizes take part in the handshake, so set them before it.
+			MeasureSpeed.apply(settings, channel, log);
+			channel.connect(address);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Keep a connection for the next measurement against the same target,
+	 * closing it if there are enough idle ones already.
+	 *
+	 * @param address
+	 *            the server the channel is connected to
+	 * @param settings
+	 *            the options the channel was acquired with
+	 * @param channel
+	 *            as returned by
+	 *            {@link #acquire(InetSocketAddress, SocketSettings, boolean)},
+	 *            after a measurement that completed
+	 */
+	public void release(InetSocketAddress address, SocketSettings settings, SocketChannel channel) {
+		synchronized (this) {
+			Deque<Idle> connections = idle.get(address);
+			if (connections == null) {
+				connections = new ArrayDeque<>();
+				idle.put(address, connections);
+			}
+			if (connections.size() < maxIdlePerTarget) {
+				// Most recently used first, so the oldest ones go idle and are
+				// evicted when there are more than needed.
+				connections.push(new Idle(channel, settings));
+				metrics.connectionPooled();
+				startReaper();
+				return;
+			}
+		}
+		disconnect(channel);
+	}
+
+	/**
+	 * Close every connection idle for longer than {@link #getIdleMillis()}.
+	 */
+	public void evict() {
+		long oldest = System.currentTimeMillis() - idleMillis;
+		Deque<SocketChannel> expired = new ArrayDeque<>();
+		synchronized (this) {
+			for (Iterator<Deque<Idle>> targets = idle.values().iterator(); targets.hasNext();) {
+				Deque<Idle> connections = targets.next();
+				for (Iterator<Idle> i = connections.iterator(); i.hasNext();) {
+					Idle connection = i.next();
+					if (connection.since < oldest) {
+						i.remove();
+						metrics.connectionUnpooled();
+						expired.add(connection.channel);
+					}
+				}
+				if (connections.isEmpty()) {
+					targets.remove();
+				}
+			}
+		}
+		for (SocketChannel channel : expired) {
+			log.info("Closing connection idle for over " + idleMillis + " ms to "
+					+ channel.socket().getRemoteSocketAddress());
+			disconnect(channel);
+		}
+	}
+
+	/**
+	 * @return how long a connection is kept idle before closing it
+	 */
+	public long getIdleMillis() {
+		return idleMillis;
+	}
+
+	/**
+	 * @param idleMillis
+	 *            how long a connection is kept idle before closing it
+	 */
+	public void setIdleMillis(long idleMillis) {
+		if (idleMillis < 1) {
+			throw new IllegalArgumentException("Idle time must be at least 1 ms");
+		}
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * @return the amount of idle connections kept for each target
+	 */
+	public int getMaxIdlePerTarget() {
+		return maxIdlePerTarget;
+	}
+
+	/**
+	 * @param maxIdlePerTarget
+	 *            the amount of idle connections kept for each target, zero to
+	 *            close every connection after its measurement
+	 */
+	public void setMaxIdlePerTarget(int maxIdlePerTarget) {
+		if (maxIdlePerTarget < 0) {
+			throw new IllegalArgumentException("Idle connections can not be negative");
+		}
+		this.maxIdlePerTarget = maxIdlePerTarget;
+	}
+
+	/**
+	 * @param log
+	 *            the logger to use
+	 */
+	public void setLog(Log log) {
+		this.log = log;
+	}
+
+	/**
+	 * @return the most recently released connection to the address with the
+	 *         same settings, null if none
+	 */
+	private synchronized SocketChannel poll(InetSocketAddress address, SocketSettings settings) {
+		Deque<Idle> connections = idle.get(address);
+		if (connections == null) {
+			return null;
+		}
+		for (Iterator<Idle> i = connections.iterator(); i.hasNext();) {
+			Idle connection = i.next();
+			if (connection.settings.equals(settings)) {
+				i.remove();
+				metrics.connectionUnpooled();
+				return connection.channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * An idle connection has nothing to read, unless the other side closed
+	 * it.
+	 */
+	private static boolean isAlive(SocketChannel channel) {
+		if (!channel.isOpen()) {
+			return false;
+		}
+		try {
+			channel.configureBlocking(false);
+			try {
+				return channel.read(ByteBuffer.allocate(1)) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Let the other side know before closing, so it frees the connection
+	 * right away.
+	 */
+	private void disconnect(SocketChannel channel) {
+		try {
+			ByteBuffer disconnect = marshaller.marshallMessage(new DisconnectMessage(), BufferPool.shared());
+			try {
+				marshaller.write(channel, disconnect);
+			} finally {
+				BufferPool.shared().release(disconnect);
+			}
+		} catch (IOException | MarshalException e) {
+			log.debug("Error disconnecting from " + channel.socket().getRemoteSocketAddress(), e);
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Error closing connection", e);
+		}
+	}
+
+	private void startReaper() {
+		if (reaper != null) {
+			return;
+		}
+		reaper = new Thread("Connection pool reaper") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Math.max(idleMillis / 4, 1));
+					} catch (InterruptedException e) {
+						return;
+					}
+					evict();
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+}
@@ -0,0 +1,72 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.StartMessage;
+
+/**
+ * The connection a {@link StartMessage} arrived through, where the measured
+ * speeds are sent back.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public interface ControlConnection {
+
+	/**
+	 * @return the server serving this connection
+	 */
+	NetPerfServer getServer();
+
+	/**
+	 * Send the measured speeds to the one who sent the {@link StartMessage}
+	 *
+	 * @param result
+	 *            the speeds indexed by: {@link MeasureSpeed#HIS_READ_SPEED},
+	 *            {@link MeasureSpeed#HIS_WRITE_SPEED},
+	 *            {@link MeasureSpeed#MY_READ_SPEED} and
+	 *            {@link MeasureSpeed#MY_WRITE_SPEED}, with the options each
+	 *            end was granted
+	 * @throws IOException
+	 * @throws MarshalException
+	 */
+	void respond(ResultMessage result) throws IOException, MarshalException;
+
+	/**
+	 * Send the progress of a running measurement to the one who sent the
+	 * {@link StartMessage}, without blocking: when the connection falls
+	 * behind the message is dropped.
+	 *
+	 * @param progress
+	 *            the speed of an interval that just elapsed
+	 */
+	void progress(ProgressMessage progress);
+}
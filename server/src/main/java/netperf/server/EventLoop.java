@@ -0,0 +1,160 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single reactor thread multiplexing many control connections over one
+ * {@link Selector}. Every {@link ChannelSession} registered here is only
+ * touched from this thread; other threads hand work over through
+ * {@link #execute(Runnable)}.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class EventLoop extends Thread {
+
+	private NetPerfServer server;
+	private Selector selector;
+	private Queue<Runnable> tasks;
+
+	/**
+	 * @param server
+	 *            the server which this loop belongs to.
+	 * @param index
+	 *            used to name the thread.
+	 * @throws IOException
+	 *             the selector could not be opened.
+	 */
+	public EventLoop(NetPerfServer server, int index) throws IOException {
+		super("NetPerf event loop " + index);
+		this.server = server;
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		setDaemon(true);
+	}
+
+	/**
+	 * Run the task on this loop's thread, as soon as the current selection
+	 * finishes. Channels cancelled before this call are already deregistered
+	 * when the task runs.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the selector of this loop, only to be used from this loop's
+	 *         thread.
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return the server
+	 */
+	public NetPerfServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Start handling the messages arriving through an accepted connection.
+	 *
+	 * @param channel
+	 *            the incoming connection.
+	 */
+	public void register(final SocketChannel channel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					new ChannelSession(channel, EventLoop.this).resume();
+				} catch (IOException e) {
+					server.getLog().error("Error registering connection", e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						((ChannelSession) key.attachment()).handle(key);
+					} catch (RuntimeException e) {
+						server.getLog().error("Error handling connection", e);
+						key.cancel();
+						close(key);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			server.getLog().error("Event loop stopped", e);
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Already given up on.
+		}
+	}
+
+	/**
+	 * Run the tasks handed over, a failing task is logged so the others and
+	 * every connection of this loop keep going.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				server.getLog().error("Error running task on the event loop", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * How {@link NetPerfServer} runs connections and measurements.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public enum ExecutionMode {
+	/**
+	 * A platform thread for each connection and each measurement.
+	 */
+	PLATFORM,
+	/**
+	 * A virtual thread for each connection and each measurement, falls back to
+	 * {@link #BOUNDED} when the JVM does not support virtual threads.
+	 */
+	VIRTUAL,
+	/**
+	 * A fixed amount of platform threads, extra connections and measurements
+	 * wait until a thread is free. The extra streams of a parallel
+	 * measurement, and the reader of each stream measuring both directions at
+	 * once, run outside the bound, see {@link #newStreamExecutor()}.
+	 */
+	BOUNDED;
+
+	/**
+	 * @param bound
+	 *            the amount of threads in {@link #BOUNDED} mode.
+	 * @param log
+	 *            where to report falling back from {@link #VIRTUAL}.
+	 * @return a new executor running tasks in this mode.
+	 */
+	public ExecutorService newExecutor(int bound, Log log) {
+		switch (this) {
+		case VIRTUAL:
+			ExecutorService virtual = newVirtualExecutor();
+			if (virtual != null) {
+				return virtual;
+			}
+			log.warn("Virtual threads not supported, using " + bound + " platform threads");
+			return Executors.newFixedThreadPool(bound);
+		case BOUNDED:
+			return Executors.newFixedThreadPool(bound);
+		default:
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Tasks a measurement waits for, its extra streams and readers, are never
+	 * bounded: queued behind the measurements holding every bounded thread
+	 * they would never run, and those measurements never finish.
+	 * 
+	 * @return a new executor running every task at once, on virtual threads
+	 *         in {@link #VIRTUAL} mode when supported.
+	 */
+	public ExecutorService newStreamExecutor() {
+		ExecutorService virtual = this == VIRTUAL ? newVirtualExecutor() : null;
+		return virtual != null ? virtual : Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * @return an executor starting a virtual thread for each task, null when
+	 *         the JVM does not support them.
+	 */
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			// Looked up reflectively, virtual threads are not available on
+			// the Java version this is compiled against.
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			return null;
+		}
+	}
+}
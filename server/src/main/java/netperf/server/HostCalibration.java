@@ -0,0 +1,212 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.TransferCommand;
+import netperf.protocol.TransferDuringFixedTime;
+import netperf.protocol.TransferWithFixedSize;
+import netperf.protocol.TransferWithZeroCopy;
+
+/**
+ * The throughput this host sustains by itself: a command is run between two
+ * endpoints of the same JVM over loopback, where the network plays no part,
+ * and the send and receive speeds are kept as ceilings for later
+ * measurements of the same kind. Measurements reaching
+ * {@link #HOST_BOUND_RATIO} of a ceiling are flagged
+ * {@link SpeedMeasurement#isHostBound()}.
+ *
+ * Ceilings depend on how data is moved and in which block size, so they are
+ * kept per transfer kind and block size. Fixed size and fixed time transfers
+ * share one, calibrated during {@link #CALIBRATION_MILLIS}. Datagram and ping
+ * pong transfers are not limited by throughput and never flagged.
+ *
+ * The host is shared by every server in the JVM, so is the calibration.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class HostCalibration {
+
+	/**
+	 * The fraction of a ceiling from which a speed is considered host bound.
+	 */
+	public static final float HOST_BOUND_RATIO = 0.9f;
+	/**
+	 * How long calibrations of fixed size and fixed time transfers last.
+	 */
+	public static final long CALIBRATION_MILLIS = 500;
+	private static final long CALIBRATION_KILOBYTES = 512 * 1024;
+	private static final HostCalibration shared = new HostCalibration();
+
+	/**
+	 * @return the calibration shared by every server in the JVM
+	 */
+	public static HostCalibration shared() {
+		return shared;
+	}
+
+	private volatile boolean enabled;
+	private Map<String, SpeedMeasurement[]> ceilings;
+
+	private HostCalibration() {
+		ceilings = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Run the loopback calibration for the command's kind and block size, if
+	 * it was not run before.
+	 *
+	 * @param command
+	 * @return the send speed followed by the receive speed, null if the
+	 *         command is not limited by throughput
+	 * @throws IOException
+	 */
+	public synchronized SpeedMeasurement[] calibrate(TransferCommand command) throws IOException {
+		TransferCommand calibration = calibration(command);
+		if (calibration == null) {
+			return null;
+		}
+		SpeedMeasurement[] ceiling = ceilings.get(key(command));
+		if (ceiling == null) {
+			ceiling = measure(calibration);
+			ceilings.put(key(command), ceiling);
+		}
+		return ceiling;
+	}
+
+	/**
+	 * Flag the speed as host bound if it reached {@link #HOST_BOUND_RATIO} of
+	 * the ceiling calibrated for the command, leaving it untouched when no
+	 * calibration was run.
+	 *
+	 * @param command
+	 *            the command that measured the speed
+	 * @param speed
+	 * @param sending
+	 *            whether the speed was measured sending or receiving
+	 * @return the given speed
+	 */
+	public SpeedMeasurement flag(TransferCommand command, SpeedMeasurement speed, boolean sending) {
+		SpeedMeasurement[] ceiling = calibration(command) == null ? null : ceilings.get(key(command));
+		if (ceiling != null) {
+			speed.setHostBound(speed.getSpeed() >= HOST_BOUND_RATIO * ceiling[sending ? 0 : 1].getSpeed());
+		}
+		return speed;
+	}
+
+	/**
+	 * @param command
+	 * @return the send speed followed by the receive speed, null if not
+	 *         calibrated
+	 */
+	public SpeedMeasurement[] getCeiling(TransferCommand command) {
+		return calibration(command) == null ? null : ceilings.get(key(command));
+	}
+
+	/**
+	 * @param command
+	 * @return whether the command is limited by throughput, so it can be
+	 *         calibrated
+	 */
+	public boolean canCalibrate(TransferCommand command) {
+		return calibration(command) != null;
+	}
+
+	/**
+	 * @return whether measurements calibrate the host on demand
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *            whether measurements calibrate the host on demand, before
+	 *            the first measurement of each transfer kind and block size
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	private static TransferCommand calibration(TransferCommand command) {
+		TransferCommand calibration;
+		if (command instanceof TransferWithZeroCopy) {
+			calibration = new TransferWithZeroCopy(CALIBRATION_KILOBYTES, command.getBlockSize());
+		} else if (command instanceof TransferDuringFixedTime || command instanceof TransferWithFixedSize) {
+			calibration = new TransferDuringFixedTime(CALIBRATION_MILLIS, command.getBlockSize());
+		} else {
+			return null;
+		}
+		calibration.setSampleInterval(0);
+		return calibration;
+	}
+
+	private static String key(TransferCommand command) {
+		return calibration(command).getClass().getSimpleName() + " " + command.getBlockSize();
+	}
+
+	private static SpeedMeasurement[] measure(final TransferCommand calibration) throws IOException {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			try (SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+					final SocketChannel receiver = server.accept()) {
+				final SpeedMeasurement[] ceiling = new SpeedMeasurement[2];
+				final IOException[] failure = new IOException[1];
+				Thread reader = new Thread("Calibrating " + calibration) {
+					@Override
+					public void run() {
+						try {
+							ceiling[1] = calibration.executeRead(receiver);
+						} catch (IOException e) {
+							failure[0] = e;
+						}
+					}
+				};
+				reader.start();
+				ceiling[0] = calibration.executeSend(sender);
+				try {
+					reader.join();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while calibrating");
+				}
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+				return ceiling;
+			}
+		}
+	}
+}
@@ -27,11 +27,21 @@ package netperf.server;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
+import netperf.protocol.BufferPool;
 import netperf.protocol.MeasurementMessage;
 import netperf.protocol.MessageMarshaller;
+import netperf.protocol.ProgressListener;
+import netperf.protocol.SocketSettings;
 import netperf.protocol.SpeedMeasurement;
 import netperf.protocol.TransferCommand;
 import netperf.protocol.MessageMarshaller.MarshalException;
@@ -49,23 +59,65 @@ public class MeasureSpeed {
 	static final int MY_READ_SPEED = 2;
 	static final int MY_WRITE_SPEED = 0;
 	private Log log;
-	private InputStream inputStream;
-	private OutputStream outputStream;
+	private ByteChannel channel;
 	private MessageMarshaller marshaller;
+	private HostCalibration calibration;
+	private ServerMetrics metrics;
+	private Executor executor;
+	private SocketSettings granted;
+	private SocketSettings peerGranted;
+	private long peerQueueMillis;
+	private boolean accepted;
 
 	/**
-	 * @param inputStream
-	 *            the stream to send messages to
-	 * @param outputStream
-	 *            the stream to read messages from
+	 * @param channel
+	 *            the connection to measure, in blocking mode
 	 * @param log
 	 *            the logger to use
 	 */
-	public MeasureSpeed(InputStream inputStream, OutputStream outputStream, Log log) {
-		this.inputStream = inputStream;
-		this.outputStream = outputStream;
+	public MeasureSpeed(ByteChannel channel, Log log) {
+		this(channel, log, new ServerMetrics());
+	}
+
+	/**
+	 * @param channel
+	 *            the connection to measure, in blocking mode
+	 * @param log
+	 *            the logger to use
+	 * @param metrics
+	 *            updated when each transfer and the measurement finish
+	 */
+	public MeasureSpeed(ByteChannel channel, Log log, ServerMetrics metrics) {
+		this(channel, log, metrics, new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				new Thread(task, "Reading").start();
+			}
+		});
+	}
+
+	/**
+	 * @param channel
+	 *            the connection to measure, in blocking mode
+	 * @param log
+	 *            the logger to use
+	 * @param metrics
+	 *            updated when each transfer and the measurement finish
+	 * @param executor
+	 *            where the reading side of a measurement in both directions
+	 *            at once runs while the current thread waits for it, so one
+	 *            never queueing behind the caller, usually
+	 *            {@link NetPerfServer#getStreamExecutor()}
+	 */
+	public MeasureSpeed(ByteChannel channel, Log log, ServerMetrics metrics, Executor executor) {
+		this.executor = executor;
+		this.channel = channel;
 		this.log = log;
 		this.marshaller = new MessageMarshaller();
+		this.calibration = HostCalibration.shared();
+		this.metrics = metrics;
+		this.granted = new SocketSettings();
+		this.peerGranted = new SocketSettings();
 	}
 
 	/**
@@ -82,19 +134,102 @@ public class MeasureSpeed {
 	 * @throws ClassNotFoundException
 	 */
 	public SpeedMeasurement[] executeAsSource(TransferCommand command) throws IOException, MarshalException {
+		return executeAsSource(command, 1);
+	}
+
+	/**
+	 * Execute as the side sends a {@link MeasurementMessage} initiating the
+	 * measurement, as one of several connections measuring at the same time.
+	 * 
+	 * The other side should execute {@link #executeAsTarget(TransferCommand) }
+	 * 
+	 * @param command
+	 *            the command to execute for the measurement.
+	 * @param parallelism
+	 *            the amount of connections measuring along with this one.
+	 * @return the measured speeds.
+	 * @throws MarshalException
+	 * @throws IOException
+	 */
+	public SpeedMeasurement[] executeAsSource(TransferCommand command, int parallelism)
+			throws IOException, MarshalException {
+		MeasurementMessage message = new MeasurementMessage(command);
+		message.setParallelism(parallelism);
+		return executeAsSource(message, ProgressListener.NONE, ProgressListener.NONE);
+	}
+
+	/**
+	 * Execute as the side sends a {@link MeasurementMessage} initiating the
+	 * measurement, reporting the progress of each transfer.
+	 * 
+	 * When the message is {@link MeasurementMessage#isBidirectional()} and
+	 * the command {@link TransferCommand#supportsFullDuplex()} both
+	 * directions are measured at once.
+	 * 
+	 * The other side should execute
+	 * {@link #executeAsTarget(MeasurementMessage)}
+	 * 
+	 * @param message
+	 *            the message to send, with the command to execute for the
+	 *            measurement.
+	 * @param writeProgress
+	 *            notified while sending.
+	 * @param readProgress
+	 *            notified while reading.
+	 * @return the measured speeds.
+	 * @throws MarshalException
+	 * @throws IOException
+	 */
+	public SpeedMeasurement[] executeAsSource(MeasurementMessage message, ProgressListener writeProgress,
+			ProgressListener readProgress) throws IOException, MarshalException {
+		long started = metrics.measurementStarted();
+		boolean failed = true;
+		try {
+			SpeedMeasurement[] speeds = measureAsSource(message, writeProgress, readProgress);
+			failed = false;
+			return speeds;
+		} finally {
+			metrics.measurementEnded(message.getCommand(), ServerMetrics.SOURCE, started, failed);
+		}
+	}
+
+	private SpeedMeasurement[] measureAsSource(MeasurementMessage message, ProgressListener writeProgress,
+			ProgressListener readProgress) throws IOException, MarshalException {
+		TransferCommand command = message.getCommand();
 		SpeedMeasurement[] speeds = new SpeedMeasurement[4];
-		outputStream.write(marshaller.marshallMessage(new MeasurementMessage(command)));
+		calibrate(command);
+		long requested = System.currentTimeMillis();
+		write(marshaller.marshallMessage(message, BufferPool.shared()));
+		granted = granted();
+		// The target answers once its scheduler admits the measurement.
+		peerGranted = marshaller.unmarshallSettings(channel);
+		peerQueueMillis = System.currentTimeMillis() - requested;
+		accepted = true;
+		log.info("Source granted " + granted + ", target granted " + peerGranted);
+		if (isFullDuplex(message)) {
+			log.info("Source Sending and Reading " + command);
+			SpeedMeasurement[] mine = executeFullDuplex(command, writeProgress, readProgress);
+			speeds[MY_WRITE_SPEED] = mine[0];
+			speeds[MY_READ_SPEED] = mine[1];
+			log.info("Source Write Speed " + speeds[MY_WRITE_SPEED] + " Read Speed " + speeds[MY_READ_SPEED]);
+			log.info("Source Awaiting Read and Write Speeds");
+			speeds[HIS_READ_SPEED] = getResponse();
+			speeds[HIS_WRITE_SPEED] = getResponse();
+			log.info("Source got Target Read Speed " + speeds[HIS_READ_SPEED] + " Write Speed "
+					+ speeds[HIS_WRITE_SPEED]);
+			return speeds;
+		}
 		log.info("Source Sending " + command);
-		speeds[MY_WRITE_SPEED] = command.executeSend(outputStream);
+		speeds[MY_WRITE_SPEED] = measured(command, command.executeSend(channel, writeProgress), true);
 		log.info("Source Write Speed " + speeds[MY_WRITE_SPEED]);
 		log.info("Source Awaiting Read Speed");
-		speeds[HIS_READ_SPEED] = getResponse(inputStream);
+		speeds[HIS_READ_SPEED] = getResponse();
 		log.info("Source got Target Read Speed " + speeds[HIS_READ_SPEED]);
 		log.info("Source Reading " + command);
-		speeds[MY_READ_SPEED] = command.executeRead(inputStream);
+		speeds[MY_READ_SPEED] = measured(command, command.executeRead(channel, readProgress), false);
 		log.info("Source Read Speed " + speeds[MY_READ_SPEED]);
 		log.info("Source Awaiting Write Speed");
-		speeds[HIS_WRITE_SPEED] = getResponse(inputStream);
+		speeds[HIS_WRITE_SPEED] = getResponse();
 		log.info("Source got Target Write Speed " + speeds[HIS_READ_SPEED]);
 		return speeds;
 	}
@@ -105,37 +240,210 @@ public class MeasureSpeed {
 	 * The other side should execute {@link #executeAsSource(TransferCommand) }
 	 * 
 	 * @param command
-	 * @param controlOutputStream
-	 * @param controlInputStream
 	 * @throws IOException
 	 */
 	public void executeAsTarget(TransferCommand command) throws IOException {
+		executeAsTarget(new MeasurementMessage(command));
+	}
+
+	/**
+	 * Execute as the side that receives a {@link MeasurementMessage}
+	 * 
+	 * The other side should execute
+	 * {@link #executeAsSource(MeasurementMessage, ProgressListener, ProgressListener)}
+	 * 
+	 * @param message
+	 *            the message received
+	 * @throws IOException
+	 */
+	public void executeAsTarget(MeasurementMessage message) throws IOException {
+		long started = metrics.measurementStarted();
+		boolean failed = true;
+		try {
+			measureAsTarget(message);
+			failed = false;
+		} finally {
+			metrics.measurementEnded(message.getCommand(), ServerMetrics.TARGET, started, failed);
+		}
+	}
+
+	private void measureAsTarget(MeasurementMessage message) throws IOException {
+		TransferCommand command = message.getCommand();
 		SpeedMeasurement response;
+		if (channel instanceof NetworkChannel) {
+			apply(message.getSettings(), (NetworkChannel) channel, log);
+		}
+		granted = granted();
+		write(marshaller.marshallSettings(granted, BufferPool.shared()));
+		if (isFullDuplex(message)) {
+			log.info("Target Sending and Reading " + command);
+			SpeedMeasurement[] mine = executeFullDuplex(command, ProgressListener.NONE, ProgressListener.NONE);
+			log.info("Target Sending Read and Send Speeds");
+			sendResponse(mine[1]);
+			sendResponse(mine[0]);
+			log.info("Target Sent Read Speed " + mine[1] + " Send Speed " + mine[0]);
+			log.info("Target Done");
+			return;
+		}
 		log.info("Target Reading " + command);
-		response = command.executeRead(inputStream);
+		response = measured(command, command.executeRead(channel), false);
 		log.info("Target Sending Read Speed");
-		sendResponse(outputStream, response);
+		sendResponse(response);
 		log.info("Target Sent Read Speed " + response);
 		log.info("Target Sending " + command);
-		response = command.executeSend(outputStream);
+		response = measured(command, command.executeSend(channel), true);
 		log.info("Target Sending Send Speed");
-		sendResponse(outputStream, response);
+		sendResponse(response);
 		log.info("Target Sent Send Speed " + response);
 		log.info("Target Done");
 	}
 
-	private SpeedMeasurement getResponse(InputStream inputStream) {
+	/**
+	 * Read on the executor while sending on the current thread, a socket
+	 * channel can be read and written concurrently.
+	 * 
+	 * @return the write speed followed by the read speed
+	 */
+	private SpeedMeasurement[] executeFullDuplex(final TransferCommand command, ProgressListener writeProgress,
+			final ProgressListener readProgress) throws IOException {
+		final SpeedMeasurement[] speeds = new SpeedMeasurement[2];
+		CompletableFuture<SpeedMeasurement> reader = CompletableFuture.supplyAsync(new Supplier<SpeedMeasurement>() {
+			@Override
+			public SpeedMeasurement get() {
+				try {
+					return command.executeRead(channel, readProgress);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, executor);
+		speeds[0] = command.executeSend(channel, writeProgress);
+		try {
+			speeds[1] = reader.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while reading");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Reading failed", e.getCause());
+		}
+		measured(command, speeds[0], true);
+		measured(command, speeds[1], false);
+		return speeds;
+	}
+
+	/**
+	 * Set the requested options of a measurement connection, an option the
+	 * system refuses is left as it was, the granted values tell.
+	 *
+	 * @param settings
+	 *            the requested options
+	 * @param channel
+	 *            the measurement connection
+	 * @param log
+	 *            where refused options are reported
+	 */
+	static void apply(SocketSettings settings, NetworkChannel channel, Log log) {
+		try {
+			settings.apply(channel);
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			log.warn("Could not apply " + settings + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the options this side's connection was granted, available once
+	 *         the measurement started
+	 */
+	public SocketSettings getGranted() {
+		return granted;
+	}
+
+	/**
+	 * @return the options the other side's connection was granted, available
+	 *         to the source once the measurement started
+	 */
+	public SocketSettings getPeerGranted() {
+		return peerGranted;
+	}
+
+	/**
+	 * @return milliseconds the source waited for the other side to admit the
+	 *         measurement, including a round trip, available once the
+	 *         measurement started
+	 */
+	public long getPeerQueueMillis() {
+		return peerQueueMillis;
+	}
+
+	/**
+	 * @return whether the other side answered the
+	 *         {@link #executeAsSource(MeasurementMessage, ProgressListener, ProgressListener)}
+	 *         request, so a failure came after the measurement started
+	 */
+	public boolean isAccepted() {
+		return accepted;
+	}
+
+	private SocketSettings granted() throws IOException {
+		if (channel instanceof NetworkChannel) {
+			return SocketSettings.granted((NetworkChannel) channel);
+		}
+		return new SocketSettings();
+	}
+
+	/**
+	 * Calibrate the host before the first measurement of the command's kind
+	 * and block size, while the peer is not transferring yet.
+	 */
+	private void calibrate(TransferCommand command) throws IOException {
+		if (calibration.isEnabled() && calibration.canCalibrate(command) && calibration.getCeiling(command) == null) {
+			log.info("Calibrating loopback ceiling for " + command);
+			SpeedMeasurement[] ceiling = calibration.calibrate(command);
+			log.info("Loopback ceiling send " + ceiling[0] + " receive " + ceiling[1]);
+		}
+	}
+
+	/**
+	 * Account for a transfer of this side once it finished.
+	 */
+	private SpeedMeasurement measured(TransferCommand command, SpeedMeasurement speed, boolean sending) {
+		if (sending) {
+			metrics.bytesSent(speed.getBytes());
+		} else {
+			metrics.bytesReceived(speed.getBytes());
+		}
+		return calibration.flag(command, speed, sending);
+	}
+
+	private boolean isFullDuplex(MeasurementMessage message) {
+		if (message.isBidirectional() && !message.getCommand().supportsFullDuplex()) {
+			log.warn(message.getCommand() + " does not support both directions at once, measuring one at a time");
+		}
+		return message.isBidirectional() && message.getCommand().supportsFullDuplex();
+	}
+
+	private SpeedMeasurement getResponse() throws IOException {
 		log.debug("Awaiting Response");
-		SpeedMeasurement readObject = marshaller.unmarshallSpeed(inputStream);
+		SpeedMeasurement readObject = marshaller.unmarshallSpeed(channel);
 		log.debug("Got Response");
 		return readObject;
 
 	}
 
-	private void sendResponse(OutputStream outputStream, SpeedMeasurement speed) throws IOException {
+	private void sendResponse(SpeedMeasurement speed) throws IOException {
 		log.debug("Sending Response");
-		outputStream.write(marshaller.marshallSpeed(speed));
+		write(marshaller.marshallSpeed(speed, BufferPool.shared()));
 		log.debug("Sent Response");
 	}
 
+	private void write(ByteBuffer frame) throws IOException {
+		try {
+			marshaller.write(channel, frame);
+		} finally {
+			BufferPool.shared().release(frame);
+		}
+	}
+
 }
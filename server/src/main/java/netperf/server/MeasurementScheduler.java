@@ -0,0 +1,435 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * Admits measurements one interface at a time, so measurements sharing a
+ * network interface do not skew each other's speeds.
+ *
+ * Each interface runs up to {@link #getMaxConcurrent()} measurements at once,
+ * the rest wait in line. Measurements this server starts, for a
+ * {@link netperf.protocol.StartMessage}, are queued without holding a thread
+ * and run on the server once admitted, in arrival order or by priority
+ * according to the {@link Ordering}. Measurements this server is the target
+ * of go first in line, since their source is already admitted and waiting.
+ *
+ * A target measurement from a host this interface is already measuring with
+ * joins that measurement instead of waiting, which covers the connections of
+ * a parallel measurement, a server measuring itself and two servers
+ * measuring each other at once. Target measurements from the same host
+ * waiting in line are admitted together, so the connections of a parallel
+ * measurement that arrived while the interface was busy still overlap.
+ * Longer cycles of servers waiting for each other are broken by admitting a
+ * target measurement anyway after {@link #getAdmissionTimeout()}.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class MeasurementScheduler {
+
+	/**
+	 * The order of measurements waiting for the same interface.
+	 */
+	public enum Ordering {
+		/**
+		 * In arrival order.
+		 */
+		FIFO,
+		/**
+		 * Highest priority first, in arrival order among the same priority.
+		 */
+		PRIORITY
+	}
+
+	/**
+	 * Measurements running at once on each interface unless specified.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT = 1;
+	/**
+	 * How long a target measurement waits before running anyway unless
+	 * specified.
+	 */
+	public static final long DEFAULT_ADMISSION_TIMEOUT = 60 * 1000;
+
+	/**
+	 * A measurement waiting for or holding a place on an interface.
+	 */
+	public class Admission {
+		private Lane lane;
+		private InetAddress peer;
+		private boolean target;
+		private boolean joined;
+		private boolean admitted;
+		private int priority;
+		private long sequence;
+		private long queued;
+		private long started;
+		private Runnable task;
+
+		private Admission(Lane lane, InetAddress peer, boolean target, int priority, Runnable task) {
+			this.lane = lane;
+			this.peer = peer;
+			this.target = target;
+			this.priority = priority;
+			this.task = task;
+			this.sequence = MeasurementScheduler.this.sequence++;
+			this.queued = System.nanoTime();
+		}
+
+		/**
+		 * @return milliseconds spent waiting to be admitted
+		 */
+		public long getWaitMillis() {
+			return (started - queued) / 1000000;
+		}
+
+		/**
+		 * Give the place on the interface to the next measurement in line.
+		 */
+		public void release() {
+			MeasurementScheduler.this.release(this);
+		}
+	}
+
+	private class Lane {
+		private String name;
+		private List<Admission> running;
+		private PriorityQueue<Admission> waiting;
+
+		private Lane(String name) {
+			this.name = name;
+			this.running = new ArrayList<>();
+			this.waiting = new PriorityQueue<>(11, order);
+		}
+
+		/**
+		 * @return measurements holding a place, joined ones share the place
+		 *         of the one they joined
+		 */
+		private int occupied() {
+			int occupied = 0;
+			for (Admission admission : running) {
+				if (!admission.joined) {
+					occupied++;
+				}
+			}
+			return occupied;
+		}
+	}
+
+	private NetPerfServer server;
+	private Map<String, Lane> lanes;
+	private int maxConcurrent;
+	private long admissionTimeout;
+	private Ordering ordering;
+	private long sequence;
+	private Comparator<Admission> order = new Comparator<Admission>() {
+		@Override
+		public int compare(Admission a, Admission b) {
+			if (a.target != b.target) {
+				return a.target ? -1 : 1;
+			}
+			if (ordering == Ordering.PRIORITY && a.priority != b.priority) {
+				return a.priority > b.priority ? -1 : 1;
+			}
+			return Long.compare(a.sequence, b.sequence);
+		}
+	};
+
+	/**
+	 * @param server
+	 *            where admitted measurements run
+	 */
+	public MeasurementScheduler(NetPerfServer server) {
+		this.server = server;
+		this.lanes = new HashMap<>();
+		this.maxConcurrent = DEFAULT_MAX_CONCURRENT;
+		this.admissionTimeout = DEFAULT_ADMISSION_TIMEOUT;
+		this.ordering = Ordering.PRIORITY;
+	}
+
+	/**
+	 * Queue a measurement started by this server, to run on the server once
+	 * the interface towards the target is free.
+	 *
+	 * @param target
+	 *            the address measured against
+	 * @param priority
+	 *            higher runs first when ordering by {@link Ordering#PRIORITY}
+	 * @param measurement
+	 *            run on the server once admitted, the interface is released
+	 *            when it returns
+	 */
+	public void submit(InetSocketAddress target, int priority, final Runnable measurement) {
+		final Admission[] admission = new Admission[1];
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					measurement.run();
+				} finally {
+					admission[0].release();
+				}
+			}
+		};
+		InetAddress local = route(target);
+		synchronized (this) {
+			admission[0] = new Admission(lane(local), target.getAddress(), false, priority, task);
+			enqueue(admission[0]);
+		}
+	}
+
+	/**
+	 * Wait until the interface a measurement arrived through admits it.
+	 *
+	 * @param channel
+	 *            the connection the {@link netperf.protocol.MeasurementMessage}
+	 *            arrived from
+	 * @return the admission, to be released when the measurement finishes
+	 * @throws IOException
+	 *             interrupted while waiting or the connection is closed
+	 */
+	public Admission admitTarget(SocketChannel channel) throws IOException {
+		return admitTarget(((InetSocketAddress) channel.getLocalAddress()).getAddress(),
+				((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+	}
+
+	/**
+	 * Wait until an interface admits a measurement from a peer.
+	 *
+	 * @param local
+	 *            the address of this server the measurement arrived at
+	 * @param peer
+	 *            the address of the server measuring against this one
+	 * @return the admission, to be released when the measurement finishes
+	 * @throws IOException
+	 *             interrupted while waiting
+	 */
+	public Admission admitTarget(InetAddress local, InetAddress peer) throws IOException {
+		synchronized (this) {
+			Lane lane = lane(local);
+			Admission admission = new Admission(lane, peer, true, 0, null);
+			for (Admission running : lane.running) {
+				if (peer.equals(running.peer)) {
+					admission.joined = true;
+					admit(admission);
+					return admission;
+				}
+			}
+			enqueue(admission);
+			long deadline = System.currentTimeMillis() + admissionTimeout;
+			try {
+				for (long left = admissionTimeout; !admission.admitted && left > 0; left = deadline
+						- System.currentTimeMillis()) {
+					wait(left);
+				}
+			} catch (InterruptedException e) {
+				lane.waiting.remove(admission);
+				server.getMetrics().measurementUnqueued();
+				throw new InterruptedIOException("Interrupted waiting for " + lane.name);
+			}
+			if (!admission.admitted) {
+				server.getLog().warn("Measuring from " + peer + " after waiting " + admissionTimeout + " ms for "
+						+ lane.name + ", sharing it with " + lane.running.size() + " measurements");
+				lane.waiting.remove(admission);
+				server.getMetrics().measurementUnqueued();
+				admit(admission);
+			}
+			return admission;
+		}
+	}
+
+	/**
+	 * @return measurements waiting for an interface
+	 */
+	public synchronized int getWaiting() {
+		int waiting = 0;
+		for (Lane lane : lanes.values()) {
+			waiting += lane.waiting.size();
+		}
+		return waiting;
+	}
+
+	/**
+	 * @return how long a target measurement waits before running anyway
+	 */
+	public long getAdmissionTimeout() {
+		return admissionTimeout;
+	}
+
+	/**
+	 * @param admissionTimeout
+	 *            how long a target measurement waits before running anyway, in
+	 *            milliseconds
+	 */
+	public void setAdmissionTimeout(long admissionTimeout) {
+		this.admissionTimeout = admissionTimeout;
+	}
+
+	/**
+	 * @return measurements running at once on each interface, zero if
+	 *         unlimited
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @param maxConcurrent
+	 *            measurements running at once on each interface, zero not to
+	 *            limit them
+	 */
+	public synchronized void setMaxConcurrent(int maxConcurrent) {
+		if (maxConcurrent < 0) {
+			throw new IllegalArgumentException("Concurrent measurements can not be negative");
+		}
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * @return the order of measurements waiting for the same interface
+	 */
+	public Ordering getOrdering() {
+		return ordering;
+	}
+
+	/**
+	 * Must be set before measurements are queued.
+	 *
+	 * @param ordering
+	 *            the order of measurements waiting for the same interface
+	 */
+	public void setOrdering(Ordering ordering) {
+		this.ordering = ordering;
+	}
+
+	private void enqueue(Admission admission) {
+		server.getMetrics().measurementQueued();
+		admission.lane.waiting.add(admission);
+		dispatch(admission.lane);
+	}
+
+	private synchronized void release(Admission admission) {
+		Lane lane = admission.lane;
+		lane.running.remove(admission);
+		if (!admission.joined) {
+			// Whoever joined it keeps the place until they finish too.
+			for (Admission running : lane.running) {
+				if (running.joined && Objects.equals(running.peer, admission.peer)) {
+					running.joined = false;
+					break;
+				}
+			}
+		}
+		dispatch(lane);
+	}
+
+	private void dispatch(Lane lane) {
+		while (!lane.waiting.isEmpty() && (maxConcurrent == 0 || lane.occupied() < maxConcurrent)) {
+			Admission next = lane.waiting.poll();
+			server.getMetrics().measurementUnqueued();
+			admit(next);
+			// The other connections of a parallel measurement queued while the
+			// interface was busy, they must run alongside this one.
+			for (Iterator<Admission> i = lane.waiting.iterator(); i.hasNext();) {
+				Admission waiting = i.next();
+				if (waiting.target && Objects.equals(waiting.peer, next.peer)) {
+					i.remove();
+					server.getMetrics().measurementUnqueued();
+					waiting.joined = true;
+					admit(waiting);
+				}
+			}
+		}
+	}
+
+	private void admit(Admission admission) {
+		admission.admitted = true;
+		admission.started = System.nanoTime();
+		admission.lane.running.add(admission);
+		server.getMetrics().measurementAdmitted(admission.started - admission.queued);
+		if (admission.task != null) {
+			server.execute(admission.task);
+		} else {
+			notifyAll();
+		}
+	}
+
+	private Lane lane(InetAddress local) {
+		String name = name(local);
+		Lane lane = lanes.get(name);
+		if (lane == null) {
+			lane = new Lane(name);
+			lanes.put(name, lane);
+		}
+		return lane;
+	}
+
+	/**
+	 * @return the interface the address belongs to, the address itself if
+	 *         not found
+	 */
+	private static String name(InetAddress local) {
+		try {
+			NetworkInterface nic = NetworkInterface.getByInetAddress(local);
+			if (nic != null) {
+				return nic.getName();
+			}
+		} catch (IOException e) {
+			// Fall back to the address.
+		}
+		return local.getHostAddress();
+	}
+
+	/**
+	 * @return the local address the system routes the target through, found
+	 *         connecting a datagram socket, which sends nothing
+	 */
+	private static InetAddress route(InetSocketAddress target) {
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.connect(target);
+			return socket.getLocalAddress();
+		} catch (IOException | IllegalArgumentException e) {
+			return InetAddress.getLoopbackAddress();
+		}
+	}
+}
@@ -27,7 +27,11 @@ package netperf.server;
  */
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.impl.NoOpLog;
@@ -35,10 +39,21 @@ import org.apache.commons.logging.impl.NoOpLog;
 /**
  * A server spawning {@link ServerThread} on incoming connections.
  * 
+ * When configured with {@link #setEventLoops(int)} the server runs in reactor
+ * mode instead: incoming connections are spread among a fixed set of
+ * {@link EventLoop}s, so idle control connections do not hold a thread each.
+ * 
+ * Connections and measurements run on executors created according to the
+ * {@link ExecutionMode}, see {@link #setExecutionMode(ExecutionMode, int)}.
+ * 
+ * Connections to measure against other servers are kept open in a
+ * {@link ConnectionPool} between measurements, and measurements wait for
+ * their network interface in a {@link MeasurementScheduler}.
+ * 
  * @author Julián Maestri <serpi90@gmail.com>
  * 
  */
-public class NetPerfServer {
+public class NetPerfServer implements Executor {
 
 	private boolean listening;
 
@@ -46,6 +61,26 @@ public class NetPerfServer {
 
 	private Log log;
 
+	private int eventLoops;
+
+	private ExecutionMode executionMode;
+
+	private int bound;
+
+	private ExecutorService connections;
+
+	private ExecutorService measurements;
+
+	private ExecutorService streams;
+
+	private ServerMetrics metrics;
+
+	private ConnectionPool connectionPool;
+
+	private MeasurementScheduler scheduler;
+
+	private int metricsPort;
+
 	/**
 	 * @param port
 	 *            the port to listen for incoming connections
@@ -53,7 +88,32 @@ public class NetPerfServer {
 	public NetPerfServer(int port) {
 		listening = false;
 		this.port = port;
+		this.metrics = new ServerMetrics();
+		this.connectionPool = new ConnectionPool(metrics);
+		this.scheduler = new MeasurementScheduler(this);
 		this.setLog(new NoOpLog());
+		this.setExecutionMode(ExecutionMode.PLATFORM, 0);
+	}
+
+	/**
+	 * Run a measurement, either against a remote address or as target of a
+	 * remote measurement, or a stream or direction of one.
+	 * 
+	 * @param measurement
+	 */
+	@Override
+	public void execute(Runnable measurement) {
+		measurements.execute(measurement);
+	}
+
+	/**
+	 * @return runs the parts of a measurement it waits for, the extra streams
+	 *         of a parallel one and the readers of both directions at once,
+	 *         which must never queue behind measurements when running in
+	 *         {@link ExecutionMode#BOUNDED} mode.
+	 */
+	public Executor getStreamExecutor() {
+		return streams;
 	}
 
 	/**
@@ -69,6 +129,85 @@ public class NetPerfServer {
 	 */
 	public void setLog(Log log) {
 		this.log = log;
+		connectionPool.setLog(log);
+	}
+
+	/**
+	 * @return the connections to other servers kept for further measurements
+	 */
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * @return where measurements wait for their network interface
+	 */
+	public MeasurementScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @return the counters and gauges of this server
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the port serving {@link #getMetrics()}, zero if not served
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	/**
+	 * Must be set before {@link #start()}.
+	 * 
+	 * @param metricsPort
+	 *            the port to serve {@link #getMetrics()} on through a
+	 *            {@link MetricsEndpoint}, zero not to serve them
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	/**
+	 * @return the amount of {@link EventLoop}s, zero when spawning a
+	 *         {@link ServerThread} per connection.
+	 */
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	/**
+	 * @param eventLoops
+	 *            the amount of {@link EventLoop}s to handle connections with,
+	 *            zero to spawn a {@link ServerThread} per connection.
+	 */
+	public void setEventLoops(int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * @return how connections and measurements are run
+	 */
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	/**
+	 * Must be set before {@link #start()}.
+	 * 
+	 * @param executionMode
+	 *            how connections and measurements are run
+	 * @param bound
+	 *            the amount of threads for connections, and again for
+	 *            measurements, when running in {@link ExecutionMode#BOUNDED}
+	 *            mode or falling back to it.
+	 */
+	public void setExecutionMode(ExecutionMode executionMode, int bound) {
+		this.executionMode = executionMode;
+		this.bound = bound;
 	}
 
 	/**
@@ -76,10 +215,60 @@ public class NetPerfServer {
 	 * for each incoming connection.
 	 */
 	public void start() {
+		measurements = executionMode.newExecutor(bound, log);
+		streams = executionMode.newStreamExecutor();
+		if (metricsPort > 0) {
+			startMetrics();
+		}
+		if (eventLoops > 0) {
+			startReactor();
+			return;
+		}
+		connections = executionMode.newExecutor(bound, log);
 		listening = true;
-		try (ServerSocket serverSocket = new ServerSocket(port)) {
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(port));
 			while (listening) {
-				new ServerThread(serverSocket.accept(), this).start();
+				SocketChannel accepted = serverChannel.accept();
+				metrics.connectionAccepted();
+				connections.execute(new ServerThread(accepted, this));
+			}
+		} catch (IOException e) {
+			getLog().error("Could not listen on port " + port, e);
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Serve the metrics, the server runs on without them if the port can not
+	 * be bound.
+	 */
+	private void startMetrics() {
+		try {
+			new MetricsEndpoint(metricsPort, metrics).start();
+			getLog().info("Serving metrics at port " + metricsPort + MetricsEndpoint.PATH);
+		} catch (IOException e) {
+			getLog().error("Could not serve metrics on port " + metricsPort, e);
+		}
+	}
+
+	/**
+	 * Start listening for incoming connections, registering each one in the
+	 * next {@link EventLoop}.
+	 */
+	private void startReactor() {
+		listening = true;
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(port));
+			EventLoop[] loops = new EventLoop[eventLoops];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(this, i);
+				loops[i].start();
+			}
+			for (int next = 0; listening; next = (next + 1) % loops.length) {
+				SocketChannel accepted = serverChannel.accept();
+				metrics.connectionAccepted();
+				loops[next].register(accepted);
 			}
 		} catch (IOException e) {
 			getLog().error("Could not listen on port " + port, e);
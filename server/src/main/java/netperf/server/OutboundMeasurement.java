@@ -0,0 +1,281 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+
+import netperf.protocol.MeasurementMessage;
+import netperf.protocol.MessageMarshaller.MarshalException;
+import netperf.protocol.ProgressListener;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.SocketSettings;
+import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.StartMessage;
+import netperf.protocol.TransferCommand;
+
+/**
+ * Measures the speed against a single address of a {@link StartMessage},
+ * executing
+ * {@link MeasureSpeed#executeAsSource(MeasurementMessage, ProgressListener, ProgressListener)}
+ * over {@link StartMessage#getParallelism()} connections at once, in both
+ * directions at once if {@link StartMessage#isBidirectional()}, and sending
+ * the result back through the {@link ControlConnection} the message arrived
+ * from, tagged with the address and the {@link StartMessage#getRequestId()}.
+ *
+ * When measuring over several connections the response holds the aggregate
+ * speeds first, followed by the speeds of each connection in the same order
+ * {@link MeasureSpeed#executeAsSource(TransferCommand)} reports them.
+ *
+ * The {@link StartMessage#getSettings()} are applied to every connection
+ * before it connects, and the options granted to the first one on both ends
+ * are reported along with the speeds.
+ *
+ * Connections come from the server's {@link ConnectionPool} and go back to it
+ * once measured, unless {@link StartMessage#isFreshConnections()}, in which
+ * case new ones are opened. A pooled connection the target closed in the
+ * meantime fails before the target answers, that stream is retried once over
+ * a new connection.
+ *
+ * A measurement that fails is answered with a {@link ResultMessage} carrying
+ * the {@link ResultMessage#getError()} instead of speeds.
+ *
+ * The time spent waiting for the {@link MeasurementScheduler} of this server
+ * and of the target is reported along with the speeds.
+ *
+ * Every sampled interval is reported while the measurement runs as a
+ * {@link ProgressMessage}.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class OutboundMeasurement implements Runnable {
+
+	private InetSocketAddress address;
+	private boolean bidirectional;
+	private boolean fresh;
+	private int requestId;
+	private TransferCommand command;
+	private ControlConnection connection;
+	private Log log;
+	private int parallelism;
+	private SocketSettings settings;
+	private volatile SocketSettings[] granted;
+	private volatile long targetQueueMillis;
+	private long queued;
+
+	/**
+	 * @param address
+	 *            the address to measure against
+	 * @param message
+	 *            the message requesting the measurement
+	 * @param connection
+	 *            where to send the measured speeds
+	 * @param log
+	 *            the logger to use
+	 */
+	public OutboundMeasurement(InetSocketAddress address, StartMessage message, ControlConnection connection,
+			Log log) {
+		this.address = address;
+		this.command = message.getCommand();
+		this.parallelism = message.getParallelism();
+		this.bidirectional = message.isBidirectional();
+		this.fresh = message.isFreshConnections();
+		this.requestId = message.getRequestId();
+		this.settings = message.getSettings();
+		this.connection = connection;
+		this.log = log;
+		this.queued = System.currentTimeMillis();
+	}
+
+	@Override
+	public void run() {
+		long queueMillis = System.currentTimeMillis() - queued;
+		try {
+			ResultMessage result = new ResultMessage(parallelism == 1 ? measure(0) : measureInParallel());
+			result.setAddress(address);
+			result.setRequestId(requestId);
+			result.setSourceSettings(granted[0]);
+			result.setTargetSettings(granted[1]);
+			result.setQueueMillis(queueMillis);
+			result.setTargetQueueMillis(targetQueueMillis);
+			connection.respond(result);
+		} catch (MarshalException | IOException | InterruptedException | RuntimeException e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			log.error("Error measuring against " + address, e);
+			fail(e, queueMillis);
+		}
+	}
+
+	/**
+	 * Let the one who sent the {@link StartMessage} know, instead of leaving
+	 * it waiting.
+	 */
+	private void fail(Exception cause, long queueMillis) {
+		ResultMessage result = new ResultMessage(new SpeedMeasurement[0]);
+		result.setAddress(address);
+		result.setRequestId(requestId);
+		result.setQueueMillis(queueMillis);
+		result.setError(cause.toString());
+		try {
+			connection.respond(result);
+		} catch (MarshalException | IOException e) {
+			log.error("Could not report the failure measuring against " + address, e);
+		}
+	}
+
+	private SpeedMeasurement[] measure(int stream) throws IOException, MarshalException {
+		ConnectionPool pool = connection.getServer().getConnectionPool();
+		SocketChannel channel = fresh ? null : pool.reuse(address, settings);
+		if (channel != null) {
+			MeasureSpeed measureSpeed = measureSpeed(channel);
+			try {
+				return measure(stream, channel, measureSpeed);
+			} catch (IOException e) {
+				if (measureSpeed.isAccepted()) {
+					throw e;
+				}
+				log.warn("Pooled connection to " + address + " failed before measuring, retrying on a new one: " + e);
+			}
+		}
+		channel = pool.connect(address, settings);
+		return measure(stream, channel, measureSpeed(channel));
+	}
+
+	private MeasureSpeed measureSpeed(SocketChannel channel) {
+		return new MeasureSpeed(channel, log, connection.getServer().getMetrics(),
+				connection.getServer().getStreamExecutor());
+	}
+
+	/**
+	 * Measure over the channel, giving it back to the pool if measured and
+	 * closing it otherwise.
+	 */
+	private SpeedMeasurement[] measure(int stream, SocketChannel channel, MeasureSpeed measureSpeed)
+			throws IOException, MarshalException {
+		ConnectionPool pool = connection.getServer().getConnectionPool();
+		boolean measured = false;
+		try {
+			log.info("Incomming connection from" + address + " port: " + channel.socket().getLocalPort());
+			MeasurementMessage message = new MeasurementMessage(command);
+			message.setParallelism(parallelism);
+			message.setBidirectional(bidirectional);
+			message.setSettings(settings);
+			SpeedMeasurement[] measurement = measureSpeed.executeAsSource(message, progress(stream, true),
+					progress(stream, false));
+			if (stream == 0) {
+				granted = new SocketSettings[] { measureSpeed.getGranted(), measureSpeed.getPeerGranted() };
+				targetQueueMillis = measureSpeed.getPeerQueueMillis();
+			}
+			measured = true;
+			return measurement;
+		} finally {
+			if (measured) {
+				pool.release(address, settings, channel);
+			} else {
+				channel.close();
+			}
+		}
+	}
+
+	private ProgressListener progress(final int stream, final boolean sending) {
+		return new ProgressListener() {
+			@Override
+			public void progress(SpeedMeasurement interval) {
+				ProgressMessage message = new ProgressMessage(address, stream, sending, interval);
+				message.setRequestId(requestId);
+				connection.progress(message);
+			}
+		};
+	}
+
+	/**
+	 * Run every connection but the first on the server's stream executor, so
+	 * each stream gets a thread, and a core, to copy its data without waiting
+	 * for a measurement thread that may never free up. The first one runs on
+	 * the current thread.
+	 */
+	private SpeedMeasurement[] measureInParallel() throws IOException, MarshalException, InterruptedException {
+		List<CompletableFuture<SpeedMeasurement[]>> futures = new ArrayList<>(parallelism);
+		futures.add(new CompletableFuture<SpeedMeasurement[]>());
+		for (int i = 1; i < parallelism; i++) {
+			final int stream = i;
+			futures.add(CompletableFuture.supplyAsync(new Supplier<SpeedMeasurement[]>() {
+				@Override
+				public SpeedMeasurement[] get() {
+					try {
+						return measure(stream);
+					} catch (IOException | MarshalException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, connection.getServer().getStreamExecutor()));
+		}
+		try {
+			futures.get(0).complete(measure(0));
+		} catch (IOException | MarshalException e) {
+			futures.get(0).completeExceptionally(e);
+		}
+		try {
+			// Completes once every stream did, even if some failed.
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[parallelism])).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MarshalException) {
+				throw (MarshalException) e.getCause();
+			} else if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Stream failed", e.getCause());
+		}
+		SpeedMeasurement[][] streams = new SpeedMeasurement[parallelism][];
+		for (int i = 0; i < parallelism; i++) {
+			streams[i] = futures.get(i).join();
+		}
+		int perStream = streams[0].length;
+		SpeedMeasurement[] measurement = new SpeedMeasurement[perStream * (parallelism + 1)];
+		for (int speed = 0; speed < perStream; speed++) {
+			SpeedMeasurement[] sameSpeed = new SpeedMeasurement[parallelism];
+			for (int stream = 0; stream < parallelism; stream++) {
+				sameSpeed[stream] = streams[stream][speed];
+				measurement[perStream * (stream + 1) + speed] = sameSpeed[stream];
+			}
+			measurement[speed] = SpeedMeasurement.aggregate(sameSpeed);
+		}
+		return measurement;
+	}
+}
@@ -0,0 +1,260 @@
+package netperf.server;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import netperf.protocol.TransferCommand;
+
+/**
+ * Counters and gauges of a {@link NetPerfServer}, exposed in the Prometheus
+ * text format through {@link MetricsEndpoint}.
+ *
+ * Every value is a {@link LongAdder}, so threads updating them at once do not
+ * contend. Transfers update them once when they finish, never from their
+ * send and read loops.
+ *
+ * @author Julián Maestri <serpi90@gmail.com>
+ */
+public class ServerMetrics {
+
+	/**
+	 * The side of a measurement, the one initiating it.
+	 */
+	public static final String SOURCE = "source";
+	/**
+	 * The side of a measurement, the one receiving the
+	 * {@link netperf.protocol.MeasurementMessage}.
+	 */
+	public static final String TARGET = "target";
+	private static final double NANOSECONDS = 1000000000d;
+
+	private LongAdder connectionsAccepted = new LongAdder();
+	private LongAdder connectionsActive = new LongAdder();
+	private LongAdder connectionsReused = new LongAdder();
+	private LongAdder connectionsIdle = new LongAdder();
+	private LongAdder measurementsInFlight = new LongAdder();
+	private LongAdder measurementsQueued = new LongAdder();
+	private LongAdder admissions = new LongAdder();
+	private LongAdder admissionNanos = new LongAdder();
+	private LongAdder bytesSent = new LongAdder();
+	private LongAdder bytesReceived = new LongAdder();
+	private LongAdder connectionErrors = new LongAdder();
+	private LongAdder protocolErrors = new LongAdder();
+	private LongAdder measurementErrors = new LongAdder();
+	/**
+	 * Count and total nanoseconds of finished measurements, by command and
+	 * side.
+	 */
+	private ConcurrentMap<String, LongAdder[]> durations = new ConcurrentHashMap<>();
+
+	/**
+	 * @param bytes
+	 *            received by a finished transfer
+	 */
+	public void bytesReceived(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * @param bytes
+	 *            sent by a finished transfer
+	 */
+	public void bytesSent(long bytes) {
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * A connection was accepted from the listening socket.
+	 */
+	public void connectionAccepted() {
+		connectionsAccepted.increment();
+	}
+
+	/**
+	 * A connection is being served, until {@link #connectionClosed()}.
+	 */
+	public void connectionOpened() {
+		connectionsActive.increment();
+	}
+
+	/**
+	 * A connection opened with {@link #connectionOpened()} was closed.
+	 */
+	public void connectionClosed() {
+		connectionsActive.decrement();
+	}
+
+	/**
+	 * An outgoing connection was taken from the {@link ConnectionPool}
+	 * instead of opening a new one.
+	 */
+	public void connectionReused() {
+		connectionsReused.increment();
+	}
+
+	/**
+	 * An outgoing connection went idle into the {@link ConnectionPool}, until
+	 * {@link #connectionUnpooled()}.
+	 */
+	public void connectionPooled() {
+		connectionsIdle.increment();
+	}
+
+	/**
+	 * A connection left the {@link ConnectionPool}, either reused or closed.
+	 */
+	public void connectionUnpooled() {
+		connectionsIdle.decrement();
+	}
+
+	/**
+	 * A connection failed.
+	 */
+	public void connectionError() {
+		connectionErrors.increment();
+	}
+
+	/**
+	 * A frame could not be unmarshalled.
+	 */
+	public void protocolError() {
+		protocolErrors.increment();
+	}
+
+	/**
+	 * A measurement waits for its interface in the
+	 * {@link MeasurementScheduler}, until {@link #measurementUnqueued()}.
+	 */
+	public void measurementQueued() {
+		measurementsQueued.increment();
+	}
+
+	/**
+	 * A measurement queued with {@link #measurementQueued()} left the queue.
+	 */
+	public void measurementUnqueued() {
+		measurementsQueued.decrement();
+	}
+
+	/**
+	 * @param waitNanos
+	 *            how long the measurement waited for its interface
+	 */
+	public void measurementAdmitted(long waitNanos) {
+		admissions.increment();
+		admissionNanos.add(waitNanos);
+	}
+
+	/**
+	 * @return when the measurement started, to be given to
+	 *         {@link #measurementEnded(TransferCommand, String, long, boolean)}
+	 */
+	public long measurementStarted() {
+		measurementsInFlight.increment();
+		return System.nanoTime();
+	}
+
+	/**
+	 * @param command
+	 *            the command measured
+	 * @param side
+	 *            {@link #SOURCE} or {@link #TARGET}
+	 * @param started
+	 *            as returned by {@link #measurementStarted()}
+	 * @param failed
+	 *            whether the measurement ended with an error
+	 */
+	public void measurementEnded(TransferCommand command, String side, long started, boolean failed) {
+		long elapsed = System.nanoTime() - started;
+		measurementsInFlight.decrement();
+		if (failed) {
+			measurementErrors.increment();
+			return;
+		}
+		String labels = "command=\"" + command.getClass().getSimpleName() + "\",side=\"" + side + "\"";
+		LongAdder[] duration = durations.get(labels);
+		if (duration == null) {
+			LongAdder[] created = { new LongAdder(), new LongAdder() };
+			duration = durations.putIfAbsent(labels, created);
+			if (duration == null) {
+				duration = created;
+			}
+		}
+		duration[0].increment();
+		duration[1].add(elapsed);
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	public String scrape() {
+		StringBuilder text = new StringBuilder();
+		metric(text, "netperf_connections_accepted_total", "counter", "Connections accepted.", connectionsAccepted);
+		metric(text, "netperf_connections_active", "gauge", "Connections being served.", connectionsActive);
+		metric(text, "netperf_connections_reused_total", "counter", "Outgoing connections reused.",
+				connectionsReused);
+		metric(text, "netperf_connections_idle", "gauge", "Outgoing connections kept idle.", connectionsIdle);
+		metric(text, "netperf_measurements_in_flight", "gauge", "Measurements running.", measurementsInFlight);
+		metric(text, "netperf_measurements_queued", "gauge", "Measurements waiting for their interface.",
+				measurementsQueued);
+		text.append("# HELP netperf_queue_wait_seconds Time measurements waited for their interface.\n");
+		text.append("# TYPE netperf_queue_wait_seconds summary\n");
+		sample(text, "netperf_queue_wait_seconds_count", admissions.sum());
+		text.append("netperf_queue_wait_seconds_sum ").append(admissionNanos.sum() / NANOSECONDS).append('\n');
+		metric(text, "netperf_sent_bytes_total", "counter", "Bytes sent by finished transfers.", bytesSent);
+		metric(text, "netperf_received_bytes_total", "counter", "Bytes received by finished transfers.",
+				bytesReceived);
+		text.append("# HELP netperf_errors_total Errors by kind.\n");
+		text.append("# TYPE netperf_errors_total counter\n");
+		sample(text, "netperf_errors_total{kind=\"connection\"}", connectionErrors.sum());
+		sample(text, "netperf_errors_total{kind=\"protocol\"}", protocolErrors.sum());
+		sample(text, "netperf_errors_total{kind=\"measurement\"}", measurementErrors.sum());
+		text.append("# HELP netperf_measurement_duration_seconds Duration of finished measurements.\n");
+		text.append("# TYPE netperf_measurement_duration_seconds summary\n");
+		for (Map.Entry<String, LongAdder[]> duration : durations.entrySet()) {
+			String labels = "{" + duration.getKey() + "}";
+			sample(text, "netperf_measurement_duration_seconds_count" + labels, duration.getValue()[0].sum());
+			text.append("netperf_measurement_duration_seconds_sum").append(labels).append(' ')
+					.append(duration.getValue()[1].sum() / NANOSECONDS).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void metric(StringBuilder text, String name, String type, String help, LongAdder value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		sample(text, name, value.sum());
+	}
+
+	private static void sample(StringBuilder text, String name, long value) {
+		text.append(name).append(' ').append(value).append('\n');
+	}
+}
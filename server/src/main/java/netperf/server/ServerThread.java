@@ -27,45 +27,75 @@ package netperf.server;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import netperf.protocol.BufferPool;
 import netperf.protocol.DisconnectMessage;
 import netperf.protocol.MeasurementMessage;
 import netperf.protocol.Message;
 import netperf.protocol.MessageMarshaller;
 import netperf.protocol.MessageVisitor;
-import netperf.protocol.SpeedMeasurement;
+import netperf.protocol.ProgressMessage;
+import netperf.protocol.ResultMessage;
 import netperf.protocol.StartMessage;
 import netperf.protocol.StopMessage;
+import netperf.protocol.TransferCommand;
 import netperf.protocol.MessageMarshaller.MarshalException;
 
 /**
- * The thread to execute when an incoming connection is established.
+ * The task to execute when an incoming connection is established.
  * 
  * On {@link StartMessage}: for each address provided in
- * {@link StartMessage#getAddresses()}, a speed measurement is established using
- * {@link SpeedMeasurementThread} which sends executes
- * {@link MeasureSpeed#executeAsSource(SendBytesCommand)} that sends a
+ * {@link StartMessage#getAddresses()}, a speed measurement is queued in the
+ * {@link MeasurementScheduler} using {@link OutboundMeasurement} which executes
+ * {@link MeasureSpeed#executeAsSource(TransferCommand)} that sends a
  * {@link MeasurementMessage} to the other side.
  * 
  * On {@link MeasurementMessage}:
- * {@link MeasureSpeed#executeAsTarget(SendBytesCommand)} is invoked
+ * {@link MeasureSpeed#executeAsTarget(MeasurementMessage)} is invoked once the
+ * {@link MeasurementScheduler} admits it
  * 
  * On {@link StopMessage} {@link NetPerfServer#stop()} is invoked
  * 
+ * Progress of the measurements is queued and written by a measurement worker,
+ * up to {@link #PROGRESS_BACKLOG} messages, so a slow reader never holds up a
+ * transfer.
+ * 
  * @author Julián Maestri <serpi90@gmail.com>
  * 
  */
-public class ServerThread extends Thread implements MessageVisitor {
+public class ServerThread implements Runnable, MessageVisitor, ControlConnection {
 
+	static final int PROGRESS_BACKLOG = 64;
+	private SocketChannel channel;
 	private Socket listeningSocket;
 	private NetPerfServer server;
-	private OutputStream outputStream;
-	private InputStream inputStream;
 	private MessageMarshaller marshaller;
+	private Queue<ProgressMessage> pendingProgress;
+	private AtomicBoolean publishing;
+	private Runnable publisher = new Runnable() {
+		@Override
+		public void run() {
+			do {
+				ProgressMessage message;
+				while ((message = pendingProgress.poll()) != null) {
+					try {
+						write(marshaller.marshallMessage(message, BufferPool.shared()));
+					} catch (IOException | MarshalException e) {
+						server.getLog().debug("Error sending progress", e);
+						pendingProgress.clear();
+					}
+				}
+				publishing.set(false);
+			} while (!pendingProgress.isEmpty() && publishing.compareAndSet(false, true));
+		}
+	};
 
 	/**
 	 * @param accept
@@ -73,15 +103,12 @@ public class ServerThread extends Thread implements MessageVisitor {
 	 * @param server
 	 *            the server which this thread belongs to.
 	 */
-	public ServerThread(Socket accept, NetPerfServer server) {
+	public ServerThread(SocketChannel accept, NetPerfServer server) {
 		marshaller = new MessageMarshaller();
-		listeningSocket = accept;
-		try {
-			inputStream = listeningSocket.getInputStream();
-			outputStream = listeningSocket.getOutputStream();
-		} catch (IOException e) {
-			server.getLog().error("Error creating streams", e);
-		}
+		pendingProgress = new ArrayBlockingQueue<>(PROGRESS_BACKLOG);
+		publishing = new AtomicBoolean();
+		channel = accept;
+		listeningSocket = accept.socket();
 		this.server = server;
 	}
 
@@ -104,37 +131,39 @@ public class ServerThread extends Thread implements MessageVisitor {
 		server.getLog()
 				.info("Received: " + dataMessage + " from: " + listeningSocket.getRemoteSocketAddress().toString());
 		try {
-			new MeasureSpeed(inputStream, outputStream, server.getLog()).executeAsTarget(dataMessage.getCommand());
-		} catch (IOException e) {
+			MeasurementScheduler.Admission admission = server.getScheduler().admitTarget(channel);
+			try {
+				new MeasureSpeed(channel, server.getLog(), server.getMetrics(), server.getStreamExecutor())
+						.executeAsTarget(dataMessage);
+			} finally {
+				admission.release();
+			}
+		} catch (IOException | RuntimeException e) {
+			// Only this connection is lost, a pooled one may well have been
+			// dropped by its peer.
+			server.getMetrics().connectionError();
 			server.getLog().error("Error executing MeasureSpeedCommand asTarget", e);
-			System.exit(-1);
+			close();
 		}
 	}
 
+	@Override
+	public void acceptProgressMessage(ProgressMessage progressMessage) {
+		server.getLog().warn("Unexpected " + progressMessage);
+	}
+
+	@Override
+	public void acceptResultMessage(ResultMessage resultMessage) {
+		server.getLog().warn("Unexpected " + resultMessage);
+	}
+
 	@Override
 	public void acceptStartMessage(final StartMessage startMessage) {
 		server.getLog().info("Received " + startMessage);
 		for (final InetSocketAddress address : startMessage.getAddresses()) {
 			server.getLog().info("Measuring against " + address.toString());
-			new Thread() {
-				@Override
-				public void run() {
-					try (Socket socket = new Socket()) {
-						socket.connect(address);
-						server.getLog().info("Incomming connection from" + address + " port: " + socket.getLocalPort());
-						OutputStream outputStream = socket.getOutputStream();
-						InputStream inputStream = socket.getInputStream();
-						SpeedMeasurement[] measurement = new MeasureSpeed(inputStream, outputStream, server.getLog())
-								.executeAsSource(startMessage.getCommand());
-						outputStream.write(marshaller.marshallMessage(new DisconnectMessage()));
-						socket.close();
-						respond(measurement);
-					} catch (MarshalException | IOException e) {
-						server.getLog().error("Error executing MeasureSpeed asSource", e);
-						System.exit(-1);
-					}
-				}
-			}.start();
+			server.getScheduler().submit(address, startMessage.getPriority(),
+					new OutboundMeasurement(address, startMessage, this, server.getLog()));
 		}
 	}
 
@@ -150,39 +179,70 @@ public class ServerThread extends Thread implements MessageVisitor {
 		server.stop();
 	}
 
-	/**
-	 * @return the server
-	 */
+	@Override
 	public NetPerfServer getServer() {
 		return server;
 	}
 
-	/**
-	 * Send the measured speeds to the one who sent the {@link StartMessage}
-	 * 
-	 * @param speeds
-	 *            indexed by: {@link MeasureSpeed#HIS_READ_SPEED},
-	 *            {@link MeasureSpeed#HIS_WRITE_SPEED},
-	 *            {@link MeasureSpeed#MY_READ_SPEED} and
-	 *            {@link MeasureSpeed#MY_WRITE_SPEED}
-	 * @throws IOException
-	 */
-	public synchronized void respond(SpeedMeasurement[] speeds) throws IOException {
-		server.getLog().info("Sending " + speeds.length + " speeds back");
-		outputStream.write(marshaller.marshallSpeeds(speeds));
-		server.getLog().info("Sent back " + speeds.length + " speeds");
+	@Override
+	public void progress(ProgressMessage progress) {
+		if (!pendingProgress.offer(progress)) {
+			server.getLog().debug("Dropped " + progress);
+			return;
+		}
+		if (publishing.compareAndSet(false, true)) {
+			server.execute(publisher);
+		}
+	}
+
+	@Override
+	public void respond(ResultMessage result) throws IOException, MarshalException {
+		server.getLog().info("Sending " + result.getSpeeds().length + " speeds back");
+		write(marshaller.marshallMessage(result, BufferPool.shared()));
+		server.getLog().info("Sent back " + result.getSpeeds().length + " speeds");
+	}
+
+	private void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			server.getLog().error("Error closing connection", e);
+		}
+	}
+
+	private synchronized void write(ByteBuffer frame) throws IOException {
+		try {
+			marshaller.write(channel, frame);
+		} finally {
+			BufferPool.shared().release(frame);
+		}
 	}
 
 	@Override
 	public void run() {
 		Message message;
-		while (!listeningSocket.isClosed() && listeningSocket.isConnected()) {
-			try {
-				message = marshaller.unmarshallMessage(inputStream);
-				message.accept(this);
-			} catch (MarshalException e) {
-				server.getLog().error("Error reading message", e);
+		server.getMetrics().connectionOpened();
+		try {
+			while (!listeningSocket.isClosed() && listeningSocket.isConnected()) {
+				try {
+					message = marshaller.unmarshallMessage(channel);
+					message.accept(this);
+				} catch (MarshalException e) {
+					server.getMetrics().protocolError();
+					server.getLog().error("Error reading message", e);
+				} catch (IOException e) {
+					server.getLog().info("Connection closed by " + listeningSocket.getRemoteSocketAddress());
+					return;
+				} catch (RuntimeException e) {
+					// The rest of the stream can not be trusted to be framed.
+					server.getMetrics().protocolError();
+					server.getLog().error("Error handling message", e);
+					return;
+				}
 			}
+		} finally {
+			close();
+			server.getMetrics().connectionClosed();
 		}
 	}
 }
@@ -0,0 +1,131 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import netperf.protocol.Message;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.ResultMessage;
+import netperf.protocol.StartMessage;
+import netperf.protocol.TransferDuringFixedTime;
+import netperf.server.ExecutionMode;
+import netperf.server.NetPerfServer;
+
+@SuppressWarnings("javadoc")
+public class BoundedParallelTest {
+
+	private static final long TIMEOUT = 10000;
+
+	private static void start(final NetPerfServer server) {
+		Thread listener = new Thread() {
+			@Override
+			public void run() {
+				server.start();
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	private static Socket connect(int port) throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * Start a measurement from a server with a single measurement thread.
+	 * 
+	 * @return the result of the measurement
+	 */
+	private static ResultMessage measure(int sourcePort, int targetPort, StartMessage start) throws Exception {
+		NetPerfServer source = new NetPerfServer(sourcePort);
+		source.setExecutionMode(ExecutionMode.BOUNDED, 1);
+		start(source);
+		start(new NetPerfServer(targetPort));
+		MessageMarshaller marshaller = new MessageMarshaller();
+		try (Socket controller = connect(sourcePort)) {
+			controller.setSoTimeout((int) TIMEOUT);
+			// Once the target listens too.
+			connect(targetPort).close();
+			controller.getOutputStream().write(marshaller.marshallMessage(start));
+			while (true) {
+				Message message = marshaller.unmarshallMessage(controller.getInputStream());
+				if (message instanceof ResultMessage) {
+					ResultMessage result = (ResultMessage) message;
+					assertNull(result.getError());
+					assertTrue(result.getSpeeds()[0].getBytes() > 0);
+					return result;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The other streams must not wait for the thread running the first one.
+	 */
+	@Test
+	public void testParallelOnSingleThread() throws Exception {
+		StartMessage start = new StartMessage(
+				Collections.singletonList(new InetSocketAddress("127.0.0.1", 21997)),
+				new TransferDuringFixedTime(200));
+		start.setParallelism(4);
+		ResultMessage result = measure(21996, 21997, start);
+		// The speeds aggregated, followed by those of each stream.
+		assertEquals(result.getSpeeds().length % (start.getParallelism() + 1), 0);
+	}
+
+	/**
+	 * Reading while sending must not wait for the thread doing the sending.
+	 */
+	@Test
+	public void testBidirectionalOnSingleThread() throws Exception {
+		StartMessage start = new StartMessage(
+				Collections.singletonList(new InetSocketAddress("127.0.0.1", 21999)),
+				new TransferDuringFixedTime(200));
+		start.setBidirectional(true);
+		measure(21998, 21999, start);
+	}
+}
@@ -0,0 +1,117 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import netperf.server.NetPerfServer;
+
+@SuppressWarnings("javadoc")
+public class MalformedFrameTest {
+
+	private static final String PROTOCOL_ERRORS = "netperf_errors_total{kind=\"protocol\"} ";
+	private static final long TIMEOUT = 5000;
+
+	private static NetPerfServer start(int port, int eventLoops) {
+		final NetPerfServer server = new NetPerfServer(port);
+		server.setEventLoops(eventLoops);
+		Thread listener = new Thread() {
+			@Override
+			public void run() {
+				server.start();
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+		return server;
+	}
+
+	private static Socket connect(int port) throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static long protocolErrors(NetPerfServer server) {
+		String metrics = server.getMetrics().scrape();
+		int start = metrics.indexOf(PROTOCOL_ERRORS) + PROTOCOL_ERRORS.length();
+		return Long.parseLong(metrics.substring(start, metrics.indexOf('\n', start)));
+	}
+
+	private static void awaitProtocolErrors(NetPerfServer server, long errors) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (protocolErrors(server) < errors && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(protocolErrors(server), errors);
+	}
+
+	/**
+	 * Send an empty frame, which does not even hold the type of its message.
+	 */
+	private static void sendMalformed(Socket socket) throws IOException {
+		OutputStream output = socket.getOutputStream();
+		output.write(new byte[] { 0, 0, 0, 0 });
+		output.flush();
+	}
+
+	private static void assertSurvives(NetPerfServer server, int port) throws Exception {
+		try (Socket first = connect(port)) {
+			sendMalformed(first);
+			awaitProtocolErrors(server, 1L);
+		}
+		// A bad peer only costs its own connection, the next one is served.
+		try (Socket second = connect(port)) {
+			sendMalformed(second);
+			awaitProtocolErrors(server, 2L);
+		}
+	}
+
+	@Test
+	public void testEventLoopSurvives() throws Exception {
+		assertSurvives(start(21992, 1), 21992);
+	}
+
+	@Test
+	public void testServerThreadSurvives() throws Exception {
+		assertSurvives(start(21993, 0), 21993);
+	}
+}
@@ -0,0 +1,130 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import netperf.server.MeasurementScheduler;
+import netperf.server.MeasurementScheduler.Admission;
+import netperf.server.NetPerfServer;
+
+@SuppressWarnings("javadoc")
+public class MeasurementSchedulerTest {
+
+	private MeasurementScheduler scheduler;
+	private InetAddress local;
+
+	@Before
+	public void setUp() throws IOException {
+		scheduler = new NetPerfServer(0).getScheduler();
+		scheduler.setMaxConcurrent(1);
+		scheduler.setAdmissionTimeout(30 * 1000);
+		local = InetAddress.getByName("127.0.0.1");
+	}
+
+	@Test
+	public void testJoinRunningPeer() throws IOException {
+		Admission first = scheduler.admitTarget(local, InetAddress.getByName("127.0.0.2"));
+		Admission second = scheduler.admitTarget(local, InetAddress.getByName("127.0.0.2"));
+		assertEquals(scheduler.getWaiting(), 0);
+		second.release();
+		first.release();
+	}
+
+	@Test
+	public void testAdmitQueuedPeerTogether() throws Exception {
+		Admission busy = scheduler.admitTarget(local, InetAddress.getByName("127.0.0.2"));
+		final InetAddress peer = InetAddress.getByName("127.0.0.3");
+		final List<Admission> admitted = new ArrayList<>();
+		List<Thread> streams = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Thread stream = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Admission admission = scheduler.admitTarget(local, peer);
+						synchronized (admitted) {
+							admitted.add(admission);
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			stream.start();
+			streams.add(stream);
+		}
+		while (scheduler.getWaiting() < 3) {
+			Thread.sleep(10);
+		}
+		busy.release();
+		for (Thread stream : streams) {
+			stream.join(5 * 1000);
+		}
+		assertEquals(admitted.size(), 3);
+		assertEquals(scheduler.getWaiting(), 0);
+		for (Admission admission : admitted) {
+			assertTrue(admission.getWaitMillis() < 5 * 1000);
+		}
+		for (Admission admission : admitted) {
+			admission.release();
+		}
+	}
+
+	@Test
+	public void testOtherPeerWaits() throws Exception {
+		Admission busy = scheduler.admitTarget(local, InetAddress.getByName("127.0.0.2"));
+		final Admission[] waiting = new Admission[1];
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					waiting[0] = scheduler.admitTarget(local, InetAddress.getByName("127.0.0.3"));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		other.start();
+		while (scheduler.getWaiting() < 1) {
+			Thread.sleep(10);
+		}
+		busy.release();
+		other.join(5 * 1000);
+		assertEquals(scheduler.getWaiting(), 0);
+		waiting[0].release();
+	}
+}
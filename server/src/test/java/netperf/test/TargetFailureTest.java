@@ -0,0 +1,122 @@
+package netperf.test;
+
+/*
+ * #%L
+ * Server
+ * %%
+ * Copyright (C) 2016 Julián Maestri
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import netperf.protocol.MeasurementMessage;
+import netperf.protocol.MessageMarshaller;
+import netperf.protocol.TransferWithFixedSize;
+import netperf.server.NetPerfServer;
+
+@SuppressWarnings("javadoc")
+public class TargetFailureTest {
+
+	private static final long TIMEOUT = 5000;
+
+	private static NetPerfServer start(int port, int eventLoops) {
+		final NetPerfServer server = new NetPerfServer(port);
+		server.setEventLoops(eventLoops);
+		Thread listener = new Thread() {
+			@Override
+			public void run() {
+				server.start();
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+		return server;
+	}
+
+	private static Socket connect(int port) throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static long errors(NetPerfServer server, String kind) {
+		String sample = "netperf_errors_total{kind=\"" + kind + "\"} ";
+		String metrics = server.getMetrics().scrape();
+		int start = metrics.indexOf(sample) + sample.length();
+		return Long.parseLong(metrics.substring(start, metrics.indexOf('\n', start)));
+	}
+
+	private static void awaitErrors(NetPerfServer server, String kind, long errors) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (errors(server, kind) < errors && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(errors(server, kind), errors);
+	}
+
+	/**
+	 * A source dropping the connection once the target started measuring,
+	 * as when a pooled connection turns out to be stale, costs the target
+	 * that connection only.
+	 */
+	private static void assertSurvives(NetPerfServer server, int port) throws Exception {
+		MessageMarshaller marshaller = new MessageMarshaller();
+		try (Socket source = connect(port)) {
+			source.getOutputStream()
+					.write(marshaller.marshallMessage(new MeasurementMessage(new TransferWithFixedSize(60))));
+			// The target answers with the settings it granted once measuring.
+			marshaller.unmarshallSettings(Channels.newChannel(source.getInputStream()));
+		}
+		awaitErrors(server, "connection", 1L);
+		try (Socket next = connect(port)) {
+			OutputStream output = next.getOutputStream();
+			output.write(new byte[] { 0, 0, 0, 0 });
+			output.flush();
+			awaitErrors(server, "protocol", 1L);
+		}
+	}
+
+	@Test
+	public void testEventLoopSurvives() throws Exception {
+		assertSurvives(start(21994, 1), 21994);
+	}
+
+	@Test
+	public void testServerThreadSurvives() throws Exception {
+		assertSurvives(start(21995, 0), 21995);
+	}
+}